@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.os.Handler;
+import android.widget.Toast;
+
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs the {@link TransferBenchmark} from the menu, it is only in debug builds.
+ */
+final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Measure the transfer code over simulated networks and write a report next to the received files
+     */
+    static void run(Context context, final Handler mainHandler) {
+        final Context appContext = context.getApplicationContext();
+        final File reportFile = new File(Environment.getExternalStorageDirectory() + "/data_transfer_example",
+                "transfer_benchmark_" + System.currentTimeMillis() + ".txt");
+        final TransferBenchmark benchmark = new TransferBenchmark(appContext, new File(appContext.getCacheDir(), "benchmark"));
+        Toast.makeText(context, R.string.benchmark_started, Toast.LENGTH_LONG).show();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    List<TransferBenchmark.Result> results = benchmark.run();
+                    File dir = reportFile.getParentFile();
+                    if (!dir.exists()) {
+                        dir.mkdirs();
+                    }
+                    TransferBenchmark.writeReport(results, reportFile);
+                    message = appContext.getString(R.string.benchmark_saved, reportFile.getPath());
+                } catch (IOException e) {
+                    Logger.e(e);
+                    message = appContext.getString(R.string.benchmark_failed, e.getMessage());
+                }
+                final String toast = message;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(appContext, toast, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in for one direction of a data connection, giving the channels opened on it the bandwidth,
+ * latency, jitter and loss of a real network so the transfer code can be measured without the service.
+ * <p>
+ * Data written to a channel is cut into segments which take their share of the bandwidth, shared by all channels
+ * like a single connection, and are delivered to the input stream after the latency and a random jitter. Channels
+ * are reliable streams like the ones from the SDK, so a lost segment arrives a round trip later and holds up the
+ * segments behind it. Each channel has its own random numbers, seeded from the link's seed and the channel name,
+ * so the same conditions give the same delays no matter how the threads of the channels are scheduled.
+ */
+class LoopbackLink {
+    //data is delivered in segments of this size, like packets
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    //segments in flight for each channel before the writer blocks, like a transport window
+    private static final int WINDOW_SEGMENTS = 16;
+    //how often a blocked writer checks if the reader was closed
+    private static final long CLOSED_CHECK_MS = 100;
+
+    /**
+     * The network to simulate
+     */
+    static class Conditions {
+        final String name;
+        final long bytesPerSecond;
+        final int latencyMs;
+        final int jitterMs;
+        //fraction of the segments lost and resent
+        final double lossRate;
+
+        Conditions(String name, long bytesPerSecond, int latencyMs, int jitterMs, double lossRate) {
+            this.name = name;
+            this.bytesPerSecond = bytesPerSecond;
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            this.lossRate = lossRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s (%dKB/s latency=%dms jitter=%dms loss=%.1f%%)",
+                    name, bytesPerSecond / 1024, latencyMs, jitterMs, lossRate * 100);
+        }
+    }
+
+    private static class Segment {
+        //sent after the last segment when the writer closes
+        static final Segment END = new Segment(null, 0);
+
+        final byte[] data;
+        final long deliverAtNanos;
+
+        Segment(byte[] data, long deliverAtNanos) {
+            this.data = data;
+            this.deliverAtNanos = deliverAtNanos;
+        }
+    }
+
+    private final Conditions mConditions;
+    private final long mSeed;
+    //when the link is next free to send a segment
+    private long mWireFreeNanos;
+
+    LoopbackLink(Conditions conditions, long seed) {
+        mConditions = conditions;
+        mSeed = seed;
+    }
+
+    /**
+     * Open a channel, this takes a round trip like setting up a channel on a real connection.
+     * This blocks so must be called on a background thread.
+     */
+    Channel openChannel(String name) throws IOException {
+        sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2L * mConditions.latencyMs));
+        return new Channel(name);
+    }
+
+    /**
+     * Reserve the link for the segment
+     *
+     * @return when the segment is all on the wire
+     */
+    private synchronized long transmit(int length) {
+        long start = Math.max(System.nanoTime(), mWireFreeNanos);
+        mWireFreeNanos = start + length * TimeUnit.SECONDS.toNanos(1) / mConditions.bytesPerSecond;
+        return mWireFreeNanos;
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedIOException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting on the link");
+            }
+        }
+    }
+
+    /**
+     * A channel on the link, what is written to the output stream is read from the input stream
+     */
+    class Channel {
+        private final String mName;
+        private final BlockingQueue<Segment> mSegments = new ArrayBlockingQueue<>(WINDOW_SEGMENTS);
+        private final ChannelOutputStream mOutputStream = new ChannelOutputStream();
+        private final ChannelInputStream mInputStream = new ChannelInputStream();
+        private final Random mRandom;
+        //segments on a stream arrive in order, so one that is late holds up the rest
+        private long mLastDeliverNanos;
+        private volatile boolean mReaderClosed;
+
+        private Channel(String name) {
+            mName = name;
+            mRandom = new Random(mSeed * 31 + name.hashCode());
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        /**
+         * @return how long a segment on the wire takes to arrive
+         */
+        private synchronized long nextDelayNanos() {
+            long delayMs = mConditions.latencyMs;
+            if (mConditions.jitterMs > 0) {
+                delayMs += mRandom.nextInt(2 * mConditions.jitterMs + 1) - mConditions.jitterMs;
+            }
+            if (mRandom.nextDouble() < mConditions.lossRate) {
+                //resent once the sender finds out it was lost
+                delayMs += 2L * mConditions.latencyMs;
+            }
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        }
+
+        private void put(Segment segment) throws IOException {
+            try {
+                while (!mSegments.offer(segment, CLOSED_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                    if (mReaderClosed) {
+                        throw new IOException("Channel " + mName + " closed by the reader");
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted writing to " + mName);
+            }
+        }
+
+        private class ChannelOutputStream extends OutputStream {
+            private final byte[] mBuffer = new byte[SEGMENT_SIZE];
+            private int mLength;
+            private boolean mClosed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                if (mClosed) {
+                    throw new IOException("Channel " + mName + " is closed");
+                }
+                while (len > 0) {
+                    int count = Math.min(len, mBuffer.length - mLength);
+                    System.arraycopy(b, off, mBuffer, mLength, count);
+                    mLength += count;
+                    off += count;
+                    len -= count;
+                    if (mLength == mBuffer.length) {
+                        sendSegment();
+                    }
+                }
+            }
+
+            @Override
+            public synchronized void flush() throws IOException {
+                if (mLength > 0) {
+                    sendSegment();
+                }
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                if (mClosed) {
+                    return;
+                }
+                try {
+                    flush();
+                } finally {
+                    mClosed = true;
+                    put(Segment.END);
+                }
+            }
+
+            private void sendSegment() throws IOException {
+                byte[] data = new byte[mLength];
+                System.arraycopy(mBuffer, 0, data, 0, mLength);
+                mLength = 0;
+
+                long sent = transmit(data.length);
+                long deliverAt = Math.max(sent + nextDelayNanos(), mLastDeliverNanos);
+                mLastDeliverNanos = deliverAt;
+                //the writer is held up while its segment is on the wire, so the channels share the bandwidth
+                sleepUntil(sent);
+                put(new Segment(data, deliverAt));
+            }
+        }
+
+        private class ChannelInputStream extends InputStream {
+            private Segment mSegment;
+            private int mOffset;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (mSegment == null || (mSegment.data != null && mOffset == mSegment.data.length)) {
+                    if (mReaderClosed) {
+                        throw new IOException("Channel " + mName + " is closed");
+                    }
+                    try {
+                        mSegment = mSegments.take();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted reading from " + mName);
+                    }
+                    mOffset = 0;
+                    if (mSegment.data != null) {
+                        sleepUntil(mSegment.deliverAtNanos);
+                    }
+                }
+                if (mSegment.data == null) {
+                    //keep the end so later reads also return it
+                    return -1;
+                }
+                int count = Math.min(len, mSegment.data.length - mOffset);
+                System.arraycopy(mSegment.data, mOffset, b, off, count);
+                mOffset += count;
+                return count;
+            }
+
+            @Override
+            public void close() {
+                mReaderClosed = true;
+                mSegments.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the transfer code end to end over {@link LoopbackLink}s, with the sending and receiving sides in this
+ * process. Every workload is run over each of the {@link #CONDITIONS} a few times with the same generated files and
+ * link seeds, so the numbers can be compared before and after a change to the transfer path.
+ * <p>
+ * The SDK channels are replaced by loopback channels at the streams the senders and receivers use, everything
+ * from there on (chunking, striping, compression, digests, acknowledgements and saving state) is the app's code.
+ */
+class TransferBenchmark {
+    static final LoopbackLink.Conditions[] CONDITIONS = {
+            new LoopbackLink.Conditions("wifi", 6 * 1024 * 1024, 5, 2, 0),
+            new LoopbackLink.Conditions("lte", 1536 * 1024, 40, 15, 0.005),
+            new LoopbackLink.Conditions("3g", 256 * 1024, 120, 40, 0.02)
+    };
+    //the median of these is reported
+    private static final int RUNS = 3;
+    private static final long SEED = 0x44544245;
+    //just over the size that is striped
+    private static final int LARGE_FILE_SIZE = (int) TransferProtocol.STRIPE_MIN_SIZE + 1024 * 1024;
+    private static final int TEXT_FILE_SIZE = 2 * 1024 * 1024;
+    private static final int SMALL_FILE_COUNT = 40;
+    private static final int SMALL_FILE_SIZE = 16 * 1024;
+
+    /**
+     * The result of one workload over one of the conditions
+     */
+    static class Result {
+        final String workload;
+        final LoopbackLink.Conditions conditions;
+        final long bytes;
+        //sorted
+        final long[] runMs;
+
+        Result(String workload, LoopbackLink.Conditions conditions, long bytes, long[] runMs) {
+            this.workload = workload;
+            this.conditions = conditions;
+            this.bytes = bytes;
+            this.runMs = runMs;
+        }
+
+        long getMedianMs() {
+            return runMs[runMs.length / 2];
+        }
+
+        double getBytesPerSecond() {
+            return getMedianMs() > 0 ? bytes * 1000.0 / getMedianMs() : 0;
+        }
+    }
+
+    private interface Workload {
+        String getName();
+
+        long getBytes();
+
+        void run(LoopbackLink forward, LoopbackLink back) throws IOException;
+    }
+
+    private final Context mContext;
+    private final File mSourceDir;
+    private final File mReceivedDir;
+    //makes the names sent unique so nothing is resumed from an earlier run
+    private final AtomicInteger mNameCount = new AtomicInteger();
+
+    /**
+     * @param workDir a directory the benchmark can use for its files, what is in it is deleted
+     */
+    TransferBenchmark(Context context, File workDir) {
+        mContext = context.getApplicationContext();
+        mSourceDir = new File(workDir, "source");
+        mReceivedDir = new File(workDir, "received");
+    }
+
+    /**
+     * Run all the workloads. This takes minutes and blocks so must be called on a background thread.
+     */
+    List<Result> run() throws IOException {
+        deleteFiles(mSourceDir);
+        deleteFiles(mReceivedDir);
+        if (!mSourceDir.mkdirs() || !mReceivedDir.mkdirs()) {
+            throw new IOException("Failed to create " + mSourceDir + " and " + mReceivedDir);
+        }
+
+        Random random = new Random(SEED);
+        final File largeFile = createRandomFile("large.bin", LARGE_FILE_SIZE, random);
+        final File textFile = createTextFile("log.txt", TEXT_FILE_SIZE, random);
+        final List<File> smallFiles = new ArrayList<>();
+        for (int i = 0; i < SMALL_FILE_COUNT; ++i) {
+            smallFiles.add(createRandomFile("small" + i + ".bin", SMALL_FILE_SIZE, random));
+        }
+
+        Workload[] workloads = {
+                new Workload() {
+                    @Override
+                    public String getName() {
+                        return "large file, " + TransferProtocol.getStripeCount(LARGE_FILE_SIZE) + " stripes";
+                    }
+
+                    @Override
+                    public long getBytes() {
+                        return largeFile.length();
+                    }
+
+                    @Override
+                    public void run(LoopbackLink forward, LoopbackLink back) throws IOException {
+                        sendChunked(largeFile, forward, back);
+                    }
+                },
+                new Workload() {
+                    @Override
+                    public String getName() {
+                        return "compressible text file";
+                    }
+
+                    @Override
+                    public long getBytes() {
+                        return textFile.length();
+                    }
+
+                    @Override
+                    public void run(LoopbackLink forward, LoopbackLink back) throws IOException {
+                        sendChunked(textFile, forward, back);
+                    }
+                },
+                new Workload() {
+                    @Override
+                    public String getName() {
+                        return SMALL_FILE_COUNT + " small files, a channel each";
+                    }
+
+                    @Override
+                    public long getBytes() {
+                        return SMALL_FILE_COUNT * (long) SMALL_FILE_SIZE;
+                    }
+
+                    @Override
+                    public void run(LoopbackLink forward, LoopbackLink back) throws IOException {
+                        sendEach(smallFiles, forward, back);
+                    }
+                },
+                new Workload() {
+                    @Override
+                    public String getName() {
+                        return SMALL_FILE_COUNT + " small files, bundled";
+                    }
+
+                    @Override
+                    public long getBytes() {
+                        return SMALL_FILE_COUNT * (long) SMALL_FILE_SIZE;
+                    }
+
+                    @Override
+                    public void run(LoopbackLink forward, LoopbackLink back) throws IOException {
+                        sendBundle(smallFiles, forward, back);
+                    }
+                }
+        };
+
+        ArrayList<Result> results = new ArrayList<>();
+        try {
+            for (LoopbackLink.Conditions conditions : CONDITIONS) {
+                for (Workload workload : workloads) {
+                    long[] runMs = new long[RUNS];
+                    for (int i = 0; i < RUNS; ++i) {
+                        //the same delays for each run, and each time the benchmark is run
+                        LoopbackLink forward = new LoopbackLink(conditions, SEED + i);
+                        LoopbackLink back = new LoopbackLink(conditions, SEED - i);
+                        long start = System.nanoTime();
+                        workload.run(forward, back);
+                        runMs[i] = (System.nanoTime() - start) / 1000000;
+                        deleteFiles(mReceivedDir);
+                        mReceivedDir.mkdirs();
+                    }
+                    Arrays.sort(runMs);
+                    Result result = new Result(workload.getName(), conditions, workload.getBytes(), runMs);
+                    Logger.d("run: " + conditions.name + " " + result.workload + " " + result.getMedianMs() + "ms");
+                    results.add(result);
+                }
+            }
+        } finally {
+            deleteFiles(mSourceDir);
+            deleteFiles(mReceivedDir);
+        }
+        return results;
+    }
+
+    /**
+     * Send the file with {@link ChunkedSender} and receive it with {@link ChunkedReceiver}, with a data channel
+     * and an acknowledgement channel for each stripe
+     */
+    private void sendChunked(File file, LoopbackLink forward, final LoopbackLink back) throws IOException {
+        String name = mNameCount.getAndIncrement() + "_" + file.getName();
+        final ChunkedSender sender = new ChunkedSender(mContext, Uri.fromFile(file), name, file.length());
+        int stripes = sender.getStripeCount();
+
+        final ChunkedReceiver[] receiver = new ChunkedReceiver[1];
+        OutputStream[] outs = new OutputStream[stripes];
+        ArrayList<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < stripes; ++i) {
+            final LoopbackLink.Channel channel = forward.openChannel(sender.getChannelName(i));
+            outs[i] = channel.getOutputStream();
+            workers.add(new Worker(channel.getName()) {
+                @Override
+                void work() throws IOException {
+                    BufferedInputStream in = new BufferedInputStream(channel.getInputStream());
+                    try {
+                        DataInputStream dataIn = new DataInputStream(in);
+                        TransferProtocol.readMagic(dataIn, TransferProtocol.MAGIC);
+                        TransferProtocol.Header header = TransferProtocol.Header.read(dataIn);
+                        //the stripes share a receiver
+                        ChunkedReceiver chunkedReceiver;
+                        synchronized (receiver) {
+                            if (receiver[0] == null) {
+                                receiver[0] = new ChunkedReceiver(mContext, header, mReceivedDir);
+                            }
+                            chunkedReceiver = receiver[0];
+                        }
+                        final LoopbackLink.Channel ackChannel = back.openChannel(
+                                TransferProtocol.ACK_CHANNEL_PREFIX + header.transferId + "/" + header.stripeIndex);
+                        startWorker(new Worker(ackChannel.getName()) {
+                            @Override
+                            void work() {
+                                sender.readAcks(ackChannel.getInputStream());
+                            }
+                        });
+                        chunkedReceiver.receive(header.stripeIndex, dataIn, ackChannel.getOutputStream());
+                    } finally {
+                        IOUtils.safeClose(in);
+                    }
+                }
+            });
+        }
+        for (Worker worker : workers) {
+            worker.start();
+        }
+
+        try {
+            sender.send(outs);
+        } finally {
+            for (OutputStream out : outs) {
+                IOUtils.safeClose(out);
+            }
+        }
+        for (Worker worker : workers) {
+            worker.finish();
+        }
+        if (!sender.isComplete()) {
+            throw new IOException(file.getName() + " was not all acknowledged");
+        }
+    }
+
+    /**
+     * Send each file on its own, with as many at once as the {@link TransferScheduler} allows
+     */
+    private void sendEach(List<File> files, final LoopbackLink forward, final LoopbackLink back) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(TransferScheduler.MAX_ACTIVE_CHANNELS);
+        try {
+            ArrayList<Future<Void>> futures = new ArrayList<>();
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        sendChunked(file, forward, back);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted sending files");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed sending files", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Send the files with {@link BundleSender} and receive them with {@link BundleReceiver} over one channel,
+     * with an acknowledgement channel back
+     */
+    private void sendBundle(List<File> files, LoopbackLink forward, final LoopbackLink back) throws IOException {
+        ArrayList<BundleSender.Entry> entries = new ArrayList<>();
+        for (File file : files) {
+            entries.add(new BundleSender.Entry(Uri.fromFile(file), mNameCount.getAndIncrement() + "_" + file.getName(), file.length()));
+        }
+        final BundleSender sender = new BundleSender(mContext, entries);
+        final LoopbackLink.Channel channel = forward.openChannel(sender.getChannelName());
+        final int fileCount = entries.size();
+        Worker worker = new Worker(channel.getName()) {
+            @Override
+            void work() throws IOException {
+                BufferedInputStream in = new BufferedInputStream(channel.getInputStream());
+                try {
+                    DataInputStream dataIn = new DataInputStream(in);
+                    TransferProtocol.readMagic(dataIn, TransferProtocol.BUNDLE_MAGIC);
+                    String bundleId = BundleReceiver.readBundleId(dataIn);
+                    final LoopbackLink.Channel ackChannel = back.openChannel(TransferProtocol.ACK_CHANNEL_PREFIX + bundleId + "/0");
+                    startWorker(new Worker(ackChannel.getName()) {
+                        @Override
+                        void work() {
+                            sender.readAcks(ackChannel.getInputStream());
+                        }
+                    });
+                    List<File> received = new BundleReceiver(mReceivedDir).receive(dataIn, ackChannel.getOutputStream());
+                    if (received.size() != fileCount) {
+                        throw new IOException("Received " + received.size() + " of " + fileCount + " files");
+                    }
+                } finally {
+                    IOUtils.safeClose(in);
+                }
+            }
+        };
+        worker.start();
+
+        try {
+            sender.send(channel.getOutputStream());
+        } finally {
+            IOUtils.safeClose(channel.getOutputStream());
+        }
+        worker.finish();
+        IOException error = sender.getAcknowledgementError();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Write a readable report of the results to the file
+     */
+    static void writeReport(List<Result> results, File file) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("DataTransfer loopback benchmark " + dateFormat.format(new Date()));
+            out.println("median of " + RUNS + " runs, seed=" + SEED);
+            LoopbackLink.Conditions conditions = null;
+            for (Result result : results) {
+                if (result.conditions != conditions) {
+                    conditions = result.conditions;
+                    out.println();
+                    out.println(conditions);
+                }
+                out.println(String.format(Locale.US, "  %-32s bytes=%d median=%dms rate=%.1fKB/s runs=%s",
+                        result.workload, result.bytes, result.getMedianMs(), result.getBytesPerSecond() / 1024,
+                        Arrays.toString(result.runMs)));
+            }
+            if (out.checkError()) {
+                throw new IOException("Failed to write " + file);
+            }
+        } finally {
+            IOUtils.safeClose(out);
+        }
+    }
+
+    private File createRandomFile(String name, int size, Random random) throws IOException {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        File file = new File(mSourceDir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            IOUtils.safeClose(out);
+        }
+        return file;
+    }
+
+    /**
+     * Create a file like a log, which compresses well
+     */
+    private File createTextFile(String name, int size, Random random) throws IOException {
+        String[] levels = {"D", "I", "W", "E"};
+        File file = new File(mSourceDir, name);
+        PrintWriter out = new PrintWriter(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            long written = 0;
+            for (int i = 0; written < size; ++i) {
+                String line = String.format(Locale.US, "%08d %s DataTransfer: chunk=%d bytes=%d elapsed=%dms",
+                        i, levels[random.nextInt(levels.length)], random.nextInt(1000), random.nextInt(262144),
+                        random.nextInt(5000));
+                out.println(line);
+                written += line.length() + 1;
+            }
+        } finally {
+            IOUtils.safeClose(out);
+        }
+        return file;
+    }
+
+    private static void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * One side of a channel, run on its own thread like the async tasks in {@link MainActivity}
+     */
+    private abstract class Worker extends Thread {
+        private final ArrayList<Worker> mChildren = new ArrayList<>();
+        private IOException mError;
+
+        Worker(String name) {
+            super(name);
+        }
+
+        abstract void work() throws IOException;
+
+        @Override
+        public void run() {
+            try {
+                work();
+            } catch (IOException e) {
+                Logger.w(e, "Worker: " + getName() + " failed");
+                mError = e;
+            }
+        }
+
+        /**
+         * Start another worker that this one waits for when it finishes
+         */
+        void startWorker(Worker worker) {
+            synchronized (mChildren) {
+                mChildren.add(worker);
+            }
+            worker.start();
+        }
+
+        /**
+         * Wait for this worker and those it started
+         *
+         * @throws IOException the first error any of them failed with
+         */
+        void finish() throws IOException {
+            try {
+                join();
+                ArrayList<Worker> children;
+                synchronized (mChildren) {
+                    children = new ArrayList<>(mChildren);
+                }
+                for (Worker child : children) {
+                    child.finish();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for " + getName());
+            }
+            if (mError != null) {
+                throw mError;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A sender whose receiver acknowledges what it has saved on channels back to the sender, one for each channel
+ * sent on. Writing everything doesn't mean it was all received, so the send is only finished once it was all
+ * written and every ack channel has ended, and whatever wasn't acknowledged by then is sent again.
+ */
+abstract class AcknowledgedSender {
+    private final int mAckChannelCount;
+    private boolean mSent;
+    private int mEndedAckChannels;
+
+    AcknowledgedSender(int ackChannelCount) {
+        mAckChannelCount = ackChannelCount;
+    }
+
+    /**
+     * @return the ID the receiver names its ack channels with
+     */
+    abstract String getTransferId();
+
+    /**
+     * Read the acknowledgements from one ack channel until it is closed, then call {@link #onAckChannelEnded()}.
+     * This blocks so must be called on a background thread.
+     */
+    abstract void readAcks(InputStream ackIn);
+
+    /**
+     * @return the number of acknowledgements so far, to tell if the receiver is still making progress
+     */
+    abstract int getAcknowledgedCount();
+
+    /**
+     * @return null if the receiver acknowledged everything, otherwise why it must be sent again
+     */
+    abstract IOException getAcknowledgementError();
+
+    /**
+     * @return true once everything was written to the channels
+     */
+    synchronized boolean isSent() {
+        return mSent;
+    }
+
+    /**
+     * @return true once all the ack channels have ended, nothing more will be acknowledged
+     */
+    synchronized boolean isAcknowledgementEnded() {
+        return mEndedAckChannels >= mAckChannelCount;
+    }
+
+    synchronized void onSent() {
+        mSent = true;
+    }
+
+    synchronized void onAckChannelEnded() {
+        ++mEndedAckChannels;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Receives a bundle of files sent by {@link BundleSender}, each file is written and renamed to its final name
+ * as soon as all of it has arrived instead of waiting for the whole bundle, and acknowledged to the sender.
+ * <p>
+ * Files that weren't acknowledged are sent again, and an ack can be lost with the channel, so a file that
+ * already has the same name, size and CRC32 is one kept from an earlier attempt and is used instead of
+ * saving another copy.
+ */
+class BundleReceiver {
+    private static final String PART_SUFFIX = ".part";
+    //acks are small, flush them in batches rather than after every tiny file
+    private static final int ACK_FLUSH_INTERVAL = 16;
+
+    private final File mOutputDir;
+
+    BundleReceiver(File outputDir) {
+        mOutputDir = outputDir;
+    }
+
+    /**
+     * Read the version and bundle ID after the magic number, the ID names the ack channel for {@link #receive}
+     */
+    static String readBundleId(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != TransferProtocol.VERSION) {
+            throw new IOException("Unsupported bundle version " + version);
+        }
+        return in.readUTF();
+    }
+
+    /**
+     * Read the files from the channel after the bundle ID, writing the index of each file saved to the ack channel.
+     * This blocks so must be called on a background thread.
+     *
+     * @param ackOut the stream to acknowledge files to the sender, it is closed once the bundle has ended
+     * @return the files received
+     * @throws IOException if the channel ended early or any file failed its CRC check, the files before it are kept
+     */
+    List<File> receive(DataInputStream in, OutputStream ackOut) throws IOException {
+        int fileCount = in.readInt();
+        Logger.d("receive: bundle of " + fileCount + " files");
+
+        DataOutputStream ack = new DataOutputStream(new BufferedOutputStream(ackOut));
+        try {
+            return receive(in, fileCount, ack);
+        } finally {
+            //closing it tells the sender there are no more acks
+            IOUtils.safeClose(ack);
+        }
+    }
+
+    private List<File> receive(DataInputStream in, int fileCount, DataOutputStream ack) throws IOException {
+        ArrayList<File> files = new ArrayList<>(fileCount);
+        int failed = 0;
+        int index = -1;
+        byte type;
+        while ((type = in.readByte()) == TransferProtocol.FRAME_FILE) {
+            ++index;
+            //only use the name, the sender can't choose where it is written
+            String name = new File(in.readUTF()).getName();
+            long size = in.readLong();
+            if (size < 0) {
+                throw new IOException("Invalid size " + size + " for " + name);
+            }
+
+            File partFile = new File(mOutputDir, name + PART_SUFFIX);
+            CheckedInputStream fileIn = new CheckedInputStream(ByteStreams.limit(in, size), new CRC32());
+            long received = FileChannels.copy(fileIn, partFile, size);
+            if (received < size) {
+                partFile.delete();
+                throw new EOFException("Bundle ended after " + received + " of " + size + " bytes of " + name);
+            }
+
+            int crc = (int) fileIn.getChecksum().getValue();
+            if (crc != in.readInt()) {
+                //the next file still starts after this one, so keep going, it isn't acknowledged so it is sent again
+                Logger.w("receive: " + name + " failed CRC check");
+                partFile.delete();
+                ++failed;
+                continue;
+            }
+
+            File existing = new File(mOutputDir, name);
+            if (isSameFile(existing, size, crc)) {
+                Logger.d("receive: already have " + existing);
+                partFile.delete();
+                files.add(existing);
+                acknowledge(ack, index);
+                continue;
+            }
+
+            File file = FileChannels.getUniqueFile(mOutputDir, name);
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + partFile + " to " + file);
+            }
+            Logger.d("receive: unpacked " + file);
+            files.add(file);
+            acknowledge(ack, index);
+        }
+
+        if (type != TransferProtocol.FRAME_END) {
+            throw new IOException("Invalid frame type " + type);
+        }
+        if (failed > 0 || files.size() != fileCount) {
+            throw new IOException("Received " + files.size() + " of " + fileCount + " files");
+        }
+        return files;
+    }
+
+    private static void acknowledge(DataOutputStream ack, int index) throws IOException {
+        ack.writeInt(index);
+        if (ack.size() % (4 * ACK_FLUSH_INTERVAL) == 0) {
+            ack.flush();
+        }
+    }
+
+    /**
+     * @return true if the file exists with the size and CRC32
+     */
+    private static boolean isSameFile(File file, long size, int crc) throws IOException {
+        if (!file.isFile() || file.length() != size) {
+            return false;
+        }
+        CheckedInputStream fileIn = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        try {
+            ByteStreams.exhaust(fileIn);
+        } finally {
+            IOUtils.safeClose(fileIn);
+        }
+        return (int) fileIn.getChecksum().getValue() == crc;
+    }
+}
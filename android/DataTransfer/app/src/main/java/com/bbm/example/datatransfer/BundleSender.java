@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sends many small files one after another over a single channel using the bundle framing from
+ * {@link TransferProtocol}, so there is only one channel to set up for all of them.
+ * <p>
+ * The receiver acknowledges each file it saved, the ones it didn't are returned by
+ * {@link #getUnacknowledgedEntries()} to be sent again.
+ */
+class BundleSender extends AcknowledgedSender {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * A file to include in the bundle
+     */
+    static class Entry {
+        final Uri fileUri;
+        final String fileName;
+        final long fileSize;
+
+        Entry(Uri fileUri, String fileName, long fileSize) {
+            this.fileUri = fileUri;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+        }
+    }
+
+    private final Context mContext;
+    private final List<Entry> mEntries;
+    private final String mBundleId;
+    //guarded by this
+    private final boolean[] mAcknowledged;
+    private int mAcknowledgedCount;
+
+    BundleSender(Context context, List<Entry> entries) {
+        //one ack channel for the one channel sent on
+        super(1);
+        mContext = context.getApplicationContext();
+        mEntries = new ArrayList<>(entries);
+        mAcknowledged = new boolean[mEntries.size()];
+
+        //the same files give the same ID, so acks for an earlier attempt still match it
+        StringBuilder source = new StringBuilder();
+        long totalSize = 0;
+        for (Entry entry : mEntries) {
+            source.append(entry.fileUri).append('|').append(entry.fileName).append('|');
+            totalSize += entry.fileSize;
+        }
+        mBundleId = TransferProtocol.createTransferId(source.toString(), getChannelName(), totalSize);
+    }
+
+    @Override
+    String getTransferId() {
+        return mBundleId;
+    }
+
+    /**
+     * @return the name for the channel, the receiver shows it for the bundle
+     */
+    String getChannelName() {
+        return TransferProtocol.BUNDLE_CHANNEL_PREFIX + mEntries.size() + " files";
+    }
+
+    /**
+     * @return the number of bytes that will be written to the channel, used as the channel expected size
+     */
+    long getChannelSize() throws UnsupportedEncodingException {
+        long size = TransferProtocol.getBundleHeaderSize(mBundleId) + TransferProtocol.BUNDLE_END_FRAME_SIZE;
+        for (Entry entry : mEntries) {
+            size += TransferProtocol.getBundleEntryOverhead(entry.fileName) + entry.fileSize;
+        }
+        return size;
+    }
+
+    /**
+     * Write all the files to the channel. This blocks so must be called on a background thread.
+     */
+    void send(OutputStream channelOut) throws IOException {
+        Logger.d("send: bundle of " + mEntries.size() + " files");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channelOut, BUFFER_SIZE));
+        out.writeInt(TransferProtocol.BUNDLE_MAGIC);
+        out.writeInt(TransferProtocol.VERSION);
+        out.writeUTF(mBundleId);
+        out.writeInt(mEntries.size());
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        for (Entry entry : mEntries) {
+            out.writeByte(TransferProtocol.FRAME_FILE);
+            out.writeUTF(entry.fileName);
+            out.writeLong(entry.fileSize);
+
+            InputStream in = openFile(entry);
+            crc.reset();
+            try {
+                //exactly the size given in the frame, even if the file changed since
+                long remaining = entry.fileSize;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException(entry.fileName + " ended " + remaining + " bytes early");
+                    }
+                    crc.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            } finally {
+                IOUtils.safeClose(in);
+            }
+            out.writeInt((int) crc.getValue());
+        }
+
+        out.writeByte(TransferProtocol.FRAME_END);
+        out.flush();
+        onSent();
+    }
+
+    /**
+     * Read the index of each file the receiver saved until the channel is closed.
+     * This blocks so must be called on a background thread.
+     */
+    @Override
+    void readAcks(InputStream ackIn) {
+        DataInputStream in = new DataInputStream(ackIn);
+        try {
+            while (true) {
+                int index = in.readInt();
+                synchronized (this) {
+                    if (index < 0 || index >= mAcknowledged.length) {
+                        Logger.w("readAcks: invalid file index " + index);
+                    } else if (!mAcknowledged[index]) {
+                        mAcknowledged[index] = true;
+                        ++mAcknowledgedCount;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            //the receiver closed the ack channel
+        } catch (IOException e) {
+            Logger.w(e, "readAcks: ack channel failed");
+        } finally {
+            IOUtils.safeClose(in);
+        }
+        onAckChannelEnded();
+    }
+
+    @Override
+    synchronized int getAcknowledgedCount() {
+        return mAcknowledgedCount;
+    }
+
+    @Override
+    synchronized IOException getAcknowledgementError() {
+        if (mAcknowledgedCount < mAcknowledged.length) {
+            return new IOException("The receiver saved " + mAcknowledgedCount + " of " + mAcknowledged.length + " files");
+        }
+        return null;
+    }
+
+    /**
+     * @return the files the receiver hasn't acknowledged, the ones to send again
+     */
+    synchronized List<Entry> getUnacknowledgedEntries() {
+        ArrayList<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < mAcknowledged.length; ++i) {
+            if (!mAcknowledged[i]) {
+                entries.add(mEntries.get(i));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Open the file of the entry to read it into the bundle
+     */
+    InputStream openFile(Entry entry) throws IOException {
+        InputStream in = mContext.getContentResolver().openInputStream(entry.fileUri);
+        if (in == null) {
+            throw new IOException("Unable to open " + entry.fileUri);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+
+import com.bbm.sdk.support.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The digest of each chunk received, saved next to the {@link TransferState} so a resumed transfer can be
+ * verified without reading the chunks received before back from the file.
+ * Each digest is written at its chunk's offset so chunks from any stripe can be added in any order.
+ */
+class ChunkDigests {
+    private static final String DIR = "transfers";
+
+    private final File mFile;
+    private FileChannel mChannel;
+
+    private ChunkDigests(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @param name unique name for the transfer and direction, the same as the state
+     */
+    static ChunkDigests open(Context context, String name) {
+        return new ChunkDigests(new File(new File(context.getFilesDir(), DIR), name + ".digests"));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(TransferProtocol.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if digests were saved by a previous attempt
+     */
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    void put(int index, byte[] digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        long position = (long) index * TransferProtocol.DIGEST_SIZE;
+        FileChannel channel = getChannel();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    byte[] get(int index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TransferProtocol.DIGEST_SIZE);
+        long position = (long) index * TransferProtocol.DIGEST_SIZE;
+        FileChannel channel = getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("No digest for chunk " + index);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Make sure the digests are written before the chunks are marked done in the state
+     */
+    void sync() throws IOException {
+        getChannel().force(false);
+    }
+
+    synchronized void close() {
+        IOUtils.safeClose(mChannel);
+        mChannel = null;
+    }
+
+    /**
+     * Remove the saved digests once the transfer is complete or has to start over
+     */
+    void delete() {
+        close();
+        mFile.delete();
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (mChannel == null) {
+            File dir = mFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        }
+        return mChannel;
+    }
+}
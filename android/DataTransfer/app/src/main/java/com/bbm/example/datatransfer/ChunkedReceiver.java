@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives a file sent by {@link ChunkedSender} into a partial file, and renames it once all chunks are received.
+ * Chunks are acknowledged only after they and the state are saved, so the sender never skips a chunk that
+ * could be lost if this app is stopped. The partial file is preallocated to the file size and chunks are written
+ * at their offset through a {@link FileChannel}, so chunks can arrive in any order without seeking.
+ * For a striped file there is one receiver shared by the channels of all stripes, each calls {@link #receive}
+ * on its own thread and the last stripe to end completes the file.
+ * <p>
+ * The digest of each chunk is saved as it is written, and when a stripe ends the digest of its chunks is
+ * compared to the one sent. If any stripe doesn't match the partial file is discarded, and instead of the last
+ * acknowledgements the sender is told to restart so sending it again starts over.
+ */
+class ChunkedReceiver {
+    //sync the file and state, then acknowledge, after this many chunks
+    private static final int SAVE_INTERVAL = 16;
+    private static final String PART_SUFFIX = ".part";
+
+    private final TransferProtocol.Header mHeader;
+    private final TransferState mState;
+    private final ChunkDigests mDigests;
+    private final File mOutputDir;
+    private final File mPartFile;
+    private FileChannel mFile;
+    private int mEndedStripes;
+    private boolean mDigestMismatch;
+
+    ChunkedReceiver(Context context, TransferProtocol.Header header, File outputDir) {
+        mHeader = header;
+        mState = TransferState.load(context, "in_" + header.transferId, header.getChunkCount());
+        mDigests = ChunkDigests.open(context, "in_" + header.transferId);
+        if (!mDigests.exists() && mState.getDoneCount() > 0) {
+            //received by a version that didn't save digests, they can't be verified
+            Logger.w("ChunkedReceiver: no digests for " + header.fileName + ", starting over");
+            mState.clear();
+        }
+        mOutputDir = outputDir;
+        //by transfer ID like the state, so two different files with the same name don't share a partial file
+        mPartFile = new File(outputDir, "." + header.transferId + PART_SUFFIX);
+    }
+
+    String getTransferId() {
+        return mHeader.transferId;
+    }
+
+    /**
+     * Read the chunks from the channel of one stripe into the file. This blocks so must be called on a background thread.
+     *
+     * @param stripeIndex the stripe the channel is for
+     * @param ackOut the stream to acknowledge chunks to the sender
+     * @return the complete file, or null if other stripes have not ended yet
+     * @throws IOException if the channel ended before all chunks were received, what was received is kept to resume
+     */
+    File receive(int stripeIndex, DataInputStream in, OutputStream ackOut) throws IOException {
+        Logger.d("receive: " + mHeader.fileName + " stripe=" + stripeIndex + "/" + mHeader.stripeCount
+                + " done=" + mState.getDoneCount() + "/" + mHeader.getChunkCount());
+
+        DataOutputStream acks = new DataOutputStream(new BufferedOutputStream(ackOut));
+        ArrayList<Integer> unacknowledged = new ArrayList<>();
+        FileChannel file = openFile();
+        Inflater inflater = null;
+        boolean lastStripe;
+        try {
+            byte[] buffer = new byte[mHeader.chunkSize];
+            byte[] compressed = null;
+            CRC32 crc = new CRC32();
+            MessageDigest chunkDigest = ChunkDigests.newDigest();
+            byte type;
+            while ((type = in.readByte()) == TransferProtocol.FRAME_CHUNK || type == TransferProtocol.FRAME_DEFLATED_CHUNK) {
+                int index = in.readInt();
+                int frameLength = in.readInt();
+                int expectedCrc = in.readInt();
+                if (index < 0 || index >= mHeader.getChunkCount()) {
+                    throw new IOException("Invalid chunk " + index);
+                }
+                int length = mHeader.getChunkLength(index);
+                if (type == TransferProtocol.FRAME_CHUNK) {
+                    if (frameLength != length) {
+                        throw new IOException("Invalid chunk " + index + " length " + frameLength);
+                    }
+                    in.readFully(buffer, 0, length);
+                } else {
+                    if (frameLength < 0 || frameLength > mHeader.chunkSize) {
+                        throw new IOException("Invalid compressed chunk " + index + " length " + frameLength);
+                    }
+                    if (inflater == null) {
+                        inflater = new Inflater();
+                        compressed = new byte[mHeader.chunkSize];
+                    }
+                    in.readFully(compressed, 0, frameLength);
+                    try {
+                        Compression.inflate(inflater, compressed, frameLength, buffer, length);
+                    } catch (DataFormatException e) {
+                        //don't acknowledge it so it is sent again when resumed
+                        Logger.w(e, "receive: chunk " + index + " failed to inflate for " + mHeader.fileName);
+                        continue;
+                    }
+                }
+
+                crc.reset();
+                crc.update(buffer, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    //don't acknowledge it so it is sent again when resumed
+                    Logger.w("receive: chunk " + index + " failed CRC check for " + mHeader.fileName);
+                    continue;
+                }
+
+                //positional writes don't share a file pointer so the stripes don't need to lock
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                long position = (long) index * mHeader.chunkSize;
+                while (chunk.hasRemaining()) {
+                    position += file.write(chunk, position);
+                }
+                chunkDigest.update(buffer, 0, length);
+                mDigests.put(index, chunkDigest.digest());
+                mState.markDone(index);
+                unacknowledged.add(index);
+                if (unacknowledged.size() >= SAVE_INTERVAL) {
+                    saveAndAcknowledge(file, acks, unacknowledged);
+                }
+            }
+
+            if (type != TransferProtocol.FRAME_END) {
+                throw new IOException("Invalid frame type " + type);
+            }
+            byte[] stripeDigest = new byte[TransferProtocol.DIGEST_SIZE];
+            in.readFully(stripeDigest);
+            verifyStripe(stripeIndex, stripeDigest);
+        } finally {
+            try {
+                if (hasDigestMismatch()) {
+                    //the file will be discarded, so the sender must forget the chunks acknowledged before
+                    acks.writeInt(TransferProtocol.ACK_RESTART);
+                    acks.flush();
+                } else {
+                    saveAndAcknowledge(file, acks, unacknowledged);
+                }
+            } catch (IOException e) {
+                //the chunks are saved, the sender will find out when resuming
+                Logger.w(e, "receive: failed to acknowledge " + unacknowledged.size() + " chunks");
+            }
+            IOUtils.safeClose(acks);
+            if (inflater != null) {
+                inflater.end();
+            }
+            lastStripe = endStripe();
+            if (lastStripe && hasDigestMismatch()) {
+                discard();
+            }
+        }
+
+        if (!lastStripe) {
+            //other stripes are still writing
+            return null;
+        }
+        if (hasDigestMismatch()) {
+            throw new IOException("File digest mismatch for " + mHeader.fileName + ", it must be sent again");
+        }
+
+        if (!mState.isComplete()) {
+            throw new IOException("Transfer incomplete, received " + mState.getDoneCount() + " of " + mHeader.getChunkCount() + " chunks");
+        }
+        return complete();
+    }
+
+    /**
+     * @return true once the channels for all stripes have ended
+     */
+    synchronized boolean isEnded() {
+        return mEndedStripes >= mHeader.stripeCount;
+    }
+
+    private synchronized FileChannel openFile() throws IOException {
+        if (mFile == null) {
+            mFile = FileChannels.open(mPartFile, mHeader.fileSize);
+        }
+        return mFile;
+    }
+
+    /**
+     * @return true if this was the last stripe to end, the file is closed
+     */
+    private synchronized boolean endStripe() {
+        if (++mEndedStripes < mHeader.stripeCount) {
+            return false;
+        }
+        IOUtils.safeClose(mFile);
+        mFile = null;
+        mDigests.close();
+        return true;
+    }
+
+    private synchronized boolean hasDigestMismatch() {
+        return mDigestMismatch;
+    }
+
+    /**
+     * Compare the digest of all chunks in the stripe to the one sent, if all of them have been received
+     */
+    private void verifyStripe(int stripeIndex, byte[] expectedDigest) throws IOException {
+        MessageDigest stripeDigest = ChunkDigests.newDigest();
+        for (int i = stripeIndex; i < mHeader.getChunkCount(); i += mHeader.stripeCount) {
+            if (!mState.isDone(i)) {
+                //can't be verified until the rest is received
+                return;
+            }
+            stripeDigest.update(mDigests.get(i));
+        }
+        if (!MessageDigest.isEqual(stripeDigest.digest(), expectedDigest)) {
+            synchronized (this) {
+                mDigestMismatch = true;
+            }
+            throw new IOException("Digest mismatch for stripe " + stripeIndex + " of " + mHeader.fileName);
+        }
+    }
+
+    /**
+     * Remove everything received so the file is sent again from the start
+     */
+    private void discard() {
+        Logger.w("receive: discarding " + mPartFile + " after digest mismatch");
+        mState.clear();
+        mState.delete();
+        mDigests.delete();
+        mPartFile.delete();
+    }
+
+    private void saveAndAcknowledge(FileChannel file, DataOutputStream acks, ArrayList<Integer> unacknowledged) throws IOException {
+        if (unacknowledged.isEmpty()) {
+            return;
+        }
+        file.force(false);
+        mDigests.sync();
+        mState.save();
+        for (Integer index : unacknowledged) {
+            acks.writeInt(index);
+        }
+        unacknowledged.clear();
+        acks.flush();
+    }
+
+    /**
+     * Trim and rename the partial file to the final name
+     */
+    private File complete() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mPartFile, "rw");
+        try {
+            //could be longer if there was an old partial file
+            file.setLength(mHeader.fileSize);
+        } finally {
+            IOUtils.safeClose(file);
+        }
+
+        //only use the name, the sender can't choose where it is written
+        String name = new File(mHeader.fileName).getName();
+        File outputFile = FileChannels.getUniqueFile(mOutputDir, name);
+        if (!mPartFile.renameTo(outputFile)) {
+            throw new IOException("Failed to rename " + mPartFile + " to " + outputFile);
+        }
+        mState.delete();
+        mDigests.delete();
+        Logger.d("receive: completed " + outputFile);
+        return outputFile;
+    }
+}
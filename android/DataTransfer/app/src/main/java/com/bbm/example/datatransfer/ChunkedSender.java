@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Sends a file in chunks using the {@link TransferProtocol}, skipping the chunks the receiver already acknowledged
+ * in a previous attempt.
+ * <p>
+ * The calling thread reads the file in order into a small pool of chunk buffers shared by all stripes, and a thread
+ * for each stripe writes its chunks to its channel. Reading ahead keeps each channel busy while the others are
+ * blocked, and a slow channel only holds up the reader once the pool is used up.
+ * <p>
+ * Files that compress well, known from the MIME type or else from the entropy of the first chunk read,
+ * have each chunk Deflate compressed by the stripe writer when that makes it smaller.
+ * <p>
+ * The stripe writers also digest every chunk of their stripe for the digest sent at the end, chunks the receiver
+ * already has are still read and digested but not sent. If the receiver finds the digest doesn't match it
+ * asks to restart, all chunks are then forgotten and the send fails so it is retried from the start.
+ * <p>
+ * Writing every chunk doesn't mean the receiver kept them all, a chunk that fails its CRC check isn't
+ * acknowledged. The send is only finished once all the ack channels have ended, and if some chunks weren't
+ * acknowledged by then it is retried so only those chunks are sent again.
+ */
+class ChunkedSender extends AcknowledgedSender {
+    //save the acknowledged chunks after this many so not too much is resent after a crash
+    private static final int SAVE_INTERVAL = 16;
+    //chunk buffers that can be read ahead for each stripe
+    private static final int READ_AHEAD_PER_STRIPE = 2;
+
+    private final Context mContext;
+    private final Uri mFileUri;
+    private final TransferProtocol.Header mHeader;
+    private final TransferState mState;
+    //null if the content needs to be sampled to decide
+    private final Boolean mCompressible;
+    //set when the receiver discarded the file, later acknowledgements are for chunks it no longer has
+    private boolean mRestarted;
+
+    private static class Chunk {
+        //sent to each stripe after the last chunk
+        static final Chunk END = new Chunk(-1, null, 0, false, false);
+
+        final int index;
+        final byte[] buffer;
+        final int length;
+        final boolean compress;
+        //false if the receiver already has it and it is only digested
+        final boolean send;
+
+        Chunk(int index, byte[] buffer, int length, boolean compress, boolean send) {
+            this.index = index;
+            this.buffer = buffer;
+            this.length = length;
+            this.compress = compress;
+            this.send = send;
+        }
+    }
+
+    ChunkedSender(Context context, Uri fileUri, String fileName, long fileSize) {
+        //an ack channel for each stripe
+        super(TransferProtocol.getStripeCount(fileSize));
+        mContext = context.getApplicationContext();
+        mFileUri = fileUri;
+        String transferId = TransferProtocol.createTransferId(fileUri.toString(), fileName, fileSize);
+        mHeader = new TransferProtocol.Header(transferId, fileName, fileSize, TransferProtocol.DEFAULT_CHUNK_SIZE, 0,
+                TransferProtocol.getStripeCount(fileSize));
+        mState = TransferState.load(mContext, "out_" + transferId, mHeader.getChunkCount());
+        mCompressible = Compression.isCompressible(mContext.getContentResolver().getType(fileUri));
+    }
+
+    @Override
+    String getTransferId() {
+        return mHeader.transferId;
+    }
+
+    int getStripeCount() {
+        return mHeader.stripeCount;
+    }
+
+    /**
+     * @return the name for the channel of the stripe
+     */
+    String getChannelName(int stripe) {
+        return mHeader.forStripe(stripe).getChannelName();
+    }
+
+    /**
+     * @return the number of bytes that will be written to the channel of the stripe, used as the channel expected size
+     */
+    long getChannelSize(int stripe) throws IOException {
+        long size = mHeader.forStripe(stripe).getSize() + TransferProtocol.END_FRAME_SIZE;
+        for (int i = stripe; i < mHeader.getChunkCount(); i += mHeader.stripeCount) {
+            if (!mState.isDone(i)) {
+                size += TransferProtocol.CHUNK_FRAME_OVERHEAD + mHeader.getChunkLength(i);
+            }
+        }
+        return size;
+    }
+
+    boolean isComplete() {
+        return mState.isComplete();
+    }
+
+    /**
+     * @return true if the receiver discarded the file, so it must be sent again from the start
+     */
+    synchronized boolean isRestarted() {
+        return mRestarted;
+    }
+
+    @Override
+    int getAcknowledgedCount() {
+        return mState.getDoneCount();
+    }
+
+    @Override
+    IOException getAcknowledgementError() {
+        if (isRestarted()) {
+            return new IOException("The receiver discarded " + mHeader.fileName);
+        }
+        if (!isComplete()) {
+            return new IOException("The receiver acknowledged " + mState.getDoneCount() + " of "
+                    + mHeader.getChunkCount() + " chunks of " + mHeader.fileName);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if chunks might be sent compressed, so less than the channel size might be written
+     */
+    boolean mayCompress() {
+        return !Boolean.FALSE.equals(mCompressible);
+    }
+
+    /**
+     * Write the chunks that are not done yet to the channels. This blocks so must be called on a background thread.
+     *
+     * @param channelOuts the output stream for each stripe
+     */
+    void send(OutputStream[] channelOuts) throws IOException {
+        Logger.d("send: " + mHeader.fileName + " done=" + mState.getDoneCount() + "/" + mHeader.getChunkCount()
+                + " stripes=" + mHeader.stripeCount);
+
+        int stripes = mHeader.stripeCount;
+        int bufferCount = stripes * READ_AHEAD_PER_STRIPE;
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; ++i) {
+            freeBuffers.add(new byte[mHeader.chunkSize]);
+        }
+
+        StripeWriter[] writers = new StripeWriter[stripes];
+        for (int i = 0; i < stripes; ++i) {
+            //room for every buffer and the end so the reader never blocks on a full queue
+            writers[i] = new StripeWriter(mHeader.forStripe(i), channelOuts[i], freeBuffers, bufferCount + 1);
+            writers[i].start();
+        }
+
+        InputStream in = null;
+        try {
+            in = mContext.getContentResolver().openInputStream(mFileUri);
+            if (in == null) {
+                throw new IOException("Unable to open " + mFileUri);
+            }
+
+            Boolean compress = mCompressible;
+            for (int i = 0; i < mHeader.getChunkCount(); ++i) {
+                int length = mHeader.getChunkLength(i);
+                boolean send = !mState.isDone(i);
+                byte[] buffer = freeBuffers.take();
+                readFully(in, buffer, length);
+                if (compress == null && send) {
+                    compress = Compression.looksCompressible(buffer, length);
+                    Logger.d("send: " + mHeader.fileName + " compress=" + compress);
+                }
+                writers[i % stripes].mChunks.put(new Chunk(i, buffer, length, Boolean.TRUE.equals(compress), send));
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted sending " + mHeader.fileName);
+        } finally {
+            IOUtils.safeClose(in);
+            //always end the writers, if reading failed the receiver will find it is incomplete
+            for (StripeWriter writer : writers) {
+                writer.mChunks.add(Chunk.END);
+            }
+            for (StripeWriter writer : writers) {
+                joinQuietly(writer);
+            }
+        }
+
+        for (StripeWriter writer : writers) {
+            if (writer.mError != null) {
+                throw writer.mError;
+            }
+        }
+        if (isRestarted()) {
+            throw new IOException("Receiver discarded " + mHeader.fileName + ", it must be sent again");
+        }
+        onSent();
+    }
+
+    /**
+     * Writes the chunks for one stripe to its channel
+     */
+    private static class StripeWriter extends Thread {
+        final BlockingQueue<Chunk> mChunks;
+        private final TransferProtocol.Header mHeader;
+        private final OutputStream mChannelOut;
+        private final BlockingQueue<byte[]> mFreeBuffers;
+        volatile IOException mError;
+
+        StripeWriter(TransferProtocol.Header header, OutputStream channelOut, BlockingQueue<byte[]> freeBuffers, int capacity) {
+            super("ChunkedSender-" + header.stripeIndex);
+            mHeader = header;
+            mChannelOut = channelOut;
+            mFreeBuffers = freeBuffers;
+            mChunks = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(mChannelOut, TransferProtocol.CHUNK_FRAME_OVERHEAD + mHeader.chunkSize));
+            CRC32 crc = new CRC32();
+            MessageDigest chunkDigest = ChunkDigests.newDigest();
+            MessageDigest stripeDigest = ChunkDigests.newDigest();
+            Deflater deflater = null;
+            byte[] compressed = null;
+            try {
+                mHeader.write(out);
+            } catch (IOException e) {
+                mError = e;
+            }
+
+            while (true) {
+                Chunk chunk;
+                try {
+                    chunk = mChunks.take();
+                } catch (InterruptedException e) {
+                    mError = new InterruptedIOException("Interrupted writing stripe " + mHeader.stripeIndex);
+                    break;
+                }
+
+                if (chunk == Chunk.END) {
+                    break;
+                }
+
+                //after an error keep taking chunks so their buffers are freed and the reader isn't blocked
+                if (mError == null) {
+                    chunkDigest.update(chunk.buffer, 0, chunk.length);
+                    stripeDigest.update(chunkDigest.digest());
+                }
+                if (mError == null && chunk.send) {
+                    try {
+                        crc.reset();
+                        crc.update(chunk.buffer, 0, chunk.length);
+                        int compressedLength = -1;
+                        if (chunk.compress) {
+                            if (deflater == null) {
+                                deflater = Compression.newDeflater();
+                                compressed = new byte[mHeader.chunkSize];
+                            }
+                            compressedLength = Compression.deflate(deflater, chunk.buffer, chunk.length, compressed);
+                        }
+                        if (compressedLength >= 0) {
+                            out.writeByte(TransferProtocol.FRAME_DEFLATED_CHUNK);
+                            out.writeInt(chunk.index);
+                            out.writeInt(compressedLength);
+                            out.writeInt((int) crc.getValue());
+                            out.write(compressed, 0, compressedLength);
+                        } else {
+                            out.writeByte(TransferProtocol.FRAME_CHUNK);
+                            out.writeInt(chunk.index);
+                            out.writeInt(chunk.length);
+                            out.writeInt((int) crc.getValue());
+                            out.write(chunk.buffer, 0, chunk.length);
+                        }
+                    } catch (IOException e) {
+                        Logger.w(e, "StripeWriter: failed writing chunk " + chunk.index + " of " + mHeader.fileName);
+                        mError = e;
+                    }
+                }
+                mFreeBuffers.add(chunk.buffer);
+            }
+
+            if (deflater != null) {
+                deflater.end();
+            }
+
+            if (mError == null) {
+                try {
+                    out.writeByte(TransferProtocol.FRAME_END);
+                    out.write(stripeDigest.digest());
+                    out.flush();
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the acknowledgements from the receiver for one stripe until the channel is closed.
+     * This blocks so must be called on a background thread.
+     */
+    @Override
+    void readAcks(InputStream ackIn) {
+        DataInputStream in = new DataInputStream(ackIn);
+        int unsaved = 0;
+        try {
+            while (true) {
+                int index = in.readInt();
+                if (index == TransferProtocol.ACK_RESTART) {
+                    Logger.w("readAcks: receiver discarded " + mHeader.fileName + ", restarting");
+                    restart();
+                    continue;
+                }
+                if (isRestarted()) {
+                    //acknowledged by another stripe before the receiver discarded the file
+                    continue;
+                }
+                if (index < 0 || index >= mState.getChunkCount()) {
+                    Logger.w("readAcks: invalid chunk " + index + " for " + mHeader.fileName);
+                    continue;
+                }
+                mState.markDone(index);
+                if (++unsaved >= SAVE_INTERVAL) {
+                    mState.save();
+                    unsaved = 0;
+                }
+            }
+        } catch (EOFException e) {
+            //channel closed, normal end
+        } catch (IOException e) {
+            Logger.w(e, "readAcks: failed for " + mHeader.fileName);
+        } finally {
+            IOUtils.safeClose(in);
+        }
+
+        if (mState.isComplete()) {
+            Logger.d("readAcks: all chunks acknowledged for " + mHeader.fileName);
+            mState.delete();
+        } else {
+            mState.save();
+        }
+        onAckChannelEnded();
+    }
+
+    /**
+     * Forget all acknowledged chunks so the next attempt sends the whole file
+     */
+    private synchronized void restart() {
+        mRestarted = true;
+        mState.clear();
+        mState.save();
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("File ended after " + offset + " of " + length + " bytes");
+            }
+            offset += read;
+        }
+    }
+}
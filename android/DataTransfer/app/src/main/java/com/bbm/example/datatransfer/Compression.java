@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Decides which files are worth compressing and compresses chunks with Deflate at its fastest level,
+ * which is still several times smaller for text and logs while keeping up with the channel.
+ */
+final class Compression {
+    /**
+     * Content that is already compressed, there is no point sampling it
+     */
+    private static final String[] INCOMPRESSIBLE_TYPES = {
+            "image/", "video/", "audio/", "application/zip", "application/gzip", "application/x-gzip",
+            "application/x-7z-compressed", "application/x-rar-compressed", "application/x-bzip2",
+            "application/x-xz", "application/pdf", "application/vnd.android.package-archive"
+    };
+    private static final String[] COMPRESSIBLE_TYPES = {
+            "text/", "application/json", "application/xml", "application/javascript", "application/x-tar",
+            "application/sql", "application/x-sh"
+    };
+    //bits per byte, random or compressed data is close to 8
+    private static final double MAX_ENTROPY = 7.0;
+    //only compress a chunk if this much smaller
+    private static final double MIN_SAVING = 0.1;
+
+    private Compression() {
+    }
+
+    /**
+     * @return true if the type compresses well, false if it doesn't, or null if the content needs to be sampled
+     */
+    static Boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return null;
+        }
+        for (String type : INCOMPRESSIBLE_TYPES) {
+            if (mimeType.startsWith(type)) {
+                return false;
+            }
+        }
+        for (String type : COMPRESSIBLE_TYPES) {
+            if (mimeType.startsWith(type)) {
+                return true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Estimate if the data will compress from the entropy of its bytes
+     */
+    static boolean looksCompressible(byte[] sample, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; ++i) {
+            ++counts[sample[i] & 0xff];
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) < MAX_ENTROPY;
+    }
+
+    static Deflater newDeflater() {
+        return new Deflater(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Compress the bytes
+     *
+     * @return the compressed length, or -1 if it isn't enough smaller to be worth it
+     */
+    static int deflate(Deflater deflater, byte[] in, int length, byte[] out) {
+        deflater.reset();
+        deflater.setInput(in, 0, length);
+        deflater.finish();
+        int maxLength = (int) (length * (1 - MIN_SAVING));
+        int compressedLength = deflater.deflate(out, 0, Math.min(maxLength, out.length));
+        return deflater.finished() ? compressedLength : -1;
+    }
+
+    /**
+     * Decompress exactly the expected number of bytes
+     */
+    static void inflate(Inflater inflater, byte[] in, int length, byte[] out, int expectedLength) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(in, 0, length);
+        int inflatedLength = inflater.inflate(out, 0, expectedLength);
+        if (inflatedLength != expectedLength || !inflater.finished()) {
+            throw new DataFormatException("Inflated " + inflatedLength + " of " + expectedLength + " bytes");
+        }
+    }
+}
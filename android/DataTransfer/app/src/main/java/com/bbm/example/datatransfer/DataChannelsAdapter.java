@@ -19,6 +19,7 @@ package com.bbm.example.datatransfer;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.view.Choreographer;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -30,7 +31,7 @@ import android.widget.TextView;
 
 import com.bbm.sdk.media.BBMEDataChannel;
 import com.bbm.sdk.media.BBMEDataChannelSender;
-import com.bbm.sdk.reactive.ObservableMonitor;
+import com.bbm.sdk.reactive.Observer;
 import com.google.common.io.Files;
 
 import java.util.ArrayList;
@@ -38,16 +39,61 @@ import java.util.ArrayList;
 /**
  * An adapter for displaying a list of "transfer items".
  * A transfer item represents a file sent via a data channel.
+ * <p>
+ * The progress of the bound rows is sampled at most once per frame instead of on every change to the channels,
+ * and only the rows that visibly changed are updated, so a fast transfer doesn't flood the UI thread.
+ * Once a frame shows no change nothing more is sampled until one of the bound channels changes again.
  */
 public class DataChannelsAdapter extends RecyclerView.Adapter<DataChannelsAdapter.BBMEDataChannelViewHolder> {
 
     public static class TransferItem {
+        public enum State {
+            //Waiting for channels to be available to send
+            QUEUED,
+            ACTIVE,
+            //Waiting to retry sending after an error
+            PAUSED,
+            DONE
+        }
+
         public Uri mFileUri;
         public BBMEDataChannel mDataChannel;
+        //All the channels when the file is striped over several, the first is mDataChannel
+        public ArrayList<BBMEDataChannel> mDataChannels = new ArrayList<>();
+        public String mName;
+        public boolean mSending;
+        public State mState = State.ACTIVE;
         public boolean mError;
+        //Why it failed, if known
+        public String mErrorReason;
         public TransferItem(Uri fileUri, BBMEDataChannel channel) {
+            this(fileUri, channel, channel.getName());
+        }
+
+        public TransferItem(Uri fileUri, BBMEDataChannel channel, String name) {
+            mFileUri = fileUri;
+            mName = name;
+            setDataChannel(channel);
+        }
+
+        /**
+         * A file to send that doesn't have a channel yet
+         */
+        public TransferItem(Uri fileUri, String name) {
             mFileUri = fileUri;
+            mName = name;
+            mSending = true;
+            mState = State.QUEUED;
+        }
+
+        /**
+         * Replace the channels, for example when sending again after an error
+         */
+        public void setDataChannel(BBMEDataChannel channel) {
             mDataChannel = channel;
+            mDataChannels.clear();
+            mDataChannels.add(channel);
+            mSending = channel instanceof BBMEDataChannelSender;
         }
     }
 
@@ -59,15 +105,14 @@ public class DataChannelsAdapter extends RecyclerView.Adapter<DataChannelsAdapte
         public TransferItem mItem;
         public TextView mSizeView;
 
-        public ObservableMonitor mProgressObserver = new ObservableMonitor() {
-            @Override
-            protected void run() {
-                mProgressBarView.setProgress(mItem.mDataChannel.getProgress().get());
-                long bytesTransferred = mItem.mDataChannel.getBytesTransferred().get() / 1024;
-                long expectedSize = mItem.mDataChannel.getExpectedSize() / 1024;
-                mSizeView.setText(mSizeView.getContext().getString(R.string.transfer_size, bytesTransferred, expectedSize));
-            }
-        };
+        //The values last shown, -1 to show the next values
+        private TransferItem.State mShownState;
+        private String mShownErrorReason;
+        private int mShownProgress = -1;
+        private long mShownTransferredKb = -1;
+        private long mShownExpectedKb = -1;
+        //The channels the progress observer was added to
+        private final ArrayList<BBMEDataChannel> mObservedChannels = new ArrayList<>();
 
         public BBMEDataChannelViewHolder(View itemView) {
             super(itemView);
@@ -76,8 +121,125 @@ public class DataChannelsAdapter extends RecyclerView.Adapter<DataChannelsAdapte
             mTypeView = (ImageView)itemView.findViewById(R.id.transfer_type);
             mSizeView = (TextView)itemView.findViewById(R.id.transfer_bytes_size);
         }
+
+        /**
+         * Observe the channels of the bound item, so the rows are updated again when any of them change
+         */
+        void observeChannels() {
+            stopObservingChannels();
+            if (mItem != null) {
+                for (BBMEDataChannel channel : mItem.mDataChannels) {
+                    channel.getBytesTransferred().addObserver(mChannelObserver);
+                    channel.getProgress().addObserver(mChannelObserver);
+                    mObservedChannels.add(channel);
+                }
+            }
+        }
+
+        void stopObservingChannels() {
+            for (BBMEDataChannel channel : mObservedChannels) {
+                channel.getBytesTransferred().removeObserver(mChannelObserver);
+                channel.getProgress().removeObserver(mChannelObserver);
+            }
+            mObservedChannels.clear();
+        }
+
+        /**
+         * Show the current progress if it changed since last shown
+         *
+         * @return true if anything shown changed
+         */
+        boolean updateProgress() {
+            if (mItem.mError && mItem.mErrorReason != null) {
+                //Show why instead of the size
+                if (!mItem.mErrorReason.equals(mShownErrorReason)) {
+                    mSizeView.setText(mSizeView.getContext().getString(R.string.transfer_failed, mItem.mErrorReason));
+                    mShownErrorReason = mItem.mErrorReason;
+                    mShownState = null;
+                    mShownTransferredKb = -1;
+                    mShownExpectedKb = -1;
+                    return true;
+                }
+                return false;
+            }
+            mShownErrorReason = null;
+            if (mItem.mState == TransferItem.State.QUEUED || mItem.mState == TransferItem.State.PAUSED) {
+                //Nothing to track until it is started
+                if (mItem.mState != mShownState) {
+                    mSizeView.setText(mItem.mState == TransferItem.State.QUEUED ? R.string.transfer_queued : R.string.transfer_paused);
+                    mShownState = mItem.mState;
+                    mShownTransferredKb = -1;
+                    mShownExpectedKb = -1;
+                    return true;
+                }
+                return false;
+            }
+            mShownState = mItem.mState;
+
+            //Add up all the channels of a striped file
+            long bytesTransferred = 0;
+            long expectedSize = 0;
+            for (BBMEDataChannel channel : mItem.mDataChannels) {
+                bytesTransferred += channel.getBytesTransferred().get();
+                expectedSize += channel.getExpectedSize();
+            }
+            int progress;
+            if (mItem.mDataChannels.size() == 1) {
+                progress = mItem.mDataChannel.getProgress().get();
+            } else {
+                progress = expectedSize > 0 ? (int) (bytesTransferred * 100 / expectedSize) : 0;
+            }
+
+            boolean changed = false;
+            if (progress != mShownProgress) {
+                mProgressBarView.setProgress(progress);
+                mShownProgress = progress;
+                changed = true;
+            }
+            long transferredKb = bytesTransferred / 1024;
+            long expectedKb = expectedSize / 1024;
+            if (transferredKb != mShownTransferredKb || expectedKb != mShownExpectedKb) {
+                mSizeView.setText(mSizeView.getContext().getString(R.string.transfer_size, transferredKb, expectedKb));
+                mShownTransferredKb = transferredKb;
+                mShownExpectedKb = expectedKb;
+                changed = true;
+            }
+            return changed;
+        }
     }
 
+    //The rows currently bound to a transfer item
+    private final ArrayList<BBMEDataChannelViewHolder> mBoundHolders = new ArrayList<>();
+    private boolean mFrameCallbackPosted;
+
+    /**
+     * Updates all the bound rows once per frame while they keep changing, once a frame shows no change
+     * the channel observer starts it again
+     */
+    private final Choreographer.FrameCallback mProgressFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameCallbackPosted = false;
+            boolean changed = false;
+            for (BBMEDataChannelViewHolder holder : mBoundHolders) {
+                changed |= holder.updateProgress();
+            }
+            if (changed) {
+                postProgressUpdate();
+            }
+        }
+    };
+
+    /**
+     * Any change to a bound channel schedules an update for the next frame
+     */
+    private final Observer mChannelObserver = new Observer() {
+        @Override
+        public void changed() {
+            postProgressUpdate();
+        }
+    };
+
     private Context mContext;
     private ArrayList<TransferItem> mTransferItems;
 
@@ -97,7 +259,7 @@ public class DataChannelsAdapter extends RecyclerView.Adapter<DataChannelsAdapte
             public void onClick(View view) {
                 if (holder.mItem.mFileUri != null) {
                     Intent myIntent = new Intent(Intent.ACTION_VIEW);
-                    String ext = Files.getFileExtension(holder.mItem.mDataChannel.getName());
+                    String ext = Files.getFileExtension(holder.mItem.mName);
                     String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext);
                     myIntent.setDataAndType(holder.mItem.mFileUri, mimeType);
                     myIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -113,11 +275,20 @@ public class DataChannelsAdapter extends RecyclerView.Adapter<DataChannelsAdapte
     public void onBindViewHolder(BBMEDataChannelViewHolder holder, int position) {
         TransferItem item = mTransferItems.get(position);
         holder.mItem = item;
-        //Activate an observer to track the progress sending/receiving the file
-        holder.mProgressObserver.activate();
+        //Show the progress now, then track it each frame while sending/receiving the file
+        holder.mShownState = null;
+        holder.mShownErrorReason = null;
+        holder.mShownProgress = -1;
+        holder.mShownTransferredKb = -1;
+        holder.mShownExpectedKb = -1;
+        if (!mBoundHolders.contains(holder)) {
+            mBoundHolders.add(holder);
+        }
+        holder.updateProgress();
+        holder.observeChannels();
         //Set the name from the channel (file name in this example)
-        holder.mNameView.setText(item.mDataChannel.getName());
-        boolean isSending = item.mDataChannel instanceof BBMEDataChannelSender;
+        holder.mNameView.setText(item.mName);
+        boolean isSending = item.mSending;
         //Display a sending/receiving/error icon
         if (item.mError) {
             holder.mTypeView.setImageResource(R.drawable.ic_error_black_24dp);
@@ -135,7 +306,30 @@ public class DataChannelsAdapter extends RecyclerView.Adapter<DataChannelsAdapte
 
     @Override
     public void onViewRecycled(BBMEDataChannelViewHolder holder) {
+        holder.stopObservingChannels();
         holder.mItem = null;
-        holder.mProgressObserver.dispose();
+        mBoundHolders.remove(holder);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        for (BBMEDataChannelViewHolder holder : mBoundHolders) {
+            holder.stopObservingChannels();
+        }
+        if (mFrameCallbackPosted) {
+            Choreographer.getInstance().removeFrameCallback(mProgressFrameCallback);
+            mFrameCallbackPosted = false;
+        }
+    }
+
+    /**
+     * Update the rows on the next frame, any number of calls before then result in one update
+     */
+    public void postProgressUpdate() {
+        if (!mFrameCallbackPosted) {
+            mFrameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(mProgressFrameCallback);
+        }
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Writes received data to files through a {@link FileChannel}, with the file preallocated to the expected size
+ * so large files aren't extended and fragmented a little at a time. Small files are written without
+ * preallocating, and each thread reuses one copy buffer, so receiving many small files stays cheap.
+ */
+final class FileChannels {
+    //large and direct so the file channel writes it without another copy and with few system calls
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    //smaller files are written in a single copy, reserving the space first doesn't save anything
+    private static final long PREALLOCATE_MIN_SIZE = COPY_BUFFER_SIZE;
+
+    //a direct buffer is only freed when it is garbage collected, so each thread keeps the one it allocated
+    private static final ThreadLocal<ByteBuffer> sCopyBuffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+    };
+
+    private FileChannels() {
+    }
+
+    /**
+     * Open the file for positional writes, preallocated to the size
+     */
+    static FileChannel open(File file, long size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        preallocate(randomAccessFile, size);
+        return randomAccessFile.getChannel();
+    }
+
+    /**
+     * Reserve the space for the file, this doesn't change any data already in it
+     */
+    static void preallocate(RandomAccessFile file, long size) throws IOException {
+        if (size < PREALLOCATE_MIN_SIZE || file.length() >= size) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(file.getFD(), 0, size);
+        } catch (ErrnoException e) {
+            //not supported by every file system, the file will grow as it is written
+            Logger.d("preallocate: unable to preallocate " + size + " bytes, " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a file in the directory with the name, or with a number added if there is already one with that name
+     */
+    static File getUniqueFile(File dir, String name) {
+        File file = new File(dir, name);
+        for (int i = 1; file.exists(); ++i) {
+            file = new File(dir, "(" + i + ") " + name);
+        }
+        return file;
+    }
+
+    /**
+     * Write all of the stream to the file at increasing offsets, then trim the file to what was written
+     *
+     * @param expectedSize the size to preallocate, or 0 if unknown
+     * @return the number of bytes written
+     */
+    static long copy(InputStream in, File file, long expectedSize) throws IOException {
+        FileChannel out = open(file, expectedSize);
+        try {
+            ReadableByteChannel src = Channels.newChannel(in);
+            ByteBuffer buffer = sCopyBuffers.get();
+            buffer.clear();
+            long position = 0;
+            boolean end = false;
+            while (!end) {
+                end = src.read(buffer) < 0;
+                //only write once the buffer is full to keep writes large
+                if (end || !buffer.hasRemaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+            }
+            //the stream may have ended before the expected size
+            out.truncate(position);
+            return position;
+        } finally {
+            IOUtils.safeClose(out);
+        }
+    }
+}
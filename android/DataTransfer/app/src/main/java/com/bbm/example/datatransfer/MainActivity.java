@@ -67,19 +67,36 @@ import com.bbm.sdk.support.util.Logger;
 import com.bbm.sdk.support.util.PermissionsUtil;
 import com.bbm.sdk.support.util.SetupHelper;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 
-public class MainActivity extends AppCompatActivity implements BBMEDataChannelCreatedObserver {
+public class MainActivity extends AppCompatActivity implements BBMEDataChannelCreatedObserver, TransferScheduler.Sender {
 
     public static final String ACTIVE_CONNECTION_ID = "ACTIVE_CONNECTION_ID";
     private static final int REQUEST_CODE_PICK_FILE = 10001;
 
+    //Each channel is read or written by a loop that blocks until the channel ends, and a striped file only ends
+    //once all its channels and acknowledgements are running, so every loop needs its own thread instead of waiting
+    //for a free one in a bounded pool
+    private static final ExecutorService sChannelExecutor = Executors.newCachedThreadPool();
+
+    //A sent file whose receiver acknowledges nothing for this long is sent again, in case its ack channels never end
+    private static final long ACK_TIMEOUT_MS = 30 * 1000;
+
     private int mDataConnectionId = -1;
     private TextView mConnectionStatusTextView;
     private TextView mConnectionErrorTextView;
@@ -90,21 +107,52 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
 
     private ArrayList<DataChannelsAdapter.TransferItem> mTransfers = new ArrayList<>();
 
+    //Senders waiting for or reading acknowledgements from the receiver, by transfer ID
+    private final ConcurrentHashMap<String, AcknowledgedSender> mActiveSenders = new ConcurrentHashMap<>();
+    //The scheduler job of each active sender, finished once the receiver stops acknowledging
+    private final ConcurrentHashMap<String, TransferScheduler.Job> mSenderJobs = new ConcurrentHashMap<>();
+    //Files waiting to be sent, failed files are retried to resume from the last acknowledged chunk
+    private final TransferScheduler mScheduler = new TransferScheduler(this, new Runnable() {
+        @Override
+        public void run() {
+            mDataChannelsAdapter.notifyDataSetChanged();
+        }
+    });
+    //Receivers shared by the channels of a striped file, by transfer ID
+    private final ConcurrentHashMap<String, ChunkedReceiver> mActiveReceivers = new ConcurrentHashMap<>();
+    //The transfer item shown for the channels of a striped file, by transfer ID
+    private final HashMap<String, DataChannelsAdapter.TransferItem> mStripedTransfers = new HashMap<>();
+    //Throughput and latency of the channels and connection
+    private final TransferMetrics mMetrics = new TransferMetrics();
+    //Set once the other side announces it understands the TransferProtocol, until then files are sent plain
+    private boolean mPeerUsesTransferProtocol;
+    private boolean mHelloSent;
+
     //Monitor to observe the data connection
     ObservableMonitor mConnectionMonitor = new ObservableMonitor() {
         @Override
         protected void run() {
             BBMEDataConnection connection = BBMEnterprise.getInstance().getMediaManager().getDataConnection(mDataConnectionId).get();
+            mMetrics.connectionStateChanged(connection);
+            mScheduler.setConnected(connection.getState() == BBMEDataConnection.ConnectionState.CONNECTED);
             switch (connection.getState()) {
                 case CONNECTED:
                     mConnectionStatusTextView.setText(getString(R.string.connection_status, "Connected"));
                     //Show the send button when connected
                     sendFileFab.setVisibility(View.VISIBLE);
+                    sendHello(connection);
                     break;
                 case CONNECTING:
                     mConnectionStatusTextView.setText(getString(R.string.connection_status, "Connecting"));
-                    //Clear the list when we are starting a new connection
+                    //The other side might be a different version this time
+                    mPeerUsesTransferProtocol = false;
+                    mHelloSent = false;
+                    //Clear the list when we are starting a new connection, except for files still to be sent
                     mTransfers.clear();
+                    mTransfers.addAll(mScheduler.getPendingItems());
+                    mStripedTransfers.clear();
+                    mActiveReceivers.clear();
+                    mMetrics.clearChannels();
                     mDataChannelsAdapter.notifyDataSetChanged();
                     break;
                 case OFFERING:
@@ -116,6 +164,8 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
                     mStartStopConnectionButton.setText(R.string.create_connection);
                     //Hide the send button when disconnected
                     sendFileFab.setVisibility(View.GONE);
+                    mPeerUsesTransferProtocol = false;
+                    mHelloSent = false;
                     connection.setDataChannelCreatedObserver(null);
                     //Display a connection error if one exists
                     if (connection.getFailureReason() != BBMEDataConnection.FailReason.NO_FAILURE) {
@@ -267,6 +317,7 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
                 //Start an intent to pick a file to send
                 Intent pickFileIntent = new Intent(Intent.ACTION_GET_CONTENT);
                 pickFileIntent.setType("*/*");
+                pickFileIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                 startActivityForResult(pickFileIntent, REQUEST_CODE_PICK_FILE);
             }
         });
@@ -278,18 +329,60 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
     }
 
+    /**
+     * Announce that this side understands the TransferProtocol, once for each connection
+     */
+    private void sendHello(BBMEDataConnection connection) {
+        if (mHelloSent) {
+            return;
+        }
+        BBMEDataChannelSender hello = connection.createDataChannel(
+                TransferProtocol.HELLO_CHANNEL_NAME,
+                0,
+                BBMEDataConnection.ChannelType.STREAM
+        );
+        if (hello != null) {
+            mHelloSent = true;
+            IOUtils.safeClose(hello.getOutputStream());
+        }
+    }
+
     @Override
     public void onDataChannelCreated(String s, BBMEDataChannelReceiver receiver) {
-        //Add a new "transfer item" to the data channels adapter
-        DataChannelsAdapter.TransferItem transferItem = new DataChannelsAdapter.TransferItem(null, receiver);
-        mTransfers.add(transferItem);
+        if (receiver.getName().equals(TransferProtocol.HELLO_CHANNEL_NAME)) {
+            //Files can be sent in chunks from now on
+            Logger.d("onDataChannelCreated: peer uses the transfer protocol");
+            mPeerUsesTransferProtocol = true;
+            IOUtils.safeClose(receiver.getInputStream());
+            return;
+        }
+        if (receiver.getName().startsWith(TransferProtocol.ACK_CHANNEL_PREFIX)) {
+            //The receiver of a file or bundle we are sending is acknowledging what it saved
+            readAcks(receiver);
+            return;
+        }
+
+        //The channels of a striped file share one "transfer item"
+        String stripeTransferId = TransferProtocol.getStripeTransferId(receiver.getName());
+        DataChannelsAdapter.TransferItem transferItem = stripeTransferId != null ? mStripedTransfers.get(stripeTransferId) : null;
+        if (transferItem != null) {
+            transferItem.mDataChannels.add(receiver);
+        } else {
+            //Add a new "transfer item" to the data channels adapter
+            transferItem = new DataChannelsAdapter.TransferItem(null, receiver, TransferProtocol.getDisplayName(receiver.getName()));
+            mTransfers.add(transferItem);
+            if (stripeTransferId != null) {
+                mStripedTransfers.put(stripeTransferId, transferItem);
+            }
+        }
         mDataChannelsAdapter.notifyDataSetChanged();
+        mMetrics.track(receiver);
         writeFile(receiver, transferItem);
     }
 
     private void writeFile(final BBMEDataChannelReceiver receiver, final DataChannelsAdapter.TransferItem transferItem) {
-        //Create an asynctask to copy the data from the channel into a file
-        AsyncTask.execute(new Runnable() {
+        //Copy the data from the channel into a file in the background
+        sChannelExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 //Create a folder to write the incoming data to
@@ -299,49 +392,222 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
                     outputDir.mkdirs();
                 }
 
-                //Create a file using the "name" provided in the data channel
-                final File outputFile = new File(outputDirectoryPath + "/" + receiver.getName());
-                OutputStream fileOutputStream = null;
+                File outputFile = null;
+                ChunkedReceiver chunkedReceiver = null;
 
                 //Get the input stream from the data channel
-                InputStream dataChannelInputStream = receiver.getInputStream();
+                BufferedInputStream dataChannelInputStream = new BufferedInputStream(receiver.getInputStream());
 
                 try {
-                    fileOutputStream = new FileOutputStream(outputFile);
-                    //Read data from the input stream and copy it to the file
-                    IOUtils.copy(dataChannelInputStream, fileOutputStream);
-                } catch (IOException e) {
+                    //The channel name says how the file was sent, older versions only send plain files
+                    if (TransferProtocol.isChunkedChannel(receiver.getName())) {
+                        //Sent in chunks, write them to a partial file and acknowledge them so it can be resumed
+                        DataInputStream in = new DataInputStream(dataChannelInputStream);
+                        TransferProtocol.readMagic(in, TransferProtocol.MAGIC);
+                        TransferProtocol.Header header = TransferProtocol.Header.read(in);
+                        chunkedReceiver = getChunkedReceiver(header, outputDir);
+                        OutputStream ackOutputStream = openAckChannel(header.transferId, header.stripeIndex);
+                        //Only the last stripe of a striped file to end returns the file
+                        outputFile = chunkedReceiver.receive(header.stripeIndex, in, ackOutputStream);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                //Compressed chunks can end before the expected size
+                                mMetrics.channelEnded(receiver);
+                            }
+                        });
+                    } else if (TransferProtocol.isBundleChannel(receiver.getName())) {
+                        //Many small files, each one is written as soon as it arrives
+                        DataInputStream in = new DataInputStream(dataChannelInputStream);
+                        TransferProtocol.readMagic(in, TransferProtocol.BUNDLE_MAGIC);
+                        String bundleId = BundleReceiver.readBundleId(in);
+                        OutputStream ackOutputStream = openAckChannel(bundleId, 0);
+                        List<File> files = new BundleReceiver(outputDir).receive(in, ackOutputStream);
+                        //Nothing to open for the bundle as a whole
+                        Logger.d("writeFile: received " + files.size() + " files in " + receiver.getName());
+                        transferItem.mState = DataChannelsAdapter.TransferItem.State.DONE;
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mMetrics.channelEnded(receiver);
+                            }
+                        });
+                    } else {
+                        //Create a file using the "name" provided in the data channel, only the name so the sender
+                        //can't choose where it is written
+                        outputFile = new File(outputDir, new File(receiver.getName()).getName());
+                        //Read data from the input stream and write it to the file, preallocated to the expected size
+                        long received = FileChannels.copy(dataChannelInputStream, outputFile, receiver.getExpectedSize());
+                        if (received < receiver.getExpectedSize()) {
+                            //There is no digest for a plain file, but at least don't accept a truncated one
+                            throw new IOException("Received " + received + " of " + receiver.getExpectedSize() + " bytes");
+                        }
+                    }
+                } catch (final IOException e) {
                     //If an error occurred then mark the transfer as failed and display an error to the user
                     Logger.e(e);
+                    outputFile = null;
                     mMainHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            mMetrics.channelFailed(receiver, e);
+                            if (transferItem.mError) {
+                                //Another stripe of the same file already failed
+                                return;
+                            }
                             transferItem.mError = true;
+                            transferItem.mErrorReason = e.getMessage();
+                            transferItem.mState = DataChannelsAdapter.TransferItem.State.DONE;
                             mDataChannelsAdapter.notifyDataSetChanged();
-                            Toast.makeText(MainActivity.this, "IOException when writing received file " + receiver.getName(), Toast.LENGTH_LONG).show();
+                            Toast.makeText(MainActivity.this, "IOException when writing received file " + transferItem.mName, Toast.LENGTH_LONG).show();
                         }
                     });
                 } finally {
                     IOUtils.safeClose(dataChannelInputStream);
-                    IOUtils.safeClose(fileOutputStream);
+                    if (chunkedReceiver != null && chunkedReceiver.isEnded()) {
+                        mActiveReceivers.remove(chunkedReceiver.getTransferId(), chunkedReceiver);
+                    }
                 }
 
-                if (!transferItem.mError) {
+                if (outputFile != null) {
                     //Set the file uri in the transfer item
                     transferItem.mFileUri = FileProvider.getUriForFile(
                             MainActivity.this,
                             getApplicationContext().getPackageName() + ".fileprovider",
                             outputFile
                     );
+                    transferItem.mState = DataChannelsAdapter.TransferItem.State.DONE;
                 }
             }
         });
     }
 
+    /**
+     * Get the receiver for the transfer, the channels for all stripes of a file share the same one
+     */
+    private ChunkedReceiver getChunkedReceiver(TransferProtocol.Header header, File outputDir) {
+        ChunkedReceiver chunkedReceiver = new ChunkedReceiver(MainActivity.this, header, outputDir);
+        if (header.stripeCount == 1) {
+            return chunkedReceiver;
+        }
+        ChunkedReceiver existing = mActiveReceivers.putIfAbsent(header.transferId, chunkedReceiver);
+        return existing != null ? existing : chunkedReceiver;
+    }
+
+    /**
+     * Open a channel back to the sender to acknowledge the chunks received for one stripe, or the files of a bundle
+     */
+    private OutputStream openAckChannel(final String transferId, final int stripeIndex) throws IOException {
+        //channels are created on the main thread like the ones for sending files
+        FutureTask<BBMEDataChannelSender> task = new FutureTask<>(new Callable<BBMEDataChannelSender>() {
+            @Override
+            public BBMEDataChannelSender call() {
+                BBMEDataConnection connection = BBMEnterprise.getInstance().getMediaManager().getDataConnection(mDataConnectionId).get();
+                return connection.createDataChannel(
+                        TransferProtocol.ACK_CHANNEL_PREFIX + transferId + "/" + stripeIndex,
+                        0,
+                        BBMEDataConnection.ChannelType.STREAM
+                );
+            }
+        });
+        mMainHandler.post(task);
+        try {
+            BBMEDataChannelSender ackSender = task.get();
+            if (ackSender == null) {
+                throw new IOException("Unable to create ack channel for " + transferId);
+            }
+            return ackSender.getOutputStream();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to create ack channel for " + transferId, e);
+        }
+    }
+
+    private void readAcks(final BBMEDataChannelReceiver receiver) {
+        final String transferId = TransferProtocol.getAckTransferId(receiver.getName());
+        final AcknowledgedSender acknowledgedSender = mActiveSenders.get(transferId);
+        final TransferScheduler.Job job = mSenderJobs.get(transferId);
+        if (acknowledgedSender == null) {
+            Logger.w("No active sender for ack channel " + receiver.getName());
+            IOUtils.safeClose(receiver.getInputStream());
+            return;
+        }
+
+        sChannelExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acknowledgedSender.readAcks(receiver.getInputStream());
+                //There is an ack channel for each stripe, the send finishes once all have ended
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishIfAcknowledged(job, acknowledgedSender);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Called once everything was written, the job stays active until the receiver has acknowledged it
+     */
+    private void onSent(final TransferScheduler.Job job, final AcknowledgedSender acknowledgedSender) {
+        finishIfAcknowledged(job, acknowledgedSender);
+        //The receiver might never open or end its ack channels, give up once it stops acknowledging
+        mMainHandler.postDelayed(new Runnable() {
+            private int mAcknowledged = acknowledgedSender.getAcknowledgedCount();
+
+            @Override
+            public void run() {
+                if (mActiveSenders.get(acknowledgedSender.getTransferId()) != acknowledgedSender) {
+                    //already finished
+                    return;
+                }
+                int acknowledged = acknowledgedSender.getAcknowledgedCount();
+                if (acknowledged != mAcknowledged) {
+                    mAcknowledged = acknowledged;
+                    mMainHandler.postDelayed(this, ACK_TIMEOUT_MS);
+                    return;
+                }
+                finishSend(job, acknowledgedSender, new IOException("Timed out waiting for the receiver to acknowledge " + job.fileName));
+            }
+        }, ACK_TIMEOUT_MS);
+    }
+
+    /**
+     * Finish the job if all of it was written and the receiver ended its ack channels. Chunks or files that
+     * weren't acknowledged fail the job, so the scheduler retries it and only those are sent again.
+     */
+    private void finishIfAcknowledged(TransferScheduler.Job job, AcknowledgedSender acknowledgedSender) {
+        if (acknowledgedSender.isSent() && acknowledgedSender.isAcknowledgementEnded()) {
+            finishSend(job, acknowledgedSender, acknowledgedSender.getAcknowledgementError());
+        }
+    }
+
+    private void finishSend(TransferScheduler.Job job, AcknowledgedSender acknowledgedSender, Exception error) {
+        if (!mActiveSenders.remove(acknowledgedSender.getTransferId(), acknowledgedSender)) {
+            //already finished, or replaced by a later attempt
+            return;
+        }
+        mSenderJobs.remove(acknowledgedSender.getTransferId(), job);
+        if (error != null) {
+            Logger.w("finishSend: " + error.getMessage());
+            if (acknowledgedSender instanceof BundleSender) {
+                //The retry only sends the files the receiver didn't save
+                List<BundleSender.Entry> unacknowledged = ((BundleSender) acknowledgedSender).getUnacknowledgedEntries();
+                if (!unacknowledged.isEmpty()) {
+                    job.bundleEntries.retainAll(unacknowledged);
+                }
+            }
+        }
+        mScheduler.onSendFinished(job, error);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.main_menu, menu);
+        //The benchmark is for developers changing the transfer code, it is only in debug builds
+        menu.findItem(R.id.action_run_benchmark).setVisible(BenchmarkRunner.isAvailable());
         return true;
     }
 
@@ -357,11 +623,50 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
                 BbmUtils.sendBbmLogFiles(BuildConfig.APPLICATION_ID, this);
             }
             return true;
+        } else if (id == R.id.action_save_metrics) {
+            saveMetrics();
+            return true;
+        } else if (id == R.id.action_run_benchmark) {
+            BenchmarkRunner.run(this, mMainHandler);
+            return true;
         }
 
         return false;
     }
 
+    /**
+     * Write a report of the transfer metrics to a file next to the received files
+     */
+    private void saveMetrics() {
+        final TransferMetrics.Snapshot snapshot = mMetrics.getSnapshot().get();
+        final File reportFile = new File(Environment.getExternalStorageDirectory() + "/data_transfer_example",
+                "transfer_metrics_" + snapshot.wallTime + ".txt");
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    File dir = reportFile.getParentFile();
+                    if (!dir.exists()) {
+                        dir.mkdirs();
+                    }
+                    TransferMetrics.writeReport(snapshot, reportFile);
+                    message = getString(R.string.metrics_saved, reportFile.getPath());
+                } catch (IOException e) {
+                    Logger.e(e);
+                    message = getString(R.string.metrics_save_failed, e.getMessage());
+                }
+                final String toast = message;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(MainActivity.this, toast, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         Logger.d("onRequestPermissionsResult: requestCode=" + requestCode + " " + PermissionsUtil.resultsToString(permissions, grantResults));
@@ -410,25 +715,52 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
 
         if (requestCode == REQUEST_CODE_PICK_FILE && resultCode == RESULT_OK) {
 
-            final Uri fileUri = data.getData();
+            //Several files can be picked at once
+            ArrayList<Uri> fileUris = new ArrayList<>();
+            if (data.getClipData() != null) {
+                for (int i = 0; i < data.getClipData().getItemCount(); ++i) {
+                    fileUris.add(data.getClipData().getItemAt(i).getUri());
+                }
+            } else {
+                fileUris.add(data.getData());
+            }
 
-            if (fileUri == null || !ContentResolver.SCHEME_CONTENT.equals(fileUri.getScheme())) {
-                //Only handling content URI's for simplicity
-                return;
+            //Check if the connection is still active before proceeding
+            BBMEDataConnection connection = BBMEnterprise.getInstance().getMediaManager().getDataConnection(mDataConnectionId).get();
+            if (connection.getState() != BBMEDataConnection.ConnectionState.CONNECTED) {
+                Toast.makeText(this, "The connection is no longer active", Toast.LENGTH_LONG).show();
             }
 
-            //Send the file via the connection
-            sendFile(fileUri);
-        }
-    }
+            //Small files are sent together in a bundle to avoid setting up a channel for each
+            ArrayList<BundleSender.Entry> smallFiles = new ArrayList<>();
+            ArrayList<BundleSender.Entry> files = new ArrayList<>();
+            for (Uri fileUri : fileUris) {
+                if (fileUri == null || !ContentResolver.SCHEME_CONTENT.equals(fileUri.getScheme())) {
+                    //Only handling content URI's for simplicity
+                    continue;
+                }
+                BundleSender.Entry file = queryFile(fileUri);
+                if (file.fileSize < TransferProtocol.BUNDLE_MAX_FILE_SIZE) {
+                    smallFiles.add(file);
+                } else {
+                    files.add(file);
+                }
+            }
+            //Only a peer that understands the transfer protocol can unpack a bundle
+            if (smallFiles.size() > 1 && mPeerUsesTransferProtocol) {
+                queueBundle(smallFiles);
+            } else {
+                files.addAll(smallFiles);
+            }
 
-    private void sendFile(final Uri fileUri) {
-        //Check if the connection is still active before proceeding
-        BBMEDataConnection connection = BBMEnterprise.getInstance().getMediaManager().getDataConnection(mDataConnectionId).get();
-        if (connection.getState() != BBMEDataConnection.ConnectionState.CONNECTED) {
-            Toast.makeText(this, "The connection is no longer active", Toast.LENGTH_LONG).show();
+            //Queue the files to be sent via the connection
+            for (BundleSender.Entry file : files) {
+                queueFile(file);
+            }
         }
+    }
 
+    private BundleSender.Entry queryFile(Uri fileUri) {
         //Get the file name and size
         Cursor fileCursor = getContentResolver().query(fileUri, null, null, null, null);
         int sizeIndex = fileCursor.getColumnIndex(OpenableColumns.SIZE);
@@ -437,48 +769,189 @@ public class MainActivity extends AppCompatActivity implements BBMEDataChannelCr
         final long fileSize = fileCursor.getLong(sizeIndex);
         final String fileName = fileCursor.getString(nameIndex);
         IOUtils.safeClose(fileCursor);
+        return new BundleSender.Entry(fileUri, fileName, fileSize);
+    }
 
-        //Create a new data channel of type "File" specifying the name and size.
-        final BBMEDataChannelSender sender = connection.createDataChannel(
-                fileName,
-                fileSize,
-                BBMEDataConnection.ChannelType.FILE
-        );
+    private void queueFile(BundleSender.Entry file) {
+        //Add the file to the list and the queue, it is sent once channels are available
+        DataChannelsAdapter.TransferItem transferItem = new DataChannelsAdapter.TransferItem(file.fileUri, file.fileName);
+        mTransfers.add(transferItem);
+        mScheduler.add(transferItem, file.fileUri, file.fileName, file.fileSize, 0);
+        mDataChannelsAdapter.notifyDataSetChanged();
+    }
 
-        //Add the channel to the list and notify the adapter
-        final DataChannelsAdapter.TransferItem transferItem = new DataChannelsAdapter.TransferItem(fileUri, sender);
+    private void queueBundle(List<BundleSender.Entry> files) {
+        DataChannelsAdapter.TransferItem transferItem = new DataChannelsAdapter.TransferItem(null, files.size() + " files");
         mTransfers.add(transferItem);
+        mScheduler.addBundle(transferItem, files, 0);
         mDataChannelsAdapter.notifyDataSetChanged();
+    }
 
-        //Start a background task to write the file to the data channel
-        AsyncTask.execute(new Runnable() {
+    @Override
+    public boolean canSendBundles() {
+        //Only a peer that understands the transfer protocol can unpack a bundle
+        return mPeerUsesTransferProtocol;
+    }
+
+    @Override
+    public DataChannelsAdapter.TransferItem onBundleSplit(TransferScheduler.Job bundle, BundleSender.Entry entry) {
+        //Show each file in place of the bundle
+        mTransfers.remove(bundle.item);
+        DataChannelsAdapter.TransferItem transferItem = new DataChannelsAdapter.TransferItem(entry.fileUri, entry.fileName);
+        mTransfers.add(transferItem);
+        return transferItem;
+    }
+
+    @Override
+    public void startSend(final TransferScheduler.Job job) throws IOException {
+        BBMEDataConnection connection = BBMEnterprise.getInstance().getMediaManager().getDataConnection(mDataConnectionId).get();
+        if (connection.getState() != BBMEDataConnection.ConnectionState.CONNECTED) {
+            throw new IOException("Not connected to send " + job.fileName);
+        }
+
+        final ChunkedSender chunkedSender;
+        final BundleSender bundleSender;
+        final BBMEDataChannelSender[] senders;
+        if (!mPeerUsesTransferProtocol) {
+            //The other side hasn't announced it understands chunks, send the file as a plain stream
+            //named after the file like older versions do, it can't be resumed
+            chunkedSender = null;
+            bundleSender = null;
+            senders = new BBMEDataChannelSender[] {
+                    connection.createDataChannel(
+                            job.fileName,
+                            job.fileSize,
+                            BBMEDataConnection.ChannelType.FILE
+                    )
+            };
+        } else if (job.bundleEntries != null) {
+            //Many small files are sent one after another over a single channel
+            chunkedSender = null;
+            bundleSender = new BundleSender(this, job.bundleEntries);
+            senders = new BBMEDataChannelSender[] {
+                    connection.createDataChannel(
+                            bundleSender.getChannelName(),
+                            bundleSender.getChannelSize(),
+                            BBMEDataConnection.ChannelType.FILE
+                    )
+            };
+        } else {
+            //The file is sent in chunks so it can be resumed from the last chunk the receiver acknowledged,
+            //large files are striped over several channels
+            bundleSender = null;
+            chunkedSender = new ChunkedSender(this, job.fileUri, job.fileName, job.fileSize);
+            senders = new BBMEDataChannelSender[chunkedSender.getStripeCount()];
+            //If chunks are compressed less than the size is sent, so use a stream with the size as an estimate
+            BBMEDataConnection.ChannelType channelType = chunkedSender.mayCompress()
+                    ? BBMEDataConnection.ChannelType.STREAM : BBMEDataConnection.ChannelType.FILE;
+            for (int i = 0; i < senders.length; ++i) {
+                //Create a new data channel specifying the name and size.
+                senders[i] = connection.createDataChannel(
+                        chunkedSender.getChannelName(i),
+                        chunkedSender.getChannelSize(i),
+                        channelType
+                );
+            }
+        }
+        for (BBMEDataChannelSender sender : senders) {
+            if (sender == null) {
+                //Close the ones that were created, the scheduler retries the whole job
+                for (BBMEDataChannelSender created : senders) {
+                    if (created != null) {
+                        IOUtils.safeClose(created.getOutputStream());
+                    }
+                }
+                throw new IOException("Unable to create a channel for " + job.fileName);
+            }
+        }
+        //Chunked files and bundles are acknowledged by the receiver, a plain file is done once it is written
+        final AcknowledgedSender acknowledgedSender = chunkedSender != null ? chunkedSender : bundleSender;
+        if (acknowledgedSender != null) {
+            mActiveSenders.put(acknowledgedSender.getTransferId(), acknowledgedSender);
+            mSenderJobs.put(acknowledgedSender.getTransferId(), job);
+        }
+
+        //Show the channels in the list
+        job.item.setDataChannel(senders[0]);
+        for (int i = 1; i < senders.length; ++i) {
+            job.item.mDataChannels.add(senders[i]);
+        }
+        for (BBMEDataChannelSender sender : senders) {
+            mMetrics.track(sender);
+        }
+
+        //Start a background task to write the file to the data channels
+        sChannelExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                OutputStream dataChannelOutputStream = sender.getOutputStream();
-                InputStream fileInputStream = null;
+                OutputStream[] dataChannelOutputStreams = new OutputStream[senders.length];
+                for (int i = 0; i < senders.length; ++i) {
+                    dataChannelOutputStreams[i] = senders[i].getOutputStream();
+                }
                 try {
-                    fileInputStream = getContentResolver().openInputStream(fileUri);
-                    //Copy the data from the file to the data channel output stream
-                    IOUtils.copy(fileInputStream, dataChannelOutputStream);
-                } catch (IOException e) {
-                    //If an error occurred then mark the transfer as failed and display an error to the user
+                    if (chunkedSender != null) {
+                        //Copy the chunks from the file to the data channel output streams
+                        chunkedSender.send(dataChannelOutputStreams);
+                    } else if (bundleSender != null) {
+                        bundleSender.send(dataChannelOutputStreams[0]);
+                    } else {
+                        sendPlainFile(job.fileUri, dataChannelOutputStreams[0]);
+                    }
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (BBMEDataChannelSender sender : senders) {
+                                mMetrics.channelEnded(sender);
+                            }
+                            if (acknowledgedSender != null) {
+                                onSent(job, acknowledgedSender);
+                            } else {
+                                mScheduler.onSendFinished(job, null);
+                            }
+                        }
+                    });
+                } catch (final IOException e) {
+                    //If an error occurred then let the scheduler retry the rest, and display an error to the user
                     Logger.e(e);
                     mMainHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            transferItem.mError = true;
-                            mDataChannelsAdapter.notifyDataSetChanged();
-                            Toast.makeText(MainActivity.this, "IOException occurred while sending " + fileName, Toast.LENGTH_LONG).show();
+                            for (BBMEDataChannelSender sender : senders) {
+                                mMetrics.channelFailed(sender, e);
+                            }
+                            if (acknowledgedSender != null) {
+                                finishSend(job, acknowledgedSender, e);
+                            } else {
+                                mScheduler.onSendFinished(job, e);
+                            }
+                            Toast.makeText(MainActivity.this, "IOException occurred while sending " + job.fileName, Toast.LENGTH_LONG).show();
                         }
                     });
                 } finally {
-                    IOUtils.safeClose(fileInputStream);
-                    IOUtils.safeClose(dataChannelOutputStream);
+                    for (OutputStream dataChannelOutputStream : dataChannelOutputStreams) {
+                        IOUtils.safeClose(dataChannelOutputStream);
+                    }
                 }
             }
         });
     }
 
+    /**
+     * Copy the whole file to the data channel, the way it is sent to older versions
+     */
+    private void sendPlainFile(Uri fileUri, OutputStream dataChannelOutputStream) throws IOException {
+        InputStream fileInputStream = null;
+        try {
+            fileInputStream = getContentResolver().openInputStream(fileUri);
+            if (fileInputStream == null) {
+                throw new IOException("Unable to open " + fileUri);
+            }
+            IOUtils.copy(fileInputStream, dataChannelOutputStream);
+        } finally {
+            IOUtils.safeClose(fileInputStream);
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.bbm.sdk.media.BBMEDataChannel;
+import com.bbm.sdk.media.BBMEDataChannelSender;
+import com.bbm.sdk.media.BBMEDataConnection;
+import com.bbm.sdk.reactive.Mutable;
+import com.bbm.sdk.reactive.ObservableValue;
+import com.bbm.sdk.reactive.Observer;
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records the throughput and latency of each data channel and the state changes of the data connection,
+ * so buffer and chunk sizes can be tuned from real numbers.
+ * <p>
+ * While any channel is active the bytes transferred are sampled a few times a second, and after each sample
+ * a new {@link Snapshot} is published to {@link #getSnapshot()}. All methods must be called on the main thread.
+ */
+class TransferMetrics {
+    private static final long SAMPLE_INTERVAL_MS = 250;
+    //an active channel that hasn't moved for this long is counted as stalled
+    private static final long STALL_THRESHOLD_MS = 1000;
+    //weight of the latest sample in the moving averages
+    private static final double AVERAGE_WEIGHT = 0.2;
+    private static final int MAX_STATE_CHANGES = 100;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<ChannelTracker> mChannels = new ArrayList<>();
+    private final ArrayList<StateChange> mStateChanges = new ArrayList<>();
+    private final Mutable<Snapshot> mSnapshot = new Mutable<>(new Snapshot(this));
+    private final long mCreatedTime = SystemClock.elapsedRealtime();
+    private BBMEDataConnection.ConnectionState mConnectionState;
+    private String mConnectionError;
+    private double mRate;
+    private double mAverageRate;
+    private boolean mSampling;
+
+    /**
+     * A connection state and when it was entered
+     */
+    static class StateChange {
+        final BBMEDataConnection.ConnectionState state;
+        final long wallTime;
+        //since the metrics were created
+        final long elapsedMs;
+
+        StateChange(BBMEDataConnection.ConnectionState state, long wallTime, long elapsedMs) {
+            this.state = state;
+            this.wallTime = wallTime;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    /**
+     * The stats for one channel when the snapshot was taken. Times are in milliseconds, -1 if not known yet.
+     */
+    static class ChannelSnapshot {
+        final String name;
+        final boolean sending;
+        final long expectedSize;
+        final long bytes;
+        final double bytesPerSecond;
+        final double averageBytesPerSecond;
+        final long timeToFirstByteMs;
+        final long durationMs;
+        final int stallCount;
+        final long stalledMs;
+        final long longestStallMs;
+        final boolean ended;
+        final String error;
+
+        private ChannelSnapshot(ChannelTracker tracker, long now) {
+            name = tracker.mChannel.getName();
+            sending = tracker.mChannel instanceof BBMEDataChannelSender;
+            expectedSize = tracker.mChannel.getExpectedSize();
+            bytes = tracker.mLastBytes;
+            bytesPerSecond = tracker.mRate;
+            averageBytesPerSecond = tracker.mAverageRate;
+            timeToFirstByteMs = tracker.mFirstByteTime > 0 ? tracker.mFirstByteTime - tracker.mStartTime : -1;
+            durationMs = (tracker.mEndTime > 0 ? tracker.mEndTime : now) - tracker.mStartTime;
+            stallCount = tracker.mStallCount;
+            long currentStall = tracker.mStallStart > 0 ? now - tracker.mStallStart : 0;
+            stalledMs = tracker.mStalledMs + currentStall;
+            longestStallMs = Math.max(tracker.mLongestStallMs, currentStall);
+            ended = tracker.mEndTime > 0;
+            error = tracker.mError;
+        }
+    }
+
+    /**
+     * The stats for the connection and all channels at one time
+     */
+    static class Snapshot {
+        final long wallTime;
+        final BBMEDataConnection.ConnectionState connectionState;
+        final String connectionError;
+        final List<StateChange> stateChanges;
+        final List<ChannelSnapshot> channels;
+        final double bytesPerSecond;
+        final double averageBytesPerSecond;
+        final long bytesSent;
+        final long bytesReceived;
+
+        private Snapshot(TransferMetrics metrics) {
+            long now = SystemClock.elapsedRealtime();
+            wallTime = System.currentTimeMillis();
+            connectionState = metrics.mConnectionState;
+            connectionError = metrics.mConnectionError;
+            stateChanges = Collections.unmodifiableList(new ArrayList<>(metrics.mStateChanges));
+            ArrayList<ChannelSnapshot> channelSnapshots = new ArrayList<>(metrics.mChannels.size());
+            long sent = 0;
+            long received = 0;
+            for (ChannelTracker tracker : metrics.mChannels) {
+                ChannelSnapshot channel = new ChannelSnapshot(tracker, now);
+                channelSnapshots.add(channel);
+                if (channel.sending) {
+                    sent += channel.bytes;
+                } else {
+                    received += channel.bytes;
+                }
+            }
+            channels = Collections.unmodifiableList(channelSnapshots);
+            bytesPerSecond = metrics.mRate;
+            averageBytesPerSecond = metrics.mAverageRate;
+            bytesSent = sent;
+            bytesReceived = received;
+        }
+    }
+
+    private static class ChannelTracker {
+        final BBMEDataChannel mChannel;
+        final long mStartTime = SystemClock.elapsedRealtime();
+        long mFirstByteTime;
+        long mEndTime;
+        long mLastBytes;
+        long mLastSampleTime = mStartTime;
+        //when the bytes last changed
+        long mLastProgressTime = mStartTime;
+        double mRate;
+        double mAverageRate;
+        long mStallStart;
+        int mStallCount;
+        long mStalledMs;
+        long mLongestStallMs;
+        String mError;
+        Observer mFirstByteObserver;
+
+        ChannelTracker(BBMEDataChannel channel) {
+            mChannel = channel;
+        }
+
+        void sample(long now) {
+            long bytes = mChannel.getBytesTransferred().get();
+            long elapsed = now - mLastSampleTime;
+            if (elapsed > 0) {
+                mRate = (bytes - mLastBytes) * 1000.0 / elapsed;
+                mAverageRate = mAverageRate == 0 ? mRate : AVERAGE_WEIGHT * mRate + (1 - AVERAGE_WEIGHT) * mAverageRate;
+            }
+
+            if (bytes != mLastBytes) {
+                if (mFirstByteTime == 0) {
+                    //in case the observer hasn't been notified yet
+                    mFirstByteTime = now;
+                }
+                endStall(now);
+                mLastProgressTime = now;
+            } else if (mStallStart == 0 && mFirstByteTime > 0 && now - mLastProgressTime >= STALL_THRESHOLD_MS) {
+                //not counted before the first byte, that is the time to first byte
+                mStallStart = mLastProgressTime;
+                ++mStallCount;
+            }
+
+            mLastBytes = bytes;
+            mLastSampleTime = now;
+
+            long expectedSize = mChannel.getExpectedSize();
+            if (expectedSize > 0 && bytes >= expectedSize) {
+                end(now);
+            }
+        }
+
+        void endStall(long now) {
+            if (mStallStart > 0) {
+                long stall = now - mStallStart;
+                mStalledMs += stall;
+                mLongestStallMs = Math.max(mLongestStallMs, stall);
+                mStallStart = 0;
+            }
+        }
+
+        void end(long now) {
+            if (mEndTime == 0) {
+                endStall(now);
+                mRate = 0;
+                mEndTime = now;
+                removeFirstByteObserver();
+            }
+        }
+
+        void removeFirstByteObserver() {
+            if (mFirstByteObserver != null) {
+                mChannel.getBytesTransferred().removeObserver(mFirstByteObserver);
+                mFirstByteObserver = null;
+            }
+        }
+    }
+
+    private final Runnable mSampler = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            if (mSampling) {
+                mHandler.postDelayed(this, SAMPLE_INTERVAL_MS);
+            }
+        }
+    };
+
+    /**
+     * @return the latest stats, changed after each sample while channels are active
+     */
+    ObservableValue<Snapshot> getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Start recording the stats for a channel, from now until all its bytes are transferred or it fails
+     */
+    void track(BBMEDataChannel channel) {
+        final ChannelTracker tracker = new ChannelTracker(channel);
+        //observe for the first byte so the time isn't rounded up to the sample interval
+        final ObservableValue<Long> bytesTransferred = channel.getBytesTransferred();
+        tracker.mFirstByteObserver = new Observer() {
+            @Override
+            public void changed() {
+                if (tracker.mFirstByteTime == 0 && bytesTransferred.get() > 0) {
+                    tracker.mFirstByteTime = SystemClock.elapsedRealtime();
+                }
+                if (tracker.mFirstByteTime > 0) {
+                    tracker.removeFirstByteObserver();
+                }
+            }
+        };
+        bytesTransferred.addObserver(tracker.mFirstByteObserver);
+        mChannels.add(tracker);
+        startSampling();
+    }
+
+    /**
+     * Stop tracking a channel that ended normally, only needed if it ended before its expected size
+     */
+    void channelEnded(BBMEDataChannel channel) {
+        ChannelTracker tracker = findTracker(channel);
+        if (tracker != null && tracker.mEndTime == 0) {
+            long now = SystemClock.elapsedRealtime();
+            //count the bytes since the last sample
+            tracker.sample(now);
+            tracker.end(now);
+            publish();
+        }
+    }
+
+    /**
+     * Record why a channel failed and stop tracking it
+     */
+    void channelFailed(BBMEDataChannel channel, Throwable cause) {
+        ChannelTracker tracker = findTracker(channel);
+        if (tracker != null) {
+            tracker.mError = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+            tracker.end(SystemClock.elapsedRealtime());
+            publish();
+        }
+    }
+
+    /**
+     * Record a state of the data connection, the same state is only recorded once
+     */
+    void connectionStateChanged(BBMEDataConnection connection) {
+        BBMEDataConnection.ConnectionState state = connection.getState();
+        if (state == mConnectionState) {
+            return;
+        }
+        mConnectionState = state;
+        if (state == BBMEDataConnection.ConnectionState.DISCONNECTED) {
+            if (connection.getFailureReason() != BBMEDataConnection.FailReason.NO_FAILURE) {
+                mConnectionError = connection.getFailureReason().toString();
+            }
+            //the channels can't transfer any more
+            long now = SystemClock.elapsedRealtime();
+            for (ChannelTracker tracker : mChannels) {
+                tracker.end(now);
+            }
+            mRate = 0;
+        }
+        if (mStateChanges.size() >= MAX_STATE_CHANGES) {
+            mStateChanges.remove(0);
+        }
+        mStateChanges.add(new StateChange(state, System.currentTimeMillis(), SystemClock.elapsedRealtime() - mCreatedTime));
+        Logger.d("connectionStateChanged: " + state);
+        publish();
+    }
+
+    /**
+     * Forget the channels of a previous connection
+     */
+    void clearChannels() {
+        for (ChannelTracker tracker : mChannels) {
+            tracker.removeFirstByteObserver();
+        }
+        mChannels.clear();
+        mRate = 0;
+        mAverageRate = 0;
+        publish();
+    }
+
+    /**
+     * Write a readable report of the stats to the file. The snapshot doesn't change so this can be called on
+     * a background thread.
+     */
+    static void writeReport(Snapshot snapshot, File file) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("DataTransfer metrics " + dateFormat.format(new Date(snapshot.wallTime)));
+            out.println();
+            out.println("Connection: " + snapshot.connectionState
+                    + (snapshot.connectionError != null ? " error=" + snapshot.connectionError : ""));
+            out.println(String.format(Locale.US, "  rate=%s average=%s sent=%d received=%d",
+                    formatRate(snapshot.bytesPerSecond), formatRate(snapshot.averageBytesPerSecond),
+                    snapshot.bytesSent, snapshot.bytesReceived));
+            for (StateChange change : snapshot.stateChanges) {
+                out.println("  " + dateFormat.format(new Date(change.wallTime)) + " +" + change.elapsedMs + "ms " + change.state);
+            }
+            out.println();
+            out.println("Channels: " + snapshot.channels.size());
+            for (ChannelSnapshot channel : snapshot.channels) {
+                out.println((channel.sending ? "  send " : "  receive ") + channel.name);
+                out.println(String.format(Locale.US,
+                        "    bytes=%d/%d duration=%dms ttfb=%dms rate=%s average=%s overall=%s",
+                        channel.bytes, channel.expectedSize, channel.durationMs, channel.timeToFirstByteMs,
+                        formatRate(channel.bytesPerSecond), formatRate(channel.averageBytesPerSecond),
+                        formatRate(channel.durationMs > 0 ? channel.bytes * 1000.0 / channel.durationMs : 0)));
+                out.println(String.format(Locale.US, "    stalls=%d stalled=%dms longest=%dms %s%s",
+                        channel.stallCount, channel.stalledMs, channel.longestStallMs,
+                        channel.ended ? "ended" : "active", channel.error != null ? " error=" + channel.error : ""));
+            }
+            if (out.checkError()) {
+                throw new IOException("Failed to write " + file);
+            }
+        } finally {
+            IOUtils.safeClose(out);
+        }
+    }
+
+    private static String formatRate(double bytesPerSecond) {
+        return String.format(Locale.US, "%.1fKB/s", bytesPerSecond / 1024);
+    }
+
+    private ChannelTracker findTracker(BBMEDataChannel channel) {
+        for (ChannelTracker tracker : mChannels) {
+            if (tracker.mChannel == channel) {
+                return tracker;
+            }
+        }
+        return null;
+    }
+
+    private void startSampling() {
+        if (!mSampling) {
+            mSampling = true;
+            mHandler.postDelayed(mSampler, SAMPLE_INTERVAL_MS);
+        }
+    }
+
+    private void sample() {
+        long now = SystemClock.elapsedRealtime();
+        double rate = 0;
+        boolean active = false;
+        for (ChannelTracker tracker : mChannels) {
+            if (tracker.mEndTime == 0) {
+                tracker.sample(now);
+                rate += tracker.mRate;
+                active |= tracker.mEndTime == 0;
+            }
+        }
+        mRate = rate;
+        mAverageRate = mAverageRate == 0 ? rate : AVERAGE_WEIGHT * rate + (1 - AVERAGE_WEIGHT) * mAverageRate;
+        //stop sampling until another channel is tracked
+        mSampling = active;
+        publish();
+    }
+
+    private void publish() {
+        mSnapshot.set(new Snapshot(this));
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The framing used to send a file in chunks over a data channel so an interrupted transfer can be resumed.
+ * <p>
+ * The data channel stream starts with a header, followed by a frame for each chunk sent and an end frame:
+ * [magic][version][transfer ID][file name][file size][chunk size][stripe index][stripe count]
+ * [FRAME_CHUNK][chunk index][length][CRC32][bytes]...
+ * [FRAME_END][stripe digest]
+ * Chunks can be sent in any order and only the chunks the receiver doesn't have yet are sent.
+ * A chunk of a compressible file can instead be sent Deflate compressed, the length is the compressed length and
+ * the CRC32 is of the uncompressed bytes:
+ * [FRAME_DEFLATED_CHUNK][chunk index][length][CRC32][compressed bytes]
+ * The stripe digest is the {@link #DIGEST_ALGORITHM} digest of the digests of each chunk in the stripe in index order,
+ * including the chunks not sent because they were received before, so the whole file is verified without
+ * reading it again and no matter how many attempts it took.
+ * Large files are striped over several channels to make better use of high latency links, each channel has
+ * the same header except for the stripe index and carries every stripe count'th chunk. Those channels are named
+ * {@link #STRIPE_CHANNEL_PREFIX} + transfer ID + "/" + stripe index + "/" + file name so the receiver can group them.
+ * The receiver opens a channel back to the sender for each stripe named {@link #ACK_CHANNEL_PREFIX} + transfer ID
+ * + "/" + stripe index and writes
+ * the index of each chunk once it is written to the file, both sides save which chunks are done
+ * so after a reconnect sending the same file only sends the remaining chunks. If the stripe digest doesn't match,
+ * the receiver discards the file and writes {@link #ACK_RESTART} instead, so the sender forgets which chunks
+ * were acknowledged and sends the whole file again.
+ * <p>
+ * Many small files can instead be sent one after another over one channel as a bundle, each with the CRC32
+ * of its bytes, so the receiver can write each file as soon as it has arrived:
+ * [bundle magic][version][bundle ID][file count]
+ * [FRAME_FILE][file name][file size][bytes][CRC32]...
+ * [FRAME_END]
+ * The receiver opens a channel back named {@link #ACK_CHANNEL_PREFIX} + bundle ID + "/0" and writes the index
+ * of each file in the bundle once it is saved, a file that failed its CRC check isn't acknowledged and is sent
+ * again in a smaller bundle.
+ * <p>
+ * Older versions save every channel as a plain file named after the channel, so the framing is only used with a
+ * peer that announced it understands it. When connected each side opens an empty channel named
+ * {@link #HELLO_CHANNEL_NAME}, until that arrives files are sent as plain streams named after the file.
+ * The receiver picks the format from the channel name, a framed file is named {@link #CHUNKED_CHANNEL_PREFIX}
+ * + file name, and any channel without one of the prefixes is a plain file.
+ */
+final class TransferProtocol {
+    static final int MAGIC = 0x42445446;
+    static final int BUNDLE_MAGIC = 0x42445442;
+    static final int VERSION = 2;
+
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    //the largest chunk size accepted from a peer, the receiver allocates buffers of the chunk size
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    static final String DIGEST_ALGORITHM = "SHA-256";
+    static final int DIGEST_SIZE = 32;
+
+    static final String ACK_CHANNEL_PREFIX = "ack:";
+    //written on an ack channel instead of a chunk index when the receiver discarded the file
+    static final int ACK_RESTART = -1;
+    static final String STRIPE_CHANNEL_PREFIX = "stripe:";
+    static final String BUNDLE_CHANNEL_PREFIX = "bundle:";
+    static final String CHUNKED_CHANNEL_PREFIX = "chunked:";
+
+    /**
+     * Opened by each side to announce it understands this protocol, an older version saves it as an empty hidden file
+     */
+    static final String HELLO_CHANNEL_NAME = ".transfer_protocol_" + VERSION;
+
+    /**
+     * Picked files smaller than this are sent together in a bundle
+     */
+    static final long BUNDLE_MAX_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * Files at least this large are striped over {@link #STRIPE_COUNT} channels
+     */
+    static final long STRIPE_MIN_SIZE = 8 * 1024 * 1024;
+    static final int STRIPE_COUNT = 4;
+
+    static final byte FRAME_CHUNK = 1;
+    static final byte FRAME_END = 2;
+    static final byte FRAME_DEFLATED_CHUNK = 3;
+    static final byte FRAME_FILE = 4;
+
+    //type, index, length, CRC32
+    static final int CHUNK_FRAME_OVERHEAD = 1 + 4 + 4 + 4;
+    //type, stripe digest
+    static final int END_FRAME_SIZE = 1 + DIGEST_SIZE;
+    static final int BUNDLE_END_FRAME_SIZE = 1;
+
+    private TransferProtocol() {
+    }
+
+    static class Header {
+        final String transferId;
+        final String fileName;
+        final long fileSize;
+        final int chunkSize;
+        final int stripeIndex;
+        final int stripeCount;
+
+        Header(String transferId, String fileName, long fileSize, int chunkSize, int stripeIndex, int stripeCount) {
+            this.transferId = transferId;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.stripeIndex = stripeIndex;
+            this.stripeCount = stripeCount;
+        }
+
+        /**
+         * @return the same header for another stripe
+         */
+        Header forStripe(int index) {
+            return new Header(transferId, fileName, fileSize, chunkSize, index, stripeCount);
+        }
+
+        /**
+         * @return the name for the data channel of this stripe
+         */
+        String getChannelName() {
+            if (stripeCount == 1) {
+                return CHUNKED_CHANNEL_PREFIX + fileName;
+            }
+            return STRIPE_CHANNEL_PREFIX + transferId + "/" + stripeIndex + "/" + fileName;
+        }
+
+        int getChunkCount() {
+            return (int) getChunkCount(fileSize, chunkSize);
+        }
+
+        private static long getChunkCount(long fileSize, int chunkSize) {
+            return fileSize / chunkSize + (fileSize % chunkSize != 0 ? 1 : 0);
+        }
+
+        int getChunkLength(int index) {
+            return (int) Math.min(chunkSize, fileSize - (long) index * chunkSize);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(transferId);
+            out.writeUTF(fileName);
+            out.writeLong(fileSize);
+            out.writeInt(chunkSize);
+            out.writeInt(stripeIndex);
+            out.writeInt(stripeCount);
+        }
+
+        /**
+         * @return the size the header will be when written
+         */
+        int getSize() throws UnsupportedEncodingException {
+            return 4 + 4 + 2 + transferId.getBytes("UTF-8").length + 2 + fileName.getBytes("UTF-8").length + 8 + 4 + 4 + 4;
+        }
+
+        /**
+         * Read the header after the magic number
+         */
+        static Header read(DataInputStream in) throws IOException {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported transfer version " + version);
+            }
+            Header header = new Header(in.readUTF(), in.readUTF(), in.readLong(), in.readInt(), in.readInt(), in.readInt());
+            if (header.fileSize < 0 || header.chunkSize <= 0 || header.chunkSize > MAX_CHUNK_SIZE
+                    || getChunkCount(header.fileSize, header.chunkSize) > Integer.MAX_VALUE || header.stripeCount <= 0
+                    || header.stripeIndex < 0 || header.stripeIndex >= header.stripeCount) {
+                throw new IOException("Invalid header size=" + header.fileSize + " chunkSize=" + header.chunkSize
+                        + " stripe=" + header.stripeIndex + "/" + header.stripeCount);
+            }
+            return header;
+        }
+    }
+
+    /**
+     * @return the number of channels a file of this size is striped over
+     */
+    static int getStripeCount(long fileSize) {
+        return fileSize >= STRIPE_MIN_SIZE ? STRIPE_COUNT : 1;
+    }
+
+    /**
+     * @return true if the channel carries a file framed with a {@link Header}
+     */
+    static boolean isChunkedChannel(String channelName) {
+        return channelName.startsWith(CHUNKED_CHANNEL_PREFIX) || channelName.startsWith(STRIPE_CHANNEL_PREFIX);
+    }
+
+    /**
+     * @return true if the channel carries a bundle of files
+     */
+    static boolean isBundleChannel(String channelName) {
+        return channelName.startsWith(BUNDLE_CHANNEL_PREFIX);
+    }
+
+    /**
+     * @return the transfer ID from the name of a striped channel, or null if it isn't one
+     */
+    static String getStripeTransferId(String channelName) {
+        if (!channelName.startsWith(STRIPE_CHANNEL_PREFIX)) {
+            return null;
+        }
+        int end = channelName.indexOf('/', STRIPE_CHANNEL_PREFIX.length());
+        return end > 0 ? channelName.substring(STRIPE_CHANNEL_PREFIX.length(), end) : null;
+    }
+
+    /**
+     * @return the file name from the name of a striped channel
+     */
+    static String getStripeFileName(String channelName) {
+        int idEnd = channelName.indexOf('/', STRIPE_CHANNEL_PREFIX.length());
+        int indexEnd = idEnd > 0 ? channelName.indexOf('/', idEnd + 1) : -1;
+        return indexEnd > 0 ? channelName.substring(indexEnd + 1) : channelName;
+    }
+
+    /**
+     * @return the size of the header of a bundle
+     */
+    static int getBundleHeaderSize(String bundleId) throws UnsupportedEncodingException {
+        //magic, version, bundle ID, file count
+        return 4 + 4 + 2 + bundleId.getBytes("UTF-8").length + 4;
+    }
+
+    /**
+     * @return the size of a file frame in a bundle, not counting the bytes of the file
+     */
+    static int getBundleEntryOverhead(String fileName) throws UnsupportedEncodingException {
+        //type, name, size, CRC32
+        return 1 + 2 + fileName.getBytes("UTF-8").length + 8 + 4;
+    }
+
+    /**
+     * @return the name to show for a channel, without the prefix used to identify stripes or bundles
+     */
+    static String getDisplayName(String channelName) {
+        if (channelName.startsWith(BUNDLE_CHANNEL_PREFIX)) {
+            return channelName.substring(BUNDLE_CHANNEL_PREFIX.length());
+        }
+        if (channelName.startsWith(CHUNKED_CHANNEL_PREFIX)) {
+            return channelName.substring(CHUNKED_CHANNEL_PREFIX.length());
+        }
+        return getStripeFileName(channelName);
+    }
+
+    /**
+     * @return the transfer ID from the name of an ack channel
+     */
+    static String getAckTransferId(String channelName) {
+        int end = channelName.indexOf('/', ACK_CHANNEL_PREFIX.length());
+        return channelName.substring(ACK_CHANNEL_PREFIX.length(), end > 0 ? end : channelName.length());
+    }
+
+    /**
+     * Read the magic number at the start of a framed channel
+     *
+     * @throws IOException if it isn't the expected one
+     */
+    static void readMagic(DataInputStream in, int expected) throws IOException {
+        int magic = in.readInt();
+        if (magic != expected) {
+            throw new IOException("Invalid magic number " + Integer.toHexString(magic));
+        }
+    }
+
+    /**
+     * Create an ID that will be the same each time the same file is sent, so it can be resumed
+     */
+    static String createTransferId(String source, String fileName, long fileSize) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((source + "|" + fileName + "|" + fileSize).getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
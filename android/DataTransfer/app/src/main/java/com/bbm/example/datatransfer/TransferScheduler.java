@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Queues the files to send so that only a few channels are used at a time, instead of starting every file
+ * at once and having them all compete for the connection.
+ * <p>
+ * Files with a higher priority are sent first, then smaller files before larger ones so many small files aren't
+ * held up behind one large one. A file that fails is paused and retried with an increasing delay, since it is
+ * sent in chunks only the chunks not yet acknowledged are sent again. While not connected nothing is started,
+ * files are paused until connected again. A file that can't even be started is retried the same way.
+ * A bundle is only sent as one if the receiver can unpack it, otherwise its files are queued separately so each
+ * one's channel is counted. All methods must be called on the main thread.
+ */
+class TransferScheduler {
+    /**
+     * The most channels used for sending at once, a striped file uses one channel for each stripe
+     */
+    static final int MAX_ACTIVE_CHANNELS = 4;
+    static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_RETRY_DELAY_MS = 2000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    /**
+     * Starts sending files for the scheduler
+     */
+    interface Sender {
+        /**
+         * Create the channels for the job and start sending it in the background. When it ends
+         * {@link #onSendFinished} must be called on the main thread.
+         *
+         * @throws IOException if it couldn't be started, it is retried like a send that failed
+         */
+        void startSend(Job job) throws IOException;
+
+        /**
+         * @return false if the receiver can't unpack a bundle, each of its files must be sent on its own channel
+         */
+        boolean canSendBundles();
+
+        /**
+         * Called when the files of a bundle are queued separately instead
+         *
+         * @return the item to show for the file
+         */
+        DataChannelsAdapter.TransferItem onBundleSplit(Job bundle, BundleSender.Entry entry);
+    }
+
+    /**
+     * A file, or a bundle of files, to send
+     */
+    static class Job {
+        final DataChannelsAdapter.TransferItem item;
+        final Uri fileUri;
+        final String fileName;
+        final long fileSize;
+        //the files for a bundle, null for a single file
+        final List<BundleSender.Entry> bundleEntries;
+        final int priority;
+        final int channelCount;
+        private final long mSequence;
+        private int mAttempts;
+
+        private Job(DataChannelsAdapter.TransferItem item, Uri fileUri, String fileName, long fileSize,
+                    List<BundleSender.Entry> bundleEntries, int priority, long sequence) {
+            this.item = item;
+            this.fileUri = fileUri;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.bundleEntries = bundleEntries;
+            this.priority = priority;
+            //a bundle is always one channel
+            this.channelCount = bundleEntries != null ? 1 : TransferProtocol.getStripeCount(fileSize);
+            mSequence = sequence;
+        }
+    }
+
+    private static final Comparator<Job> ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            if (a.fileSize != b.fileSize) {
+                return a.fileSize < b.fileSize ? -1 : 1;
+            }
+            return Long.compare(a.mSequence, b.mSequence);
+        }
+    };
+
+    private final Sender mSender;
+    private final Runnable mChangedListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<>(16, ORDER);
+    private final ArrayList<Job> mActive = new ArrayList<>();
+    //failed jobs waiting to be retried, either for the retry delay or to be connected again
+    private final ArrayList<Job> mPaused = new ArrayList<>();
+    private int mActiveChannels;
+    private long mNextSequence;
+    private boolean mConnected;
+
+    /**
+     * @param changedListener run when the state of any transfer item changes
+     */
+    TransferScheduler(Sender sender, Runnable changedListener) {
+        mSender = sender;
+        mChangedListener = changedListener;
+    }
+
+    /**
+     * Add a file to the queue, it will be started when there are channels available
+     *
+     * @param priority files with a higher priority are started first
+     */
+    Job add(DataChannelsAdapter.TransferItem item, Uri fileUri, String fileName, long fileSize, int priority) {
+        return add(new Job(item, fileUri, fileName, fileSize, null, priority, mNextSequence++));
+    }
+
+    /**
+     * Add a bundle of files to send together over one channel, it is ordered by the total size of the files
+     */
+    Job addBundle(DataChannelsAdapter.TransferItem item, List<BundleSender.Entry> entries, int priority) {
+        long totalSize = 0;
+        for (BundleSender.Entry entry : entries) {
+            totalSize += entry.fileSize;
+        }
+        return add(new Job(item, null, item.mName, totalSize, new ArrayList<>(entries), priority, mNextSequence++));
+    }
+
+    private Job add(Job job) {
+        job.item.mState = DataChannelsAdapter.TransferItem.State.QUEUED;
+        mQueue.add(job);
+        schedule();
+        return job;
+    }
+
+    /**
+     * Nothing is started while not connected, paused files are retried straight away once connected
+     */
+    void setConnected(boolean connected) {
+        if (connected == mConnected) {
+            return;
+        }
+        mConnected = connected;
+        if (connected) {
+            for (Job job : mPaused) {
+                mHandler.removeCallbacksAndMessages(job);
+                queue(job);
+            }
+            mPaused.clear();
+            schedule();
+        }
+    }
+
+    /**
+     * @return the items of the files that haven't been sent yet
+     */
+    ArrayList<DataChannelsAdapter.TransferItem> getPendingItems() {
+        ArrayList<DataChannelsAdapter.TransferItem> items = new ArrayList<>();
+        for (Job job : mActive) {
+            items.add(job.item);
+        }
+        for (Job job : mPaused) {
+            items.add(job.item);
+        }
+        for (Job job : mQueue) {
+            items.add(job.item);
+        }
+        return items;
+    }
+
+    /**
+     * Called by the {@link Sender} when sending a job ended
+     *
+     * @param error null if all of it was sent, and received if the receiver acknowledges what it gets
+     */
+    void onSendFinished(final Job job, Exception error) {
+        if (!mActive.remove(job)) {
+            return;
+        }
+        mActiveChannels -= job.channelCount;
+        finish(job, error);
+        mChangedListener.run();
+        schedule();
+    }
+
+    private void finish(final Job job, Exception error) {
+        if (error == null) {
+            job.item.mState = DataChannelsAdapter.TransferItem.State.DONE;
+        } else if (!mConnected) {
+            //not the file's fault, try again once connected
+            Logger.d("onSendFinished: pausing " + job.fileName + " until connected");
+            job.item.mState = DataChannelsAdapter.TransferItem.State.PAUSED;
+            mPaused.add(job);
+        } else if (++job.mAttempts >= MAX_ATTEMPTS) {
+            Logger.w("onSendFinished: giving up on " + job.fileName + " after " + job.mAttempts + " attempts");
+            job.item.mState = DataChannelsAdapter.TransferItem.State.DONE;
+            job.item.mError = true;
+            job.item.mErrorReason = error.getMessage();
+        } else {
+            long delay = Math.min(INITIAL_RETRY_DELAY_MS << (job.mAttempts - 1), MAX_RETRY_DELAY_MS);
+            Logger.d("onSendFinished: retrying " + job.fileName + " in " + delay + "ms, attempt " + job.mAttempts);
+            job.item.mState = DataChannelsAdapter.TransferItem.State.PAUSED;
+            mPaused.add(job);
+            //the job is the token so the retry can be cancelled if connected again first
+            mHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPaused.remove(job)) {
+                        queue(job);
+                        schedule();
+                    }
+                }
+            }, job, SystemClock.uptimeMillis() + delay);
+        }
+    }
+
+    /**
+     * Remove all jobs, the ones already sending will still finish
+     */
+    void clear() {
+        mHandler.removeCallbacksAndMessages(null);
+        mQueue.clear();
+        mPaused.clear();
+    }
+
+    private void queue(Job job) {
+        job.item.mState = DataChannelsAdapter.TransferItem.State.QUEUED;
+        mQueue.add(job);
+    }
+
+    private void schedule() {
+        boolean changed = false;
+        while (mConnected && !mQueue.isEmpty()) {
+            Job job = mQueue.peek();
+            //a file that needs more than the max can still be sent on its own
+            if (mActiveChannels > 0 && mActiveChannels + job.channelCount > MAX_ACTIVE_CHANNELS) {
+                break;
+            }
+            mQueue.poll();
+            changed = true;
+            if (job.bundleEntries != null && !mSender.canSendBundles()) {
+                split(job);
+                continue;
+            }
+            job.item.mState = DataChannelsAdapter.TransferItem.State.ACTIVE;
+            job.item.mError = false;
+            job.item.mErrorReason = null;
+            mActive.add(job);
+            mActiveChannels += job.channelCount;
+            try {
+                mSender.startSend(job);
+            } catch (IOException e) {
+                Logger.w(e, "schedule: unable to start " + job.fileName);
+                mActive.remove(job);
+                mActiveChannels -= job.channelCount;
+                finish(job, e);
+            }
+        }
+        if (changed) {
+            mChangedListener.run();
+        }
+    }
+
+    /**
+     * Queue each file of the bundle as its own job, in place of the bundle
+     */
+    private void split(Job bundle) {
+        Logger.d("split: sending the " + bundle.bundleEntries.size() + " files of " + bundle.fileName + " separately");
+        for (BundleSender.Entry entry : bundle.bundleEntries) {
+            queue(new Job(mSender.onBundleSplit(bundle, entry), entry.fileUri, entry.fileName, entry.fileSize, null,
+                    bundle.priority, mNextSequence++));
+        }
+    }
+}
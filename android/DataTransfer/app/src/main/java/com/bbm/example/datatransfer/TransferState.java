@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+
+import com.bbm.sdk.support.util.IOUtils;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Which chunks of a transfer are done, saved to a file so the transfer can be resumed.
+ * The sender marks a chunk done when the receiver acknowledges it, the receiver when it is written to the file.
+ */
+class TransferState {
+    private static final String DIR = "transfers";
+
+    private final File mFile;
+    private final int mChunkCount;
+    private final BitSet mDone;
+    private boolean mChanged;
+
+    private TransferState(File file, int chunkCount, BitSet done) {
+        mFile = file;
+        mChunkCount = chunkCount;
+        mDone = done;
+    }
+
+    /**
+     * Load the saved state, or create a new empty one if there isn't one for the same number of chunks
+     *
+     * @param name unique name for the transfer and direction
+     */
+    static TransferState load(Context context, String name, int chunkCount) {
+        File file = new File(new File(context.getFilesDir(), DIR), name + ".state");
+        if (file.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() == chunkCount) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    BitSet done = BitSet.valueOf(bytes);
+                    Logger.d("loaded " + file + " done=" + done.cardinality() + "/" + chunkCount);
+                    return new TransferState(file, chunkCount, done);
+                }
+                Logger.d("chunk count changed for " + file);
+            } catch (IOException e) {
+                Logger.w(e, "Failed to read " + file);
+            } finally {
+                IOUtils.safeClose(in);
+            }
+        }
+        return new TransferState(file, chunkCount, new BitSet(chunkCount));
+    }
+
+    synchronized boolean isDone(int index) {
+        return mDone.get(index);
+    }
+
+    synchronized void markDone(int index) {
+        if (!mDone.get(index)) {
+            mDone.set(index);
+            mChanged = true;
+        }
+    }
+
+    synchronized int getDoneCount() {
+        return mDone.cardinality();
+    }
+
+    int getChunkCount() {
+        return mChunkCount;
+    }
+
+    synchronized boolean isComplete() {
+        return mDone.cardinality() == mChunkCount;
+    }
+
+    /**
+     * Forget all chunks so the transfer starts over
+     */
+    synchronized void clear() {
+        mDone.clear();
+        mChanged = true;
+    }
+
+    /**
+     * Write the state to the file if it changed
+     */
+    synchronized void save() {
+        if (!mChanged) {
+            return;
+        }
+
+        File dir = mFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.w("Failed to create " + dir);
+            return;
+        }
+
+        //write to temp file and rename so a partial file is never read
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            out = new DataOutputStream(fileOut);
+            byte[] bytes = mDone.toByteArray();
+            out.writeInt(mChunkCount);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Logger.w("Failed to rename " + tmp + " to " + mFile);
+            }
+            mChanged = false;
+        } catch (IOException e) {
+            Logger.w(e, "Failed to write " + mFile);
+        } finally {
+            IOUtils.safeClose(out);
+        }
+    }
+
+    /**
+     * Remove the saved state once the transfer is complete
+     */
+    synchronized void delete() {
+        mFile.delete();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * The benchmark is only in debug builds, see the debug version of this class.
+ */
+final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    static boolean isAvailable() {
+        return false;
+    }
+
+    static void run(Context context, Handler mainHandler) {
+    }
+}
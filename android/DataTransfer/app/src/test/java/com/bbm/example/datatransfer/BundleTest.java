@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.ContextWrapper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends bundles with {@link BundleSender} through a pipe to a {@link BundleReceiver}, and passes its
+ * acknowledgements back to the sender
+ */
+public class BundleTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mOutputDir;
+    //the contents of the files to send, by name
+    private final HashMap<String, byte[]> mFiles = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mOutputDir = mFolder.newFolder("received");
+        Random random = new Random(1);
+        for (int size : new int[] {0, 1, 1000, 300 * 1024}) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            mFiles.put("file" + size + ".bin", bytes);
+        }
+    }
+
+    @Test
+    public void filesArriveWithTheirContents() throws Exception {
+        TestSender sender = new TestSender(entries("file0.bin", "file1.bin", "file1000.bin", "file307200.bin"));
+        List<File> received = sendThroughPipe(sender, null);
+
+        assertEquals(4, received.size());
+        for (File file : received) {
+            assertArrayEquals(file.getName(), mFiles.get(file.getName()), Files.readAllBytes(file.toPath()));
+        }
+        assertEquals(4, mOutputDir.list().length);
+        assertTrue(sender.isSent());
+        assertTrue(sender.isAcknowledgementEnded());
+        assertNull(sender.getAcknowledgementError());
+        assertTrue(sender.getUnacknowledgedEntries().isEmpty());
+    }
+
+    @Test
+    public void channelSizeIsWhatIsWritten() throws IOException {
+        TestSender sender = new TestSender(entries("file0.bin", "file1000.bin", "file307200.bin"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sender.send(out);
+        assertEquals(sender.getChannelSize(), out.size());
+        assertTrue(TransferProtocol.isBundleChannel(sender.getChannelName()));
+    }
+
+    @Test
+    public void corruptFileIsDroppedAndTheRestKept() throws Exception {
+        TestSender sender = new TestSender(entries("file1000.bin", "file307200.bin"));
+        //a byte in the middle of the first file
+        int corruptOffset = TransferProtocol.getBundleHeaderSize(sender.getTransferId())
+                + TransferProtocol.getBundleEntryOverhead("file1000.bin") + 500;
+        try {
+            sendThroughPipe(sender, corruptOffset);
+            fail("Corrupt bundle received");
+        } catch (IOException e) {
+            //expected
+        }
+
+        assertFalse(new File(mOutputDir, "file1000.bin").exists());
+        assertArrayEquals(mFiles.get("file307200.bin"), Files.readAllBytes(new File(mOutputDir, "file307200.bin").toPath()));
+        assertEquals(1, mOutputDir.list().length);
+        //only the corrupt file is left to send again
+        assertNotNull(sender.getAcknowledgementError());
+        List<BundleSender.Entry> unacknowledged = sender.getUnacknowledgedEntries();
+        assertEquals(1, unacknowledged.size());
+        assertEquals("file1000.bin", unacknowledged.get(0).fileName);
+    }
+
+    @Test
+    public void unacknowledgedFilesAreResent() throws Exception {
+        TestSender sender = new TestSender(entries("file1.bin", "file1000.bin", "file307200.bin"));
+        int corruptOffset = TransferProtocol.getBundleHeaderSize(sender.getTransferId())
+                + TransferProtocol.getBundleEntryOverhead("file1.bin") + 1
+                + TransferProtocol.getBundleEntryOverhead("file1000.bin") + 10;
+        try {
+            sendThroughPipe(sender, corruptOffset);
+            fail("Corrupt bundle received");
+        } catch (IOException e) {
+            //expected
+        }
+
+        TestSender resender = new TestSender(sender.getUnacknowledgedEntries());
+        List<File> received = sendThroughPipe(resender, null);
+
+        assertEquals(1, received.size());
+        assertNull(resender.getAcknowledgementError());
+        assertEquals(3, mOutputDir.list().length);
+        for (String name : mOutputDir.list()) {
+            assertArrayEquals(name, mFiles.get(name), Files.readAllBytes(new File(mOutputDir, name).toPath()));
+        }
+    }
+
+    @Test
+    public void resentFilesAreNotSavedTwice() throws Exception {
+        TestSender sender = new TestSender(entries("file1.bin", "file1000.bin"));
+        sendThroughPipe(sender, null);
+        //the whole bundle is sent again if the acks were lost
+        List<File> received = sendThroughPipe(sender, null);
+
+        assertEquals(2, received.size());
+        assertEquals(2, mOutputDir.list().length);
+    }
+
+    @Test
+    public void differentFileWithTheSameNameIsKept() throws Exception {
+        sendThroughPipe(new TestSender(entries("file1000.bin")), null);
+        byte[] changed = mFiles.get("file1000.bin").clone();
+        changed[0] ^= 1;
+        mFiles.put("file1000.bin", changed);
+        List<File> received = sendThroughPipe(new TestSender(entries("file1000.bin")), null);
+
+        assertEquals(2, mOutputDir.list().length);
+        assertArrayEquals(changed, Files.readAllBytes(received.get(0).toPath()));
+    }
+
+    private List<BundleSender.Entry> entries(String... names) {
+        ArrayList<BundleSender.Entry> entries = new ArrayList<>();
+        for (String name : names) {
+            entries.add(new BundleSender.Entry(null, name, mFiles.get(name).length));
+        }
+        return entries;
+    }
+
+    /**
+     * Send the bundle on another thread through a pipe and receive it on this one
+     *
+     * @param corruptOffset the offset of a byte to change on the way, or null
+     */
+    private List<File> sendThroughPipe(final BundleSender sender, final Integer corruptOffset) throws Exception {
+        ByteArrayOutputStream acks = new ByteArrayOutputStream();
+        PipedInputStream pipeIn = new PipedInputStream(64 * 1024);
+        final PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+        final IOException[] sendError = new IOException[1];
+        Thread sendThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = corruptOffset != null ? new CorruptingOutputStream(pipeOut, corruptOffset) : pipeOut;
+                    sender.send(out);
+                    out.close();
+                } catch (IOException e) {
+                    sendError[0] = e;
+                }
+            }
+        };
+        sendThread.start();
+        try {
+            DataInputStream in = new DataInputStream(pipeIn);
+            TransferProtocol.readMagic(in, TransferProtocol.BUNDLE_MAGIC);
+            assertEquals(sender.getTransferId(), BundleReceiver.readBundleId(in));
+            return new BundleReceiver(mOutputDir).receive(in, acks);
+        } finally {
+            sendThread.join();
+            assertNull(sendError[0]);
+            sender.readAcks(new ByteArrayInputStream(acks.toByteArray()));
+        }
+    }
+
+    /**
+     * Sends the test files instead of reading them from a content provider
+     */
+    private class TestSender extends BundleSender {
+        TestSender(List<Entry> entries) {
+            super(new ContextWrapper(null), entries);
+        }
+
+        @Override
+        InputStream openFile(Entry entry) {
+            return new ByteArrayInputStream(mFiles.get(entry.fileName));
+        }
+    }
+
+    private static class CorruptingOutputStream extends FilterOutputStream {
+        private final int mCorruptOffset;
+        private int mOffset;
+
+        CorruptingOutputStream(OutputStream out, int corruptOffset) {
+            super(out);
+            mCorruptOffset = corruptOffset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(mOffset++ == mCorruptOffset ? b ^ 0xff : b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mCorruptOffset >= mOffset && mCorruptOffset < mOffset + len) {
+                b = Arrays.copyOfRange(b, off, off + len);
+                off = 0;
+                b[mCorruptOffset - mOffset] ^= 0xff;
+            }
+            out.write(b, off, len);
+            mOffset += len;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkDigestsTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Context mContext;
+    private ChunkDigests mDigests;
+
+    @Before
+    public void setUp() throws IOException {
+        final File filesDir = mFolder.newFolder("files");
+        mContext = new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+        mDigests = ChunkDigests.open(mContext, "in_test");
+    }
+
+    @After
+    public void tearDown() {
+        mDigests.close();
+    }
+
+    @Test
+    public void digestsCanBeAddedInAnyOrder() throws IOException {
+        assertFalse(mDigests.exists());
+        byte[] third = digest("third");
+        byte[] first = digest("first");
+        mDigests.put(2, third);
+        mDigests.put(0, first);
+        mDigests.sync();
+
+        assertTrue(mDigests.exists());
+        assertArrayEquals(first, mDigests.get(0));
+        assertArrayEquals(third, mDigests.get(2));
+    }
+
+    @Test
+    public void digestsAreKeptForTheNextAttempt() throws IOException {
+        mDigests.put(5, digest("chunk 5"));
+        mDigests.sync();
+        mDigests.close();
+
+        ChunkDigests reopened = ChunkDigests.open(mContext, "in_test");
+        try {
+            assertTrue(reopened.exists());
+            assertArrayEquals(digest("chunk 5"), reopened.get(5));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void missingDigestPastTheEndFails() throws IOException {
+        mDigests.put(0, digest("only"));
+        mDigests.get(1);
+    }
+
+    @Test
+    public void deleteRemovesTheFile() throws IOException {
+        mDigests.put(0, digest("chunk"));
+        mDigests.delete();
+        assertFalse(mDigests.exists());
+
+        //can be used again to start over
+        mDigests.put(1, digest("again"));
+        assertArrayEquals(digest("again"), mDigests.get(1));
+    }
+
+    @Test
+    public void digestsAreTheProtocolSize() {
+        MessageDigest digest = ChunkDigests.newDigest();
+        assertEquals(TransferProtocol.DIGEST_ALGORITHM, digest.getAlgorithm());
+        assertEquals(TransferProtocol.DIGEST_SIZE, digest.getDigestLength());
+    }
+
+    private static byte[] digest(String text) {
+        return ChunkDigests.newDigest().digest(text.getBytes());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest {
+
+    @Test
+    public void decidesFromTheType() {
+        assertTrue(Compression.isCompressible("text/plain"));
+        assertTrue(Compression.isCompressible("application/json"));
+        assertFalse(Compression.isCompressible("image/jpeg"));
+        assertFalse(Compression.isCompressible("application/zip"));
+        assertNull(Compression.isCompressible("application/octet-stream"));
+        assertNull(Compression.isCompressible(null));
+    }
+
+    @Test
+    public void samplesTheEntropy() {
+        byte[] text = createText(64 * 1024);
+        assertTrue(Compression.looksCompressible(text, text.length));
+
+        byte[] random = createRandom(64 * 1024);
+        assertFalse(Compression.looksCompressible(random, random.length));
+        assertFalse(Compression.looksCompressible(random, 0));
+    }
+
+    @Test
+    public void deflatedChunksInflateToTheSameBytes() throws DataFormatException {
+        byte[] chunk = createText(256 * 1024);
+        byte[] compressed = new byte[chunk.length];
+        byte[] inflated = new byte[chunk.length];
+        Deflater deflater = Compression.newDeflater();
+        Inflater inflater = new Inflater();
+        try {
+            //the same deflater and inflater are reused for every chunk
+            for (int i = 0; i < 3; ++i) {
+                int length = chunk.length - i * 1000;
+                int compressedLength = Compression.deflate(deflater, chunk, length, compressed);
+                assertTrue(compressedLength > 0 && compressedLength < length);
+
+                Arrays.fill(inflated, (byte) 0);
+                Compression.inflate(inflater, compressed, compressedLength, inflated, length);
+                assertArrayEquals(Arrays.copyOf(chunk, length), Arrays.copyOf(inflated, length));
+            }
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    @Test
+    public void randomChunksAreNotWorthDeflating() {
+        byte[] chunk = createRandom(64 * 1024);
+        Deflater deflater = Compression.newDeflater();
+        try {
+            assertEquals(-1, Compression.deflate(deflater, chunk, chunk.length, new byte[chunk.length]));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void inflateRejectsTheWrongLength() throws DataFormatException {
+        byte[] chunk = createText(16 * 1024);
+        byte[] compressed = new byte[chunk.length];
+        Deflater deflater = Compression.newDeflater();
+        Inflater inflater = new Inflater();
+        try {
+            int compressedLength = Compression.deflate(deflater, chunk, chunk.length, compressed);
+            Compression.inflate(inflater, compressed, compressedLength, new byte[chunk.length + 10], chunk.length + 10);
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void inflateRejectsCorruptData() throws DataFormatException {
+        byte[] chunk = createText(16 * 1024);
+        byte[] compressed = new byte[chunk.length];
+        Deflater deflater = Compression.newDeflater();
+        Inflater inflater = new Inflater();
+        try {
+            int compressedLength = Compression.deflate(deflater, chunk, chunk.length, compressed);
+            compressed[compressedLength / 2] ^= 0x55;
+            compressed[compressedLength / 2 + 1] ^= 0x55;
+            Compression.inflate(inflater, compressed, compressedLength, new byte[chunk.length], chunk.length);
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private static byte[] createText(int size) {
+        String[] words = {"transfer", "chunk", "stripe", "channel", "digest", "the", "a", "of", "\n"};
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return text.substring(0, size).getBytes();
+    }
+
+    private static byte[] createRandom(int size) {
+        byte[] bytes = new byte[size];
+        new Random(2).nextBytes(bytes);
+        return bytes;
+    }
+}
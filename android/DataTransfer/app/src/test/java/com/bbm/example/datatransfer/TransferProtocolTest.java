@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.datatransfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransferProtocolTest {
+
+    private static final String TRANSFER_ID = TransferProtocol.createTransferId("content://files/1", "report.txt", 600000);
+
+    @Test
+    public void headerRoundTrips() throws IOException {
+        TransferProtocol.Header header = new TransferProtocol.Header(TRANSFER_ID, "r\u00e9sum\u00e9.txt", 600000, 256 * 1024, 2, 4);
+        byte[] bytes = write(header);
+
+        //the size is used for the channel expected size so it must be exact
+        assertEquals(header.getSize(), bytes.length);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        TransferProtocol.readMagic(in, TransferProtocol.MAGIC);
+        TransferProtocol.Header read = TransferProtocol.Header.read(in);
+        assertEquals(TRANSFER_ID, read.transferId);
+        assertEquals("r\u00e9sum\u00e9.txt", read.fileName);
+        assertEquals(600000, read.fileSize);
+        assertEquals(256 * 1024, read.chunkSize);
+        assertEquals(2, read.stripeIndex);
+        assertEquals(4, read.stripeCount);
+        assertEquals(-1, in.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWrongMagic() throws IOException {
+        byte[] bytes = write(new TransferProtocol.Header(TRANSFER_ID, "a", 1, 1, 0, 1));
+        TransferProtocol.readMagic(new DataInputStream(new ByteArrayInputStream(bytes)), TransferProtocol.BUNDLE_MAGIC);
+    }
+
+    @Test
+    public void rejectsInvalidHeaders() throws IOException {
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", -1, 1024, 0, 1));
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", 10, 0, 0, 1));
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", 10, 1024, 4, 4));
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", 10, 1024, 0, 0));
+        //the receiver would allocate a buffer of the chunk size
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", 10, TransferProtocol.MAX_CHUNK_SIZE + 1, 0, 1));
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", 10, Integer.MAX_VALUE, 0, 1));
+        //more chunks than can be counted
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", Long.MAX_VALUE, 1, 0, 1));
+        assertInvalid(new TransferProtocol.Header(TRANSFER_ID, "a", (long) Integer.MAX_VALUE + 1, 1, 0, 1));
+    }
+
+    @Test
+    public void chunksCoverTheFile() {
+        TransferProtocol.Header header = new TransferProtocol.Header(TRANSFER_ID, "a", 1000, 300, 0, 1);
+        assertEquals(4, header.getChunkCount());
+        assertEquals(300, header.getChunkLength(0));
+        assertEquals(100, header.getChunkLength(3));
+
+        assertEquals(0, new TransferProtocol.Header(TRANSFER_ID, "a", 0, 300, 0, 1).getChunkCount());
+        assertEquals(2, new TransferProtocol.Header(TRANSFER_ID, "a", 600, 300, 0, 1).getChunkCount());
+        assertEquals(Integer.MAX_VALUE, new TransferProtocol.Header(TRANSFER_ID, "a", Integer.MAX_VALUE, 1, 0, 1).getChunkCount());
+    }
+
+    @Test
+    public void unstripedChannelIsMarkedChunked() {
+        String name = new TransferProtocol.Header(TRANSFER_ID, "report.txt", 10, 1024, 0, 1).getChannelName();
+
+        //an older receiver would save a channel named after the file as a plain file
+        assertNotEquals("report.txt", name);
+        assertTrue(TransferProtocol.isChunkedChannel(name));
+        assertFalse(TransferProtocol.isBundleChannel(name));
+        assertNull(TransferProtocol.getStripeTransferId(name));
+        assertEquals("report.txt", TransferProtocol.getDisplayName(name));
+    }
+
+    @Test
+    public void stripedChannelNamesCarryTheTransfer() {
+        TransferProtocol.Header header = new TransferProtocol.Header(TRANSFER_ID, "big/video.mp4", 10, 1024, 0, 4);
+        String name = header.forStripe(3).getChannelName();
+
+        assertTrue(TransferProtocol.isChunkedChannel(name));
+        assertEquals(TRANSFER_ID, TransferProtocol.getStripeTransferId(name));
+        //the file name can contain the separator
+        assertEquals("big/video.mp4", TransferProtocol.getStripeFileName(name));
+        assertEquals("big/video.mp4", TransferProtocol.getDisplayName(name));
+    }
+
+    @Test
+    public void plainChannelsAreNotFramed() {
+        assertFalse(TransferProtocol.isChunkedChannel("report.txt"));
+        assertFalse(TransferProtocol.isBundleChannel("report.txt"));
+        assertEquals("report.txt", TransferProtocol.getDisplayName("report.txt"));
+        assertFalse(TransferProtocol.isChunkedChannel(TransferProtocol.HELLO_CHANNEL_NAME));
+    }
+
+    @Test
+    public void ackChannelNamesCarryTheTransfer() {
+        assertEquals(TRANSFER_ID, TransferProtocol.getAckTransferId(TransferProtocol.ACK_CHANNEL_PREFIX + TRANSFER_ID + "/2"));
+        assertEquals(TRANSFER_ID, TransferProtocol.getAckTransferId(TransferProtocol.ACK_CHANNEL_PREFIX + TRANSFER_ID));
+    }
+
+    @Test
+    public void transferIdIsStableForTheSameFile() {
+        assertEquals(TRANSFER_ID, TransferProtocol.createTransferId("content://files/1", "report.txt", 600000));
+        assertNotEquals(TRANSFER_ID, TransferProtocol.createTransferId("content://files/1", "report.txt", 600001));
+        assertNotEquals(TRANSFER_ID, TransferProtocol.createTransferId("content://files/2", "report.txt", 600000));
+    }
+
+    private static byte[] write(TransferProtocol.Header header) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        header.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void assertInvalid(TransferProtocol.Header header) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(write(header)));
+        TransferProtocol.readMagic(in, TransferProtocol.MAGIC);
+        try {
+            TransferProtocol.Header.read(in);
+            fail("Read invalid header size=" + header.fileSize + " chunkSize=" + header.chunkSize
+                    + " stripe=" + header.stripeIndex + "/" + header.stripeCount);
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
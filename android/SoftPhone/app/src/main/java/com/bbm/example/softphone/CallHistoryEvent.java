@@ -31,12 +31,17 @@ public class CallHistoryEvent {
     private static final String CALL_DURATION = "callDuration";
     private static final String CALL_LOG_REASON = "callLogReason";
     private static final String CALL_END_TIME = "callEndTime";
+    private static final String CALL_TELEMETRY = "callTelemetry";
 
     private long mParticipantRegId = 0l;
     private long mCallDuration = 0;
     private long mCallEndTime = 0;
     private BBMECall.CallLog mCallLogReason = BBMECall.CallLog.NONE;
     private boolean mIncomingCall = false;
+    private JSONObject mTelemetry;
+    //The chat message the call was read from, kept locally to find the call again if the message is deleted
+    private String mChatId;
+    private long mMessageId;
 
     CallHistoryEvent() {
 
@@ -51,6 +56,7 @@ public class CallHistoryEvent {
         mCallDuration = callHistoryJSON.optLong(CALL_DURATION, mCallDuration);
         mCallLogReason = BBMECall.CallLog.valueOf(callHistoryJSON.optString(CALL_LOG_REASON, ""));
         mCallEndTime = callHistoryJSON.optLong(CALL_END_TIME, mCallEndTime);
+        mTelemetry = callHistoryJSON.optJSONObject(CALL_TELEMETRY);
     }
 
     /**
@@ -81,6 +87,27 @@ public class CallHistoryEvent {
         return mCallLogReason;
     }
 
+    /**
+     * @return the summary from {@link CallTelemetry} of how the call went, or null if there isn't one
+     */
+    public JSONObject getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * @return the ID of the chat the call's message was sent in, or null if it isn't known
+     */
+    public String getChatId() {
+        return mChatId;
+    }
+
+    /**
+     * @return the ID of the call's message in its chat, or 0 if it isn't known yet
+     */
+    public long getMessageId() {
+        return mMessageId;
+    }
+
     /**
      * @return true if the call was incoming to us
      */
@@ -120,6 +147,23 @@ public class CallHistoryEvent {
         return this;
     }
 
+    /**
+     * Set the summary of how the call went
+     */
+    public CallHistoryEvent setTelemetry(JSONObject telemetry) {
+        mTelemetry = telemetry;
+        return this;
+    }
+
+    /**
+     * Set the chat message the call was sent in, the message ID can be 0 if it isn't known yet
+     */
+    public CallHistoryEvent setMessage(String chatId, long messageId) {
+        mChatId = chatId;
+        mMessageId = messageId;
+        return this;
+    }
+
     /**
      * Set the call end time
      */
@@ -130,7 +174,7 @@ public class CallHistoryEvent {
 
     /**
      * Return the call meta data as as JSON object
-     * The participant regId and incoming values are left out as they differ for each user in the call.
+     * The participant regId, incoming and message values are left out as they differ for each user in the call.
      */
     public JSONObject getJSONObject() {
         JSONObject callDetails = new JSONObject();
@@ -138,6 +182,9 @@ public class CallHistoryEvent {
             callDetails.put(CALL_DURATION, mCallDuration);
             callDetails.put(CALL_LOG_REASON, mCallLogReason.toString());
             callDetails.put(CALL_END_TIME, mCallEndTime);
+            if (mTelemetry != null) {
+                callDetails.put(CALL_TELEMETRY, mTelemetry);
+            }
         } catch (JSONException e) {
             Logger.e(e);
         }
@@ -21,7 +21,6 @@ import android.os.Bundle;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
-import androidx.recyclerview.widget.SortedList;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import android.text.TextUtils;
@@ -33,15 +32,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.bbm.sdk.BBMEnterprise;
-import com.bbm.sdk.bbmds.BbmdsProtocol;
-import com.bbm.sdk.bbmds.Chat;
 import com.bbm.sdk.bbmds.ChatMessage;
-import com.bbm.sdk.bbmds.ChatMessageCriteria;
-import com.bbm.sdk.bbmds.ChatParticipant;
-import com.bbm.sdk.bbmds.ChatParticipantCriteria;
-import com.bbm.sdk.bbmds.User;
 import com.bbm.sdk.bbmds.internal.Existence;
-import com.bbm.sdk.bbmds.internal.lists.ObservableList;
 import com.bbm.sdk.reactive.ObservableMonitor;
 import com.bbm.sdk.reactive.ObservableValue;
 import com.bbm.sdk.reactive.Observer;
@@ -51,7 +43,8 @@ import com.bbm.sdk.support.reactive.ObserveConnector;
 import com.bbm.sdk.support.util.TimeRangeFormatter;
 import com.bbm.sdk.support.util.TimestampScheduler;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -59,106 +52,118 @@ import java.util.HashMap;
  */
 public class CallHistoryFragment extends Fragment {
 
-    private ObserveConnector mObserveConnector = new ObserveConnector();
-
-    //This map is used to avoid processing messages for which we already have a call history event.
-    private HashMap<ChatMessage.ChatMessageKey, CallHistoryEvent> mEventsMap = new HashMap<>();
-
-    //This sorted list informs the adapter when items have changed
-    private SortedList<CallHistoryEvent> mSortedHistoryEvents = new SortedList<>(
-            CallHistoryEvent.class, new SortedList.Callback<CallHistoryEvent>() {
-
-        @Override
-        public void onInserted(int position, int count) {
-            mCallHistoryAdapter.notifyItemRangeInserted(position, count);
-        }
-
-        @Override
-        public void onRemoved(int position, int count) {
-            mCallHistoryAdapter.notifyItemRangeRemoved(position, count);
-        }
+    //The number of calls read from the store at a time
+    private static final int PAGE_SIZE = 50;
 
-        @Override
-        public void onMoved(int fromPosition, int toPosition) {
-            mCallHistoryAdapter.notifyItemMoved(fromPosition, toPosition);
-        }
-
-        @Override
-        public int compare(CallHistoryEvent left, CallHistoryEvent right) {
-            if (left.getCallEndTime() < right.getCallEndTime()) {
-                return 1;
-            } else if (left.getCallEndTime() == right.getCallEndTime()) {
-                return 0;
-            }
-            return -1;
-        }
-
-        @Override
-        public void onChanged(int position, int count) {
-            mCallHistoryAdapter.notifyItemRangeChanged(position, count);
-        }
-
-        @Override
-        public boolean areContentsTheSame(CallHistoryEvent oldItem, CallHistoryEvent newItem) {
-            return (oldItem == null && newItem == null)
-                    || oldItem != null && oldItem.equals(newItem);
-        }
+    private ObserveConnector mObserveConnector = new ObserveConnector();
 
-        @Override
-        public boolean areItemsTheSame(CallHistoryEvent item1, CallHistoryEvent item2) {
-            return areContentsTheSame(item1, item2);
-        }
-    });
+    //The calls read so far newest first, the next page is read when the list is scrolled to the end
+    private final ArrayList<CallHistoryEvent> mCalls = new ArrayList<>();
+    private boolean mCallsRead;
+    private boolean mHasMoreCalls;
+    private boolean mReadingCalls;
+    //Changed each time the calls are read again, so a page read before that is dropped
+    private int mCallsGeneration;
+    //The newest call added to the store when the calls were read
+    private long mLastCallRowId;
+    //The count of removals from the store when the calls were read
+    private int mRemovals;
 
     /**
-     * This monitor gets all of the chat messages from all users with the "CALL_EVENT" tag.
-     * These messages are added to a SortedList which is attached to a RecyclerView adapter
+     * This monitor reads the calls from the call history store again when one is added or removed.
      */
     private ObservableMonitor mCallHistoryEventMonitor = new ObservableMonitor() {
         @Override
         protected void run() {
-            BbmdsProtocol protocol = BBMEnterprise.getInstance().getBbmdsProtocol();
-            //Iterate through all of the chats
-            for (Chat chat : protocol.getChatList().get()) {
+            CallHistoryStore store = CallHistoryStore.getInstance(getContext());
+            //Read to run again when a call is added
+            long lastCallRowId = store.getLastCallRowId().get();
+            int removals = store.getRemovals().get();
+            if (mCallsRead && lastCallRowId <= mLastCallRowId && removals == mRemovals) {
+                //Nothing new since the last read
+                return;
+            }
+            mLastCallRowId = lastCallRowId;
+            mRemovals = removals;
+            readCalls();
+        }
+    };
 
-                //Skip chats without keys or messages
-                if (chat.keyState != Chat.KeyState.Synced && chat.numMessages <= 0) {
-                    continue;
+    /**
+     * Read the newest calls again in the background, as many as are shown so the list doesn't shrink
+     */
+    private void readCalls() {
+        final int generation = ++mCallsGeneration;
+        final int limit = Math.max(PAGE_SIZE, mCalls.size());
+        mReadingCalls = true;
+        CallHistoryStore.getInstance(getContext()).readCalls(null, limit, new CallHistoryStore.CallsCallback() {
+            @Override
+            public void onCallsRead(List<CallHistoryEvent> calls) {
+                if (generation != mCallsGeneration) {
+                    return;
                 }
+                mReadingCalls = false;
+                mCallsRead = true;
+                mHasMoreCalls = calls.size() == limit;
+                swapCalls(calls);
+            }
+        });
+    }
 
-                //Get the list of chat messages where the Tag = CALL_EVENT
-                ChatMessageCriteria criteria = new ChatMessageCriteria().tag(CallUtils.CALL_EVENT_TAG).chatId(chat.chatId);
-                final ObservableList<ChatMessage> callEventMessages = protocol.getChatMessageList(criteria);
-
-                //Check if the matching list of messages is pending
-                if (!callEventMessages.isPending()) {
-                    //Loop through all of the messages
-                    for (ChatMessage message : callEventMessages.get()) {
-                        //Checking here to make sure that these messages are valid call events.
-                        if (!message.hasFlag(ChatMessage.Flags.Deleted) && message.data != null && !mEventsMap.containsKey(message.getPrimaryKey())) {
-                            //Add the registration ID of the caller to the call event
-                            ChatParticipantCriteria participantCriteria = new ChatParticipantCriteria().chatId(chat.chatId);
-                            ObservableList<ChatParticipant> participants = protocol.getChatParticipantList(participantCriteria);
-                            if (!participants.isPending() && participants.size() > 0) {
-                                User user = BBMEnterprise.getInstance().getBbmdsProtocol().getUser(participants.get(0).userUri).get();
-                                if (user.exists == Existence.YES) {
-                                    //Create a call history event and set the attributes from the message.data
-                                    final CallHistoryEvent event = new CallHistoryEvent();
-                                    event.setAttributes(message.data);
-                                    //Set the call as incoming if the chat message is incoming
-                                    event.setIsIncomingCall(message.hasFlag(ChatMessage.Flags.Incoming));
-                                    event.setParticipantRegId(user.regId);
-                                    //Add the call history event to the list
-                                    mEventsMap.put(message.getPrimaryKey(), event);
-                                    mSortedHistoryEvents.add(event);
-                                }
-                            }
-                        }
-                    }
+    /**
+     * Read the page of calls after the last one shown in the background
+     */
+    private void readMoreCalls() {
+        final int generation = mCallsGeneration;
+        mReadingCalls = true;
+        CallHistoryEvent last = mCalls.get(mCalls.size() - 1);
+        CallHistoryStore.getInstance(getContext()).readCalls(last, PAGE_SIZE, new CallHistoryStore.CallsCallback() {
+            @Override
+            public void onCallsRead(List<CallHistoryEvent> calls) {
+                if (generation != mCallsGeneration) {
+                    //The calls were read again since, the page might not follow on from them
+                    return;
                 }
+                mReadingCalls = false;
+                mHasMoreCalls = calls.size() == PAGE_SIZE;
+                int start = mCalls.size();
+                mCalls.addAll(calls);
+                mCallHistoryAdapter.notifyItemRangeInserted(start, calls.size());
+            }
+        });
+    }
+
+    /**
+     * Show the calls read again in place of the old ones
+     */
+    private void swapCalls(List<CallHistoryEvent> calls) {
+        int oldCount = mCalls.size();
+        //Where the newest call shown before is now
+        int added = 0;
+        if (oldCount > 0) {
+            while (added < calls.size() && !isSameCall(calls.get(added), mCalls.get(0))) {
+                ++added;
             }
         }
-    };
+        mCalls.clear();
+        mCalls.addAll(calls);
+        if (oldCount > 0 && added > 0 && added < calls.size()) {
+            //The new calls are all newer than the ones already shown, the oldest ones shown might no longer fit
+            mCallHistoryAdapter.notifyItemRangeInserted(0, added);
+            if (calls.size() < oldCount + added) {
+                mCallHistoryAdapter.notifyItemRangeRemoved(calls.size(), oldCount + added - calls.size());
+            }
+        } else {
+            mCallHistoryAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * @return true if both are the same call, the message of a call can be added to it later
+     */
+    private static boolean isSameCall(CallHistoryEvent a, CallHistoryEvent b) {
+        return a.getParticipantRegId() == b.getParticipantRegId() && a.getCallEndTime() == b.getCallEndTime();
+    }
 
     /**
      * This view holder displays a call history event with a button to start a new call with the same person.
@@ -170,8 +175,22 @@ public class CallHistoryFragment extends Fragment {
         private ImageView mCallerAvatar;
         private long mRegId;
         private ObservableValue<AppUser> mObsUser;
+        private ObservableValue<ChatMessage> mObsMessage;
         private CallHistoryEvent mEvent;
 
+        /**
+         * Removes the call from the history when the message it was read from is deleted
+         */
+        private final Observer mMessageObserver = new Observer() {
+            @Override
+            public void changed() {
+                ChatMessage message = mObsMessage.get();
+                if (message.getExists() == Existence.NO || message.hasFlag(ChatMessage.Flags.Deleted)) {
+                    CallHistoryStore.getInstance(getContext()).removeMessage(mEvent.getChatId(), mEvent.getMessageId());
+                }
+            }
+        };
+
         CallHistoryEventViewHolder(View itemView) {
             super(itemView);
             mCallerTextView = (TextView)itemView.findViewById(R.id.caller_text);
@@ -180,11 +199,18 @@ public class CallHistoryFragment extends Fragment {
         }
 
         void bindHolder(int position) {
+            //Stop observing the previous user if this is bound again without being recycled
+            onRecycled();
             //Populate the viewholder
-            mEvent = mSortedHistoryEvents.get(position);
+            mEvent = mCalls.get(position);
             mRegId = mEvent.getParticipantRegId();
             mObsUser = UserManager.getInstance().getUser(mRegId);
             mObserveConnector.connect(mObsUser, this, true);
+            if (mEvent.getMessageId() != 0) {
+                mObsMessage = BBMEnterprise.getInstance().getBbmdsProtocol().getChatMessage(
+                        new ChatMessage.ChatMessageKey(mEvent.getChatId(), mEvent.getMessageId()));
+                mObserveConnector.connect(mObsMessage, mMessageObserver, true);
+            }
         }
 
         @Override
@@ -254,6 +280,11 @@ public class CallHistoryFragment extends Fragment {
                 mObsUser.removeObserver(this);
             }
             mObsUser = null;
+            mObserveConnector.remove(mMessageObserver);
+            if (mObsMessage != null) {
+                mObsMessage.removeObserver(mMessageObserver);
+            }
+            mObsMessage = null;
             mEvent = null;
             mRegId = 0;
         }
@@ -287,11 +318,15 @@ public class CallHistoryFragment extends Fragment {
         @Override
         public void onBindViewHolder(CallHistoryEventViewHolder holder, int position) {
             holder.bindHolder(position);
+            if (position == mCalls.size() - 1 && mHasMoreCalls && !mReadingCalls) {
+                //Scrolled to the last call read so far
+                readMoreCalls();
+            }
         }
 
         @Override
         public int getItemCount() {
-            return mSortedHistoryEvents.size();
+            return mCalls.size();
         }
 
         @Override
@@ -321,7 +356,7 @@ public class CallHistoryFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
-        //Active our callHistoryEventMonitor which requests CALL_EVENT chat messages and adds them to the adapter
+        //Active our callHistoryEventMonitor which reads the calls from the call history store and adds them to the adapter
         mCallHistoryEventMonitor.activate();
     }
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.softphone;
+
+import com.bbm.sdk.BBMEnterprise;
+import com.bbm.sdk.bbmds.BbmdsProtocol;
+import com.bbm.sdk.bbmds.Chat;
+import com.bbm.sdk.bbmds.ChatMessage;
+import com.bbm.sdk.bbmds.ChatMessageCriteria;
+import com.bbm.sdk.bbmds.ChatParticipant;
+import com.bbm.sdk.bbmds.ChatParticipantCriteria;
+import com.bbm.sdk.bbmds.User;
+import com.bbm.sdk.bbmds.internal.Existence;
+import com.bbm.sdk.bbmds.internal.lists.ObservableList;
+import com.bbm.sdk.reactive.ObservableMonitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Adds the calls from "CALL_EVENT" chat messages to the {@link CallHistoryStore} as they arrive.
+ * Only chats with messages newer than the last ones indexed are looked at, so once the existing messages have been
+ * indexed a change to the chat list only costs a comparison for each chat. The calls found in each pass are handed
+ * to the store together, to be written in one transaction off the main thread. The calls of chats that are no
+ * longer in the chat list are removed.
+ */
+public class CallHistoryIndexer {
+
+    private final CallHistoryStore mStore;
+    private boolean mStarted;
+
+    private final ObservableMonitor mIndexMonitor = new ObservableMonitor() {
+        @Override
+        protected void run() {
+            BbmdsProtocol protocol = BBMEnterprise.getInstance().getBbmdsProtocol();
+            List<CallHistoryEvent> events = new ArrayList<>();
+            HashMap<String, Long> indexedMessageIds = new HashMap<>();
+            ObservableList<Chat> chats = protocol.getChatList();
+            Set<String> leftChatIds = mStore.getIndexedChatIds();
+            //Iterate through all of the chats
+            for (Chat chat : chats.get()) {
+                leftChatIds.remove(chat.chatId);
+
+                //Skip chats without keys or messages
+                if (chat.keyState != Chat.KeyState.Synced && chat.numMessages <= 0) {
+                    continue;
+                }
+
+                //Skip chats without new messages
+                if (chat.lastMessage <= mStore.getIndexedMessageId(chat.chatId)) {
+                    continue;
+                }
+
+                if (indexChat(protocol, chat, events)) {
+                    indexedMessageIds.put(chat.chatId, chat.lastMessage);
+                }
+            }
+
+            if (!events.isEmpty() || !indexedMessageIds.isEmpty()) {
+                mStore.addIndexed(events, indexedMessageIds);
+            }
+            //The chats that were indexed before but aren't in the list any more have been left
+            if (!chats.isPending() && !leftChatIds.isEmpty()) {
+                mStore.removeChats(leftChatIds);
+            }
+        }
+    };
+
+    public CallHistoryIndexer(CallHistoryStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Start indexing new call events, once the store has read which messages were already indexed
+     */
+    public void start() {
+        mStarted = true;
+        mStore.load(new Runnable() {
+            @Override
+            public void run() {
+                if (mStarted) {
+                    mIndexMonitor.activate();
+                }
+            }
+        });
+    }
+
+    public void stop() {
+        mStarted = false;
+        mIndexMonitor.dispose();
+    }
+
+    /**
+     * Collect the calls from the chat's messages
+     *
+     * @return true if all of them were collected, false if some are still pending and the monitor will run again
+     */
+    private boolean indexChat(BbmdsProtocol protocol, Chat chat, List<CallHistoryEvent> events) {
+        //Get the list of chat messages where the Tag = CALL_EVENT
+        ChatMessageCriteria criteria = new ChatMessageCriteria().tag(CallUtils.CALL_EVENT_TAG).chatId(chat.chatId);
+        ObservableList<ChatMessage> callEventMessages = protocol.getChatMessageList(criteria);
+        if (callEventMessages.isPending()) {
+            return false;
+        }
+
+        long indexedMessageId = mStore.getIndexedMessageId(chat.chatId);
+        long regId = 0;
+        for (ChatMessage message : callEventMessages.get()) {
+            //Checking here to make sure that these messages are valid call events.
+            if (message.messageId <= indexedMessageId || message.hasFlag(ChatMessage.Flags.Deleted) || message.data == null) {
+                continue;
+            }
+
+            if (regId == 0) {
+                //Add the registration ID of the caller to the call event
+                ChatParticipantCriteria participantCriteria = new ChatParticipantCriteria().chatId(chat.chatId);
+                ObservableList<ChatParticipant> participants = protocol.getChatParticipantList(participantCriteria);
+                if (participants.isPending() || participants.size() == 0) {
+                    return false;
+                }
+                User user = protocol.getUser(participants.get(0).userUri).get();
+                if (user.exists == Existence.MAYBE) {
+                    return false;
+                } else if (user.exists == Existence.NO) {
+                    //There is no one to show the calls with
+                    return true;
+                }
+                regId = user.regId;
+            }
+
+            //Create a call history event and set the attributes from the message.data
+            CallHistoryEvent event = new CallHistoryEvent();
+            event.setAttributes(message.data);
+            //Set the call as incoming if the chat message is incoming
+            event.setIsIncomingCall(message.hasFlag(ChatMessage.Flags.Incoming));
+            event.setParticipantRegId(regId);
+            event.setMessage(chat.chatId, message.messageId);
+            events.add(event);
+        }
+        return true;
+    }
+}
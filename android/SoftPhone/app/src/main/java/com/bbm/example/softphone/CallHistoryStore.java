@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.softphone;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bbm.sdk.media.BBMECall;
+import com.bbm.sdk.reactive.Mutable;
+import com.bbm.sdk.reactive.ObservableValue;
+import com.bbm.sdk.support.util.Logger;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local index of the call history, so the history can be shown without going through the CALL_EVENT messages
+ * of every chat. Calls are keyed by the other participant's regId and the end time, so the same call added
+ * when it ends and again when its chat message is indexed is only stored once. The chat message each call was read
+ * from is kept with it, so the call can be removed when the message is deleted or the chat is left.
+ * <p>
+ * For each chat the ID of the newest message indexed is kept, so only chats with new messages need to be
+ * looked at again. Calls are written on a background thread, all the calls found by one pass of the indexer in
+ * a single transaction, so indexing every chat the first time doesn't hold up the main thread. Calls are read on
+ * the same thread a page at a time, so a read always sees the writes made before it.
+ * <p>
+ * The {@link CallTelemetry} timelines of the newest calls made or answered on this device are also kept here. They
+ * are never sent to the other party.
+ */
+public class CallHistoryStore extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "call_history.db";
+    private static final int DATABASE_VERSION = 3;
+
+    private static final String TABLE_CALLS = "calls";
+    private static final String COLUMN_REG_ID = "reg_id";
+    private static final String COLUMN_END_TIME = "end_time";
+    private static final String COLUMN_DURATION = "duration";
+    private static final String COLUMN_LOG_REASON = "log_reason";
+    private static final String COLUMN_INCOMING = "incoming";
+    //the chat and message the call was read from, also used for the indexed chats
+    private static final String COLUMN_CHAT_ID = "chat_id";
+    private static final String COLUMN_MESSAGE_ID = "message_id";
+
+    private static final String TABLE_CHATS = "indexed_chats";
+
+    private static final String TABLE_TELEMETRY = "call_telemetry";
+    private static final String COLUMN_TIMELINE = "timeline";
+    //the timelines of older calls are deleted
+    private static final int MAX_TELEMETRY = 100;
+
+    private static CallHistoryStore sInstance;
+
+    //the newest message indexed for each chat, read for every chat each time the chat list changes
+    private HashMap<String, Long> mIndexedMessageIds;
+    //changed each time a call is added
+    private final Mutable<Long> mLastCallRowId = new Mutable<>(0L);
+    //changed each time calls are removed
+    private final Mutable<Integer> mRemovals = new Mutable<>(0);
+    //writes are done in order on one background thread
+    private final ExecutorService mWriteExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Receives the calls read by {@link #readCalls(CallHistoryEvent, int, CallsCallback)} on the main thread
+     */
+    public interface CallsCallback {
+        void onCallsRead(List<CallHistoryEvent> calls);
+    }
+
+    public static synchronized CallHistoryStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CallHistoryStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CallHistoryStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CALLS + " ("
+                + COLUMN_REG_ID + " INTEGER NOT NULL, "
+                + COLUMN_END_TIME + " INTEGER NOT NULL, "
+                + COLUMN_DURATION + " INTEGER NOT NULL, "
+                + COLUMN_LOG_REASON + " TEXT NOT NULL, "
+                + COLUMN_INCOMING + " INTEGER NOT NULL, "
+                + COLUMN_CHAT_ID + " TEXT, "
+                + COLUMN_MESSAGE_ID + " INTEGER, "
+                + "UNIQUE (" + COLUMN_REG_ID + ", " + COLUMN_END_TIME + "))");
+        db.execSQL("CREATE INDEX calls_end_time ON " + TABLE_CALLS + " (" + COLUMN_END_TIME + ")");
+        db.execSQL("CREATE INDEX calls_chat_id ON " + TABLE_CALLS + " (" + COLUMN_CHAT_ID + ")");
+        db.execSQL("CREATE TABLE " + TABLE_CHATS + " ("
+                + COLUMN_CHAT_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_MESSAGE_ID + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_TELEMETRY + " ("
+                + COLUMN_REG_ID + " INTEGER NOT NULL, "
+                + COLUMN_END_TIME + " INTEGER NOT NULL, "
+                + COLUMN_INCOMING + " INTEGER NOT NULL, "
+                + COLUMN_TIMELINE + " TEXT NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //The index can always be rebuilt from the chat messages, the telemetry is only kept to look into recent calls
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CALLS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHATS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TELEMETRY);
+        onCreate(db);
+    }
+
+    /**
+     * Read which messages have been indexed on a background thread
+     *
+     * @param loaded run on the main thread once read
+     */
+    public void load(final Runnable loaded) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadIndexedMessageIds();
+                mMainHandler.post(loaded);
+            }
+        });
+    }
+
+    /**
+     * Add a call to the history, if it isn't already
+     */
+    public void add(CallHistoryEvent event) {
+        addIndexed(Collections.singletonList(event), Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * Add the calls found by the indexer and record the newest message indexed for each chat, in one transaction.
+     * The calls are written in the background, but the chats are counted as indexed straight away.
+     */
+    public void addIndexed(final List<CallHistoryEvent> events, final Map<String, Long> indexedMessageIds) {
+        synchronized (this) {
+            loadIndexedMessageIds().putAll(indexedMessageIds);
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long lastRowId = write(events, indexedMessageIds);
+                if (lastRowId != -1) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mLastCallRowId.set(lastRowId);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the row ID of the last call added, or -1 if they were all in the history already
+     */
+    private long write(List<CallHistoryEvent> events, Map<String, Long> indexedMessageIds) {
+        long lastRowId = -1;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (CallHistoryEvent event : events) {
+                values.clear();
+                values.put(COLUMN_REG_ID, event.getParticipantRegId());
+                values.put(COLUMN_END_TIME, event.getCallEndTime());
+                values.put(COLUMN_DURATION, event.getCallDuration());
+                values.put(COLUMN_LOG_REASON, event.getCallLogReason().name());
+                values.put(COLUMN_INCOMING, event.isIncomingCall() ? 1 : 0);
+                values.put(COLUMN_CHAT_ID, event.getChatId());
+                if (event.getMessageId() != 0) {
+                    values.put(COLUMN_MESSAGE_ID, event.getMessageId());
+                }
+                long rowId = db.insertWithOnConflict(TABLE_CALLS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                if (rowId != -1) {
+                    lastRowId = rowId;
+                } else if (event.getMessageId() != 0) {
+                    //added when the call ended, before its message was sent
+                    values.clear();
+                    values.put(COLUMN_CHAT_ID, event.getChatId());
+                    values.put(COLUMN_MESSAGE_ID, event.getMessageId());
+                    db.update(TABLE_CALLS, values, COLUMN_REG_ID + "=? AND " + COLUMN_END_TIME + "=? AND "
+                                    + COLUMN_MESSAGE_ID + " IS NULL",
+                            new String[] {Long.toString(event.getParticipantRegId()), Long.toString(event.getCallEndTime())});
+                }
+            }
+            for (Map.Entry<String, Long> chat : indexedMessageIds.entrySet()) {
+                values.clear();
+                values.put(COLUMN_CHAT_ID, chat.getKey());
+                values.put(COLUMN_MESSAGE_ID, chat.getValue());
+                db.insertWithOnConflict(TABLE_CHATS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return lastRowId;
+    }
+
+    /**
+     * Keep the telemetry timeline of a call made or answered on this device, only the newest are kept
+     *
+     * @param endTime the time the call ended on this device
+     */
+    public void addTelemetry(long regId, long endTime, boolean incoming, JSONObject timeline) {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_REG_ID, regId);
+        values.put(COLUMN_END_TIME, endTime);
+        values.put(COLUMN_INCOMING, incoming ? 1 : 0);
+        values.put(COLUMN_TIMELINE, timeline.toString());
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    db.insert(TABLE_TELEMETRY, null, values);
+                    db.delete(TABLE_TELEMETRY, "rowid NOT IN (SELECT rowid FROM " + TABLE_TELEMETRY
+                            + " ORDER BY rowid DESC LIMIT " + MAX_TELEMETRY + ")", null);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Query the kept telemetry timelines, newest first, as reg id, end time, incoming and the timeline JSON
+     */
+    public Cursor queryTelemetry() {
+        return getReadableDatabase().query(TABLE_TELEMETRY,
+                new String[] {COLUMN_REG_ID, COLUMN_END_TIME, COLUMN_INCOMING, COLUMN_TIMELINE},
+                null, null, null, null, "rowid DESC");
+    }
+
+    /**
+     * Remove the calls of chats that were left, and forget that they were indexed
+     */
+    public void removeChats(final Collection<String> chatIds) {
+        synchronized (this) {
+            loadIndexedMessageIds().keySet().removeAll(chatIds);
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int removed = 0;
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (String chatId : chatIds) {
+                        String[] args = new String[] {chatId};
+                        removed += db.delete(TABLE_CALLS, COLUMN_CHAT_ID + "=?", args);
+                        db.delete(TABLE_CHATS, COLUMN_CHAT_ID + "=?", args);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                onRemoved(removed);
+            }
+        });
+    }
+
+    /**
+     * Remove the call read from a message that was deleted
+     */
+    public void removeMessage(final String chatId, final long messageId) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onRemoved(getWritableDatabase().delete(TABLE_CALLS,
+                        COLUMN_CHAT_ID + "=? AND " + COLUMN_MESSAGE_ID + "=?",
+                        new String[] {chatId, Long.toString(messageId)}));
+            }
+        });
+    }
+
+    private void onRemoved(int removed) {
+        if (removed > 0) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mRemovals.set(mRemovals.get() + 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the row ID of the newest call added, this changes each time one is added
+     */
+    public ObservableValue<Long> getLastCallRowId() {
+        return mLastCallRowId;
+    }
+
+    /**
+     * @return a count that changes each time calls are removed
+     */
+    public ObservableValue<Integer> getRemovals() {
+        return mRemovals;
+    }
+
+    /**
+     * Read a page of calls on the background thread, newest first. The page after a call is found by its end time
+     * and regId, which are unique, so a page is read straight from the end time index without skipping the rows
+     * before it, and calls added since the previous page don't shift the next one.
+     *
+     * @param after the last call of the previous page, or null for the newest calls
+     * @param limit the most calls to read, fewer are returned once there are no more
+     * @param callback run on the main thread with the calls
+     */
+    public void readCalls(final CallHistoryEvent after, final int limit, final CallsCallback callback) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String selection = null;
+                String[] args = null;
+                if (after != null) {
+                    String endTime = Long.toString(after.getCallEndTime());
+                    selection = COLUMN_END_TIME + "<? OR (" + COLUMN_END_TIME + "=? AND " + COLUMN_REG_ID + "<?)";
+                    args = new String[] {endTime, endTime, Long.toString(after.getParticipantRegId())};
+                }
+                final ArrayList<CallHistoryEvent> calls = new ArrayList<>(limit);
+                Cursor cursor = getReadableDatabase().query(TABLE_CALLS,
+                        new String[] {COLUMN_REG_ID, COLUMN_END_TIME, COLUMN_DURATION, COLUMN_LOG_REASON, COLUMN_INCOMING,
+                                COLUMN_CHAT_ID, COLUMN_MESSAGE_ID},
+                        selection, args, null, null, COLUMN_END_TIME + " DESC, " + COLUMN_REG_ID + " DESC",
+                        Integer.toString(limit));
+                try {
+                    while (cursor.moveToNext()) {
+                        calls.add(readEvent(cursor));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCallsRead(calls);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the ID of the newest message of the chat that was indexed, or 0 if none were
+     */
+    public synchronized long getIndexedMessageId(String chatId) {
+        Long messageId = loadIndexedMessageIds().get(chatId);
+        return messageId != null ? messageId : 0;
+    }
+
+    /**
+     * @return the IDs of all the chats that were indexed
+     */
+    public synchronized Set<String> getIndexedChatIds() {
+        return new HashSet<>(loadIndexedMessageIds().keySet());
+    }
+
+    private synchronized Map<String, Long> loadIndexedMessageIds() {
+        if (mIndexedMessageIds == null) {
+            mIndexedMessageIds = new HashMap<>();
+            Cursor cursor = getReadableDatabase().query(TABLE_CHATS, new String[] {COLUMN_CHAT_ID, COLUMN_MESSAGE_ID},
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    mIndexedMessageIds.put(cursor.getString(0), cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return mIndexedMessageIds;
+    }
+
+    /**
+     * @return the call at the position of a cursor from {@link #readCalls(CallHistoryEvent, int, CallsCallback)}
+     */
+    private static CallHistoryEvent readEvent(Cursor cursor) {
+        CallHistoryEvent event = new CallHistoryEvent()
+                .setParticipantRegId(cursor.getLong(0))
+                .setCallEndTime(cursor.getLong(1))
+                .setCallDuration(cursor.getLong(2))
+                .setIsIncomingCall(cursor.getInt(4) != 0)
+                .setMessage(cursor.getString(5), cursor.isNull(6) ? 0 : cursor.getLong(6));
+        try {
+            event.setCallLogReason(BBMECall.CallLog.valueOf(cursor.getString(3)));
+        } catch (IllegalArgumentException e) {
+            //added by a version of the SDK with other reasons
+            Logger.w(e, "Unknown call log reason " + cursor.getString(3));
+        }
+        return event;
+    }
+}
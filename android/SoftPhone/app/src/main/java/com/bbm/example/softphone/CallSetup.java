@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.softphone;
+
+import android.os.SystemClock;
+
+import com.bbm.sdk.support.util.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The timings of the stages of starting an outgoing call, from when the user asked to make the call.
+ * The stages before the call exists are reported with the call's {@link CallTelemetry}, which records the rest
+ * (ringing and connected).
+ */
+public class CallSetup {
+
+    public static final String STAGE_PERMISSION = "permission";
+    public static final String STAGE_IDENTITY = "identity";
+    public static final String STAGE_IDENTITY_CACHED = "identityCached";
+    public static final String STAGE_START_CALL = "startCall";
+    public static final String STAGE_CALL_CREATED = "callCreated";
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final LinkedHashMap<String, Long> mStages = new LinkedHashMap<>();
+
+    /**
+     * @return the {@link SystemClock#elapsedRealtime()} the user asked to make the call
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Record that a stage was reached now
+     */
+    public void mark(String stage) {
+        mStages.put(stage, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Log the stages and add them to the call's telemetry
+     */
+    public void report(int callId) {
+        StringBuilder timings = new StringBuilder();
+        for (Map.Entry<String, Long> stage : mStages.entrySet()) {
+            timings.append(' ').append(stage.getKey()).append('=').append(stage.getValue() - mStartTime).append("ms");
+            CallTelemetry.onSetupStage(callId, stage.getKey(), stage.getValue());
+        }
+        Logger.i("Call " + callId + " setup:" + timings);
+    }
+}
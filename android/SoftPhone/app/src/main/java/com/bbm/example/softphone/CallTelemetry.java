@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.softphone;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.bbm.sdk.BBMEnterprise;
+import com.bbm.sdk.media.BBMECall;
+import com.bbm.sdk.media.BBMEMediaManager;
+import com.bbm.sdk.reactive.ObservableMonitor;
+import com.bbm.sdk.support.util.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Records how a call went, from when it is started until it ends, whether or not the {@link InCallActivity} is
+ * showing. Changes to the call state, call quality, call recovery and active audio device are kept with their time
+ * in a small ring buffer, along with how long the camera took to turn on or off. When the call ends the recording is
+ * turned into a compact summary that is added to the {@link CallHistoryEvent} sent to the other party, while the
+ * timeline of events is only kept locally in the {@link CallHistoryStore}.
+ */
+public class CallTelemetry {
+
+    //The newest events kept for each call, older ones are dropped
+    private static final int CAPACITY = 64;
+
+    private static final String RING_MS = "ringMs";
+    private static final String SETUP_MS = "setupMs";
+    private static final String DURATION_MS = "durationMs";
+    private static final String QUALITY_MS = "qualityMs";
+    private static final String RECOVERIES = "recoveries";
+    private static final String CAMERA_COUNT = "cameraCount";
+    private static final String CAMERA_AVERAGE_MS = "cameraAvgMs";
+    private static final String CAMERA_MAX_MS = "cameraMaxMs";
+    private static final String EVENTS = "events";
+    private static final String DROPPED_EVENTS = "dropped";
+
+    private static final SparseArray<CallTelemetry> sRecorders = new SparseArray<>();
+
+    private final int mCallId;
+    private final long mStartTime;
+    private long mEndTime;
+
+    //Ring buffer of events, the time is since the call was started
+    private final long[] mEventTimes = new long[CAPACITY];
+    private final String[] mEventTypes = new String[CAPACITY];
+    private final String[] mEventValues = new String[CAPACITY];
+    private int mNextEvent;
+    private int mEventCount;
+    private int mDroppedEvents;
+
+    private BBMECall.CallState mState;
+    private long mRingTime;
+    private long mConnectedTime;
+    private BBMECall.CallQuality mQuality;
+    private long mQualityTime;
+    private final EnumMap<BBMECall.CallQuality, Long> mQualityDurations = new EnumMap<>(BBMECall.CallQuality.class);
+    private boolean mInRecovery;
+    private int mRecoveries;
+    private BBMEMediaManager.AudioDevice mAudioDevice;
+
+    private long mCameraRequestTime;
+    private int mCameraCount;
+    private long mCameraTotalMs;
+    private long mCameraMaxMs;
+
+    /**
+     * Record each change to the call, this stays active until the call ends
+     */
+    private final ObservableMonitor mCallMonitor = new ObservableMonitor() {
+        @Override
+        protected void run() {
+            BBMEMediaManager mediaManager = BBMEnterprise.getInstance().getMediaManager();
+            BBMECall call = mediaManager.getCall(mCallId).get();
+            long now = SystemClock.elapsedRealtime();
+
+            BBMECall.CallState state = call.getCallState();
+            if (state != mState) {
+                mState = state;
+                record(now, "state", state.name());
+                if (state == BBMECall.CallState.CALL_STATE_RINGBACK && mRingTime == 0) {
+                    mRingTime = now;
+                }
+                if (state == BBMECall.CallState.CALL_STATE_CONNECTED && mConnectedTime == 0) {
+                    mConnectedTime = now;
+                }
+            }
+
+            BBMECall.CallQuality quality = call.getCallQuality();
+            if (quality != mQuality) {
+                addQualityDuration(now);
+                mQuality = quality;
+                record(now, "quality", quality.name());
+            }
+
+            boolean inRecovery = call.isInCallRecovery();
+            if (inRecovery != mInRecovery) {
+                mInRecovery = inRecovery;
+                record(now, "recovery", Boolean.toString(inRecovery));
+                if (inRecovery) {
+                    ++mRecoveries;
+                }
+            }
+
+            BBMEMediaManager.AudioDevice audioDevice = mediaManager.getActiveAudioDevice().get();
+            if (audioDevice != mAudioDevice) {
+                mAudioDevice = audioDevice;
+                record(now, "audio", audioDevice.name());
+            }
+        }
+    };
+
+    private CallTelemetry(int callId, long startTime) {
+        mCallId = callId;
+        mStartTime = startTime;
+    }
+
+    /**
+     * Start recording a call
+     *
+     * @param startTime the {@link SystemClock#elapsedRealtime()} when the call was started or arrived, used to
+     *                  measure how long it took to connect
+     */
+    public static void start(int callId, long startTime) {
+        CallTelemetry telemetry = new CallTelemetry(callId, startTime);
+        synchronized (sRecorders) {
+            if (sRecorders.get(callId) != null) {
+                //Already recording this call
+                return;
+            }
+            sRecorders.put(callId, telemetry);
+        }
+        telemetry.mCallMonitor.activate();
+    }
+
+    /**
+     * Stop recording the call
+     *
+     * @return the recording of the call, or null if it wasn't being recorded
+     */
+    public static CallTelemetry finish(int callId) {
+        CallTelemetry telemetry;
+        synchronized (sRecorders) {
+            telemetry = sRecorders.get(callId);
+            sRecorders.remove(callId);
+        }
+        if (telemetry == null) {
+            return null;
+        }
+        telemetry.mCallMonitor.dispose();
+        telemetry.mEndTime = SystemClock.elapsedRealtime();
+        telemetry.addQualityDuration(telemetry.mEndTime);
+        return telemetry;
+    }
+
+    /**
+     * Record that the camera was asked to turn on or off
+     */
+    public static void onCameraRequested(int callId, boolean enable) {
+        CallTelemetry telemetry = get(callId);
+        if (telemetry != null) {
+            telemetry.mCameraRequestTime = SystemClock.elapsedRealtime();
+            telemetry.record(telemetry.mCameraRequestTime, "camera", enable ? "on" : "off");
+        }
+    }
+
+    /**
+     * Record that the camera finished turning on or off
+     */
+    public static void onCameraCompleted(int callId, boolean success) {
+        CallTelemetry telemetry = get(callId);
+        if (telemetry == null || telemetry.mCameraRequestTime == 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long latency = now - telemetry.mCameraRequestTime;
+        telemetry.mCameraRequestTime = 0;
+        telemetry.record(now, "cameraDone", success ? Long.toString(latency) : "failed");
+        if (success) {
+            ++telemetry.mCameraCount;
+            telemetry.mCameraTotalMs += latency;
+            telemetry.mCameraMaxMs = Math.max(telemetry.mCameraMaxMs, latency);
+        }
+    }
+
+    /**
+     * Record a stage of setting up an outgoing call, see {@link CallSetup}
+     *
+     * @param time the {@link SystemClock#elapsedRealtime()} the stage was reached, which may be before the call was
+     *             created
+     */
+    public static void onSetupStage(int callId, String stage, long time) {
+        CallTelemetry telemetry = get(callId);
+        if (telemetry != null) {
+            telemetry.record(time, "stage", stage);
+        }
+    }
+
+    private static CallTelemetry get(int callId) {
+        synchronized (sRecorders) {
+            return sRecorders.get(callId);
+        }
+    }
+
+    private void record(long time, String type, String value) {
+        if (mEventCount == CAPACITY) {
+            ++mDroppedEvents;
+        } else {
+            ++mEventCount;
+        }
+        mEventTimes[mNextEvent] = time - mStartTime;
+        mEventTypes[mNextEvent] = type;
+        mEventValues[mNextEvent] = value;
+        mNextEvent = (mNextEvent + 1) % CAPACITY;
+    }
+
+    private void addQualityDuration(long now) {
+        if (mQuality != null) {
+            Long duration = mQualityDurations.get(mQuality);
+            mQualityDurations.put(mQuality, (duration != null ? duration : 0) + now - mQualityTime);
+        }
+        mQualityTime = now;
+    }
+
+    /**
+     * @return the compact summary of the finished recording, without the events
+     */
+    public JSONObject getSummary() {
+        JSONObject summary = new JSONObject();
+        try {
+            summary.put(RING_MS, mRingTime != 0 ? mRingTime - mStartTime : -1);
+            summary.put(SETUP_MS, mConnectedTime != 0 ? mConnectedTime - mStartTime : -1);
+            summary.put(DURATION_MS, mEndTime - mStartTime);
+            JSONObject qualityMs = new JSONObject();
+            for (Map.Entry<BBMECall.CallQuality, Long> entry : mQualityDurations.entrySet()) {
+                qualityMs.put(entry.getKey().name(), entry.getValue());
+            }
+            summary.put(QUALITY_MS, qualityMs);
+            summary.put(RECOVERIES, mRecoveries);
+            if (mCameraCount > 0) {
+                summary.put(CAMERA_COUNT, mCameraCount);
+                summary.put(CAMERA_AVERAGE_MS, mCameraTotalMs / mCameraCount);
+                summary.put(CAMERA_MAX_MS, mCameraMaxMs);
+            }
+        } catch (JSONException e) {
+            Logger.e(e);
+        }
+        return summary;
+    }
+
+    /**
+     * @return the summary of the finished recording with each event as "time type value"
+     */
+    public JSONObject getTimeline() {
+        JSONObject summary = getSummary();
+        try {
+            JSONArray events = new JSONArray();
+            int first = (mNextEvent - mEventCount + CAPACITY) % CAPACITY;
+            for (int i = 0; i < mEventCount; ++i) {
+                int index = (first + i) % CAPACITY;
+                events.put(mEventTimes[index] + " " + mEventTypes[index] + " " + mEventValues[index]);
+            }
+            summary.put(EVENTS, events);
+            if (mDroppedEvents > 0) {
+                summary.put(DROPPED_EVENTS, mDroppedEvents);
+            }
+        } catch (JSONException e) {
+            Logger.e(e);
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.softphone;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.SoundPool;
+
+import com.bbm.sdk.support.util.Logger;
+
+/**
+ * Plays the outgoing ring and end call tones during calls.
+ * The tones are decoded into a SoundPool once when the app starts, so a tone starts playing as soon as it is asked
+ * for instead of after a new MediaPlayer has been prepared, and there are no players to release after each call.
+ */
+public class CallTones {
+
+    //The outgoing ring and the end call beep can overlap briefly
+    private static final int MAX_STREAMS = 2;
+
+    private final SoundPool mSoundPool;
+    private final int mOutgoingRingSound;
+    private final int mEndCallSound;
+    private boolean mOutgoingRingLoaded;
+    private boolean mEndCallLoaded;
+
+    //The stream playing the outgoing ring, or 0 if it isn't playing
+    private int mOutgoingRingStream;
+    //True if the ring was started before it finished loading, it is played once loaded
+    private boolean mOutgoingRingPending;
+
+    /**
+     * Load the tones, this returns immediately and they are decoded in the background
+     */
+    public CallTones(Context context) {
+        //Play the tones on the voice call stream like the call audio
+        AudioAttributes attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                .build();
+        mSoundPool = new SoundPool.Builder()
+                .setMaxStreams(MAX_STREAMS)
+                .setAudioAttributes(attributes)
+                .build();
+        mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                onLoaded(sampleId, status);
+            }
+        });
+        mOutgoingRingSound = mSoundPool.load(context, R.raw.bbm_outgoing_call, 1);
+        mEndCallSound = mSoundPool.load(context, R.raw.bbm_end_call, 1);
+    }
+
+    private synchronized void onLoaded(int sampleId, int status) {
+        if (status != 0) {
+            Logger.e("Error loading call tone " + sampleId + " status=" + status);
+            return;
+        }
+        if (sampleId == mOutgoingRingSound) {
+            mOutgoingRingLoaded = true;
+            if (mOutgoingRingPending) {
+                mOutgoingRingPending = false;
+                startOutgoingRing();
+            }
+        } else if (sampleId == mEndCallSound) {
+            mEndCallLoaded = true;
+        }
+    }
+
+    /**
+     * Start looping the outgoing ring, while the other side of the call is ringing
+     */
+    public synchronized void startOutgoingRing() {
+        if (mOutgoingRingStream != 0) {
+            //Already ringing
+            return;
+        }
+        if (!mOutgoingRingLoaded) {
+            mOutgoingRingPending = true;
+            return;
+        }
+        mOutgoingRingStream = mSoundPool.play(mOutgoingRingSound, 1, 1, 1, -1, 1);
+        if (mOutgoingRingStream == 0) {
+            Logger.e("Error playing outgoing call ringtone");
+        }
+    }
+
+    /**
+     * Stop the outgoing ring if it is playing
+     */
+    public synchronized void stopOutgoingRing() {
+        mOutgoingRingPending = false;
+        if (mOutgoingRingStream != 0) {
+            mSoundPool.stop(mOutgoingRingStream);
+            mOutgoingRingStream = 0;
+        }
+    }
+
+    /**
+     * Play a beep tone when the call ends
+     */
+    public synchronized void playEndCall() {
+        if (!mEndCallLoaded) {
+            //Too late by the time it loads, skip it
+            Logger.w("End call beep not loaded");
+            return;
+        }
+        if (mSoundPool.play(mEndCallSound, 1, 1, 1, 0, 1) == 0) {
+            Logger.e("Error playing end call beep");
+        }
+    }
+}
@@ -18,10 +18,7 @@ package com.bbm.example.softphone;
 
 import android.Manifest;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.Resources;
-import android.media.AudioManager;
-import android.media.MediaPlayer;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 import androidx.appcompat.app.AppCompatActivity;
@@ -29,16 +26,20 @@ import android.widget.Toast;
 
 import com.bbm.sdk.BBMEnterprise;
 import com.bbm.sdk.bbmds.inbound.ChatStartFailed;
+import com.bbm.sdk.bbmds.internal.Existence;
 import com.bbm.sdk.bbmds.outbound.ChatMessageSend;
 import com.bbm.sdk.media.BBMECall;
 import com.bbm.sdk.media.BBMECallCreationObserver;
 import com.bbm.sdk.media.BBMECallObserver;
 import com.bbm.sdk.media.BBMEMediaManager;
+import com.bbm.sdk.reactive.Mutable;
+import com.bbm.sdk.reactive.ObservableValue;
+import com.bbm.sdk.reactive.SingleshotMonitor;
+import com.bbm.sdk.support.identity.UserIdentityMapper;
 import com.bbm.sdk.support.util.ChatStartHelper;
 import com.bbm.sdk.support.util.Logger;
 import com.bbm.sdk.support.util.PermissionsUtil;
 
-import java.io.IOException;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
@@ -46,15 +47,22 @@ public class CallUtils {
 
     // Keep a copy of the registration id we are attempting to call, we will use this to retry after a permission request
     private static long sRegIdToCall;
+    private static CallSetup sSetupToCall;
+    private static boolean sRecordAudioGranted;
+    //Counts the calls asked for, so a user id mapped after the user asked for another call is ignored
+    private static int sCallRequest;
+    //Set when the user hangs up before the pending call has been created
+    private static boolean sPendingCallCancelled;
+
+    static final int PENDING_CALL_CREATING = Integer.MIN_VALUE;
+    static final int PENDING_CALL_FAILED = -1;
+    private static final Mutable<Integer> sPendingCallId = new Mutable<>(PENDING_CALL_FAILED);
 
     public static final String CALL_EVENT_TAG = "CALL_EVENT";
 
     //Create a call observer we can add to each call
     private static BBMECallObserver mCallObserver = new BBMECallObserver() {
 
-        private MediaPlayer mOutgoingRingPlayer;
-        private MediaPlayer mEndCallBeep;
-
         @Override
         public void onIncomingCallMissed(@NonNull BBMECall bbmeCall) {
 
@@ -73,44 +81,13 @@ public class CallUtils {
         @Override
         public void onOutgoingCallRinging(@NonNull BBMECall bbmeCall) {
             //When the call starts ringing on the other side start playing our ringer.
-            if (mOutgoingRingPlayer == null) {
-                try {
-                    mOutgoingRingPlayer = new MediaPlayer();
-                    mOutgoingRingPlayer.setAudioStreamType(AudioManager.STREAM_VOICE_CALL);
-                    AssetFileDescriptor afd = SoftPhoneApplication.getInstance().getResources().openRawResourceFd(R.raw.bbm_outgoing_call);
-                    if (afd == null) {
-                        Logger.e("Outgoing call resource not found");
-                        return;
-                    }
-                    mOutgoingRingPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
-                    afd.close();
-                    mOutgoingRingPlayer.setLooping(true);
-
-                    mOutgoingRingPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                        @Override
-                        public void onPrepared(MediaPlayer mp) {
-                            mOutgoingRingPlayer.start();
-                        }
-                    });
-                    mOutgoingRingPlayer.prepare();
-                } catch (final IOException ioe) {
-                    Logger.e(ioe, "Error playing outgoing call ringtone");
-                    mOutgoingRingPlayer = null;
-                } catch (final Resources.NotFoundException nfe) {
-                    Logger.e(nfe, "Error loading outgoing call ringtone");
-                    mOutgoingRingPlayer = null;
-                }
-            }
+            SoftPhoneApplication.getInstance().getCallTones().startOutgoingRing();
         }
 
         @Override
         public void onCallConnected(@NonNull BBMECall bbmeCall) {
             //When the call connects stop our outgoing ringer
-            if (mOutgoingRingPlayer != null) {
-                mOutgoingRingPlayer.stop();
-                mOutgoingRingPlayer.release();
-                mOutgoingRingPlayer = null;
-            }
+            SoftPhoneApplication.getInstance().getCallTones().stopOutgoingRing();
         }
 
         @Override
@@ -123,58 +100,27 @@ public class CallUtils {
             postCallEvent(bbmeCall);
         }
 
-        /**
-         * Play a beep tone when the call ends. This is helpful is the user is holding the phone to their ear, they will know the call is over.
-         */
-        private void playCallEndedBeep() {
-            try {
-                mEndCallBeep = new MediaPlayer();
-                mEndCallBeep.setAudioStreamType(AudioManager.STREAM_VOICE_CALL);
-                AssetFileDescriptor afd = SoftPhoneApplication.getInstance().getResources().openRawResourceFd(R.raw.bbm_end_call);
-                if (afd == null) {
-                    Logger.e("End call resource not found");
-                    return;
-                }
-                mEndCallBeep.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
-                afd.close();
-
-                mEndCallBeep.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                    @Override
-                    public void onPrepared(MediaPlayer mp) {
-                        mEndCallBeep.start();
-                    }
-                });
-
-                mEndCallBeep.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-                    @Override
-                    public void onCompletion(MediaPlayer mp) {
-                        mp.release();
-                    }
-                });
-                mEndCallBeep.prepare();
-            } catch (final IOException ioe) {
-                Logger.e(ioe, "Error playing end call beep ringtone");
-                mEndCallBeep = null;
-            } catch (final Resources.NotFoundException nfe) {
-                Logger.e(nfe, "Error loading outgoing end call beep ringtone");
-                mEndCallBeep = null;
-            }
-        }
-
         /**
          * Adds a new chat message for each call to create a call history log.
          */
         private void postCallEvent(final BBMECall bbmeCall) {
 
             final long callEndTime = System.currentTimeMillis();
-            playCallEndedBeep();
 
-            if (mOutgoingRingPlayer != null) {
-                mOutgoingRingPlayer.stop();
-                mOutgoingRingPlayer.release();
-                mOutgoingRingPlayer = null;
+            //Stop recording the call, only the summary is included in the call log entry
+            final CallTelemetry telemetry = CallTelemetry.finish(bbmeCall.getCallId());
+            if (telemetry != null) {
+                //The timeline of both incoming and outgoing calls is kept on this device
+                CallHistoryStore.getInstance(SoftPhoneApplication.getInstance()).addTelemetry(bbmeCall.getRegId(),
+                        callEndTime, bbmeCall.isIncomingCall(), telemetry.getTimeline());
             }
 
+            //Stop the ringer if the call ended before connecting, and play a beep tone when the call ends.
+            //This is helpful if the user is holding the phone to their ear, they will know the call is over.
+            CallTones callTones = SoftPhoneApplication.getInstance().getCallTones();
+            callTones.stopOutgoingRing();
+            callTones.playEndCall();
+
             if (bbmeCall.isIncomingCall()) {
                 //Only outgoing caller will generate a call log entry
                 return;
@@ -188,7 +134,8 @@ public class CallUtils {
                     CallHistoryEvent callHistoryEvent = new CallHistoryEvent()
                             .setCallEndTime(callEndTime)
                             .setCallLogReason(bbmeCall.getCallLog())
-                            .setCallDuration(System.currentTimeMillis() - bbmeCall.getCallStartTime());
+                            .setCallDuration(System.currentTimeMillis() - bbmeCall.getCallStartTime())
+                            .setTelemetry(telemetry != null ? telemetry.getSummary() : null);
 
                     //Send the call log chat message
                     //We are creating the chat message with a custom tag "CALL_EVENT"
@@ -197,6 +144,11 @@ public class CallUtils {
                     //Attach the call history event data to the chat message.
                     callMessage.data(callHistoryEvent.getJSONObject());
                     BBMEnterprise.getInstance().getBbmdsProtocol().send(callMessage);
+
+                    //Add the call to the call history index now instead of waiting for the message to be indexed
+                    callHistoryEvent.setParticipantRegId(bbmeCall.getRegId()).setIsIncomingCall(false)
+                            .setMessage(chatId, 0);
+                    CallHistoryStore.getInstance(SoftPhoneApplication.getInstance()).add(callHistoryEvent);
                 }
 
                 @Override
@@ -207,53 +159,191 @@ public class CallUtils {
         }
     };
 
+    /**
+     * Starts a call to the user id provided. If RECORD_AUDIO permission has not been granted the user is prompted
+     * while the user id is mapped to a registration id. The registration id is remembered in the {@link IdentityCache}
+     * so calling the same user again can start right away.
+     */
+    public static void makeCall(final AppCompatActivity activity, final Fragment fragment, final String userId) {
+        final int callRequest = newCallRequest();
+        final CallSetup setup = new CallSetup();
+        final boolean permissionGranted = checkRecordAudioPermission(activity, fragment);
+        setup.mark(CallSetup.STAGE_PERMISSION);
+
+        final IdentityCache identityCache = IdentityCache.getInstance(activity);
+        final long cachedRegId = identityCache.getRegId(userId);
+        if (cachedRegId != 0) {
+            setup.mark(CallSetup.STAGE_IDENTITY_CACHED);
+            if (permissionGranted) {
+                startCall(activity, cachedRegId, setup);
+            } else {
+                //Wait for the permission request
+                sRegIdToCall = cachedRegId;
+                sSetupToCall = setup;
+            }
+            return;
+        }
+
+        SingleshotMonitor.run(new SingleshotMonitor.RunUntilTrue() {
+            @Override
+            public boolean run() {
+                UserIdentityMapper.IdentityMapResult mapResult =
+                        UserIdentityMapper.getInstance().getRegIdForUid(userId, false).get();
+                if (mapResult.existence == Existence.MAYBE) {
+                    return false;
+                }
+                if (callRequest != sCallRequest) {
+                    //The user asked for another call since
+                    return true;
+                }
+
+                if (mapResult.existence == Existence.YES) {
+                    setup.mark(CallSetup.STAGE_IDENTITY);
+                    identityCache.putRegId(userId, mapResult.regId);
+                    //The permission may have been granted while the user id was being mapped
+                    if (sRecordAudioGranted) {
+                        startCall(activity, mapResult.regId, setup);
+                    } else {
+                        sRegIdToCall = mapResult.regId;
+                        sSetupToCall = setup;
+                    }
+                } else {
+                    Toast.makeText(activity, activity.getString(R.string.user_id_not_found, userId),
+                            Toast.LENGTH_LONG).show();
+                }
+                return true;
+            }
+        });
+    }
+
     /**
      * Starts a call with the registration id provided. If RECORD_AUDIO permission has not be granted it will prompt the user first.
      */
-    @SuppressWarnings("MissingPermission")
     public static void makeCall(final AppCompatActivity activity, Fragment fragment, final long regId) {
+        newCallRequest();
+        makeCall(activity, fragment, regId, new CallSetup());
+    }
+
+    /**
+     * Forget any call still waiting for the permission, a declined permission prompt must not leave it to be
+     * started by the next request
+     */
+    private static int newCallRequest() {
+        sRegIdToCall = 0;
+        sSetupToCall = null;
+        return ++sCallRequest;
+    }
 
-        sRegIdToCall = regId;
+    private static void makeCall(final AppCompatActivity activity, Fragment fragment, final long regId, CallSetup setup) {
         //Check for permission to access the microphone before starting an outgoing call
-        if (PermissionsUtil.checkOrPromptSelfPermission(activity, fragment,
-                Manifest.permission.RECORD_AUDIO,
-                PermissionsUtil.PERMISSION_RECORD_AUDIO_FOR_VOICE_CALL,
-                R.string.rationale_record_audio, PermissionsUtil.sEmptyOnCancelListener)) {
+        boolean permissionGranted = checkRecordAudioPermission(activity, fragment);
+        setup.mark(CallSetup.STAGE_PERMISSION);
+        if (permissionGranted) {
+            startCall(activity, regId, setup);
+        } else {
+            sRegIdToCall = regId;
+            sSetupToCall = setup;
+        }
+    }
 
-            //Ask the media service to start a call with the specified regId and include an observer to be notified of the result
-            BBMEnterprise.getInstance().getMediaManager().startCall(regId, false, new BBMECallCreationObserver() {
-                @Override
-                public void onCallCreationSuccess(int callId) {
-                    addObserverToCall(callId);
+    /**
+     * @return true if the RECORD_AUDIO permission is granted, otherwise the user is prompted for it
+     */
+    private static boolean checkRecordAudioPermission(AppCompatActivity activity, Fragment fragment) {
+        //The app is restarted if a permission is revoked, so once granted it doesn't need to be checked again
+        if (!sRecordAudioGranted) {
+            sRecordAudioGranted = PermissionsUtil.checkOrPromptSelfPermission(activity, fragment,
+                    Manifest.permission.RECORD_AUDIO,
+                    PermissionsUtil.PERMISSION_RECORD_AUDIO_FOR_VOICE_CALL,
+                    R.string.rationale_record_audio, PermissionsUtil.sEmptyOnCancelListener);
+        }
+        return sRecordAudioGranted;
+    }
 
-                    //The call was started successfully. Open our call activity
-                    Intent inCallIntent = new Intent(activity, InCallActivity.class);
-                    inCallIntent.putExtra(InCallActivity.EXTRA_CALL_ID, callId);
-                    activity.startActivity(inCallIntent);
+    @SuppressWarnings("MissingPermission")
+    private static void startCall(final AppCompatActivity activity, long regId, final CallSetup setup) {
+        setup.mark(CallSetup.STAGE_START_CALL);
+
+        //Open our call activity while the call is being created, it shows the call once it has been
+        sPendingCallId.set(PENDING_CALL_CREATING);
+        sPendingCallCancelled = false;
+        Intent inCallIntent = new Intent(activity, InCallActivity.class);
+        inCallIntent.putExtra(InCallActivity.EXTRA_PENDING_CALL, true);
+        activity.startActivity(inCallIntent);
+
+        //Ask the media service to start a call with the specified regId and include an observer to be notified of the result
+        BBMEnterprise.getInstance().getMediaManager().startCall(regId, false, new BBMECallCreationObserver() {
+            @Override
+            public void onCallCreationSuccess(int callId) {
+                setup.mark(CallSetup.STAGE_CALL_CREATED);
+                addObserverToCall(callId, setup.getStartTime());
+                setup.report(callId);
+                if (sPendingCallCancelled) {
+                    //The user hung up while it was being created, end it before it rings the other side for long
+                    Logger.i("Call " + callId + " was hung up while being created");
+                    sPendingCallCancelled = false;
+                    sPendingCallId.set(PENDING_CALL_FAILED);
+                    BBMEnterprise.getInstance().getMediaManager().endCall(callId);
+                    return;
                 }
+                sPendingCallId.set(callId);
+            }
 
-                @Override
-                public void onCallCreationFailure(@NonNull BBMEMediaManager.Error error) {
-                    //The call wasn't able to be started, provide an error to the user
-                    Toast.makeText(activity, activity.getString(R.string.error_starting_call, error.name()), Toast.LENGTH_LONG).show();
+            @Override
+            public void onCallCreationFailure(@NonNull BBMEMediaManager.Error error) {
+                sPendingCallId.set(PENDING_CALL_FAILED);
+                if (sPendingCallCancelled) {
+                    //The user already hung up, no need to tell them
+                    sPendingCallCancelled = false;
+                    return;
                 }
-            });
+                //The call wasn't able to be started, provide an error to the user
+                Toast.makeText(activity, activity.getString(R.string.error_starting_call, error.name()), Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * End the call being started as soon as it has been created, used when the user hangs up before it is
+     */
+    static void cancelPendingCall() {
+        if (sPendingCallId.get() == PENDING_CALL_CREATING) {
+            sPendingCallCancelled = true;
         }
     }
 
+    /**
+     * @return the ID of the call being started for an {@link InCallActivity} opened with
+     * {@link InCallActivity#EXTRA_PENDING_CALL}, or {@link #PENDING_CALL_CREATING} or {@link #PENDING_CALL_FAILED}
+     */
+    static ObservableValue<Integer> getPendingCallId() {
+        return sPendingCallId;
+    }
+
     static void addObserverToCall(int callId) {
+        addObserverToCall(callId, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param setupStartTime the {@link SystemClock#elapsedRealtime()} the call was started or arrived
+     */
+    static void addObserverToCall(int callId, long setupStartTime) {
         //Add a call observer
         BBMECall call = BBMEnterprise.getInstance().getMediaManager().getCall(callId).get();
         call.addObserver(mCallObserver);
+        //Record how the call goes for the call log
+        CallTelemetry.start(callId, setupStartTime);
     }
 
     /**
      * Make a call to the previously selected registration id after permission has been granted.
      */
     public static void makeCallPermissionGranted(AppCompatActivity activity, Fragment fragment) {
+        sRecordAudioGranted = true;
         if (sRegIdToCall != 0) {
-            makeCall(activity, fragment, sRegIdToCall);
+            makeCall(activity, fragment, sRegIdToCall, sSetupToCall != null ? sSetupToCall : new CallSetup());
             sRegIdToCall = 0;
+            sSetupToCall = null;
         }
     }
 
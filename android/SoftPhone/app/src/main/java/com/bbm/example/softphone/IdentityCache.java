@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.softphone;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the registration id each user id mapped to, so calling the same user again doesn't have to wait for
+ * the identity mapping. A user's registration id doesn't change, so a cached one can be used straight away.
+ */
+public class IdentityCache {
+
+    private static final String PREFERENCES_NAME = "identity_cache";
+
+    private static IdentityCache sInstance;
+
+    private final SharedPreferences mPreferences;
+
+    public static synchronized IdentityCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new IdentityCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private IdentityCache(Context context) {
+        //The preferences are loaded in the background from here, so create this early to have them ready
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the registration id of the user id, or 0 if it isn't known
+     */
+    public long getRegId(String userId) {
+        return mPreferences.getLong(userId, 0);
+    }
+
+    public void putRegId(String userId, long regId) {
+        if (getRegId(userId) != regId) {
+            mPreferences.edit().putLong(userId, regId).apply();
+        }
+    }
+}
@@ -68,12 +68,16 @@ import java.util.List;
 public class InCallActivity extends AppCompatActivity {
 
     public static final String EXTRA_CALL_ID = "com.bbm.example.softphone.CALL_ID";
+    //Set when the activity is opened while the call is still being created, see CallUtils.getPendingCallId()
+    public static final String EXTRA_PENDING_CALL = "com.bbm.example.softphone.PENDING_CALL";
 
     private final static long CALL_QUALITY_WINDOW = 5000;
     private final static long VIDEO_BUTTON_RENABLE_DELAY = 1000;
 
     private Mutable<Long> mCallDuration = new Mutable<>(0L);
     private int mCallId;
+    private boolean mWaitingForCall;
+    private boolean mMonitoring;
 
     private ImageButton mEnableCameraButton;
     private ImageButton mMuteButton;
@@ -153,6 +157,29 @@ public class InCallActivity extends AppCompatActivity {
         }
     };
 
+    /**
+     * Wait for the call to be created when the activity was opened before it was
+     */
+    private final ObservableMonitor mPendingCallMonitor = new ObservableMonitor() {
+        @Override
+        protected void run() {
+            int callId = CallUtils.getPendingCallId().get();
+            if (!mWaitingForCall || callId == CallUtils.PENDING_CALL_CREATING) {
+                return;
+            }
+            mWaitingForCall = false;
+            if (callId == CallUtils.PENDING_CALL_FAILED) {
+                //CallUtils has already told the user why
+                finish();
+                return;
+            }
+            mCallId = callId;
+            if (checkValidCall()) {
+                startMonitoring();
+            }
+        }
+    };
+
     /**
      * Monitor the call state
      */
@@ -432,6 +459,7 @@ public class InCallActivity extends AppCompatActivity {
     private void startStopCamera() {
         //If we dont' have a local viewport then enable the camera (true), otherwise disable the camera (false)
         BBMEnterprise.getInstance().getMediaManager().setCameraEnabled(mLocalVideoRenderer == null, mCameraOnCallback);
+        CallTelemetry.onCameraRequested(mCallId, mLocalVideoRenderer == null);
         //Disable the button until the current camera operation has completed
         //This avoids the user pressing the button multiple times and the service potentially being overloaded.
         mEnableCameraButton.setClickable(false);
@@ -446,6 +474,7 @@ public class InCallActivity extends AppCompatActivity {
 
         @Override
         public void onSuccess() {
+            CallTelemetry.onCameraCompleted(mCallId, true);
             //Re-enable button and clear the progress spinner
             //Waiting a second before re-enabling the button to prevent too many calls changing the camera state.
             //Waiting to clear the spinner just to avoid it flashing too briefly.
@@ -459,6 +488,7 @@ public class InCallActivity extends AppCompatActivity {
 
         @Override
         public void onError() {
+            CallTelemetry.onCameraCompleted(mCallId, false);
             //Re-enable button and clear the progress spinner
             //Waiting a second before re-enabling the button to prevent too many calls changing the camera state.
             //Waiting to clear the spinner just to avoid it flashing too briefly.
@@ -496,6 +526,12 @@ public class InCallActivity extends AppCompatActivity {
         @Override
         public void onClick(View view) {
             Logger.gesture("Hangup clicked", InCallActivity.class);
+            if (mWaitingForCall) {
+                //The call is still being created, it is ended as soon as it is
+                CallUtils.cancelPendingCall();
+                finish();
+                return;
+            }
             BBMECall call = getCall();
             if (call.getCallState() != BBMECall.CallState.CALL_STATE_IDLE) {
                 //Tell the media manager to end the call
@@ -522,12 +558,14 @@ public class InCallActivity extends AppCompatActivity {
         //Retrieve the saved call id
         if (savedInstanceState != null) {
             mCallId = savedInstanceState.getInt(EXTRA_CALL_ID);
+            mWaitingForCall = savedInstanceState.getBoolean(EXTRA_PENDING_CALL);
         } else if (getIntent() != null) {
             mCallId = getIntent().getIntExtra(EXTRA_CALL_ID, -1);
+            mWaitingForCall = getIntent().getBooleanExtra(EXTRA_PENDING_CALL, false);
         }
 
-        //Check if the call still exists before continuing.
-        if (!checkValidCall()) {
+        //Check if the call still exists before continuing, unless it is still being created.
+        if (!mWaitingForCall && !checkValidCall()) {
             return;
         }
 
@@ -557,6 +595,10 @@ public class InCallActivity extends AppCompatActivity {
         mMuteButton.setOnClickListener(mMuteClickListener);
         endCallButton.setOnClickListener(mEndCallClickListener);
         mEnableCameraButton.setOnClickListener(mEnableCameraButtonListener);
+
+        if (mWaitingForCall) {
+            mSubTitle.setText(R.string.voicecall_status_calling);
+        }
     }
 
     /**
@@ -600,11 +642,26 @@ public class InCallActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
 
+        if (mWaitingForCall) {
+            //Start showing the call once it has been created
+            mPendingCallMonitor.activate();
+            return;
+        }
+
         //Check to make sure our call still exists before continuing.
         if (!checkValidCall()) {
             return;
         }
 
+        startMonitoring();
+    }
+
+    /**
+     * Start showing the call, this is undone in onPause
+     */
+    private void startMonitoring() {
+        mMonitoring = true;
+
         //Activate our monitors
         mVideoEnabledMonitor.activate();
         mStateMonitor.activate();
@@ -623,18 +680,22 @@ public class InCallActivity extends AppCompatActivity {
     @Override
     @SuppressWarnings("MissingPermission")
     protected void onPause() {
-        //Stop our monitors
-        mVideoEnabledMonitor.dispose();
-        mStateMonitor.dispose();
-        mControlsActionMonitor.dispose();
-        mQualityMonitor.dispose();
-        mVideoRenderersMonitor.dispose();
-
-        getCall().removeObserver(mCallStateObserver);
-
-        //Stop the call timer
-        mHandler.removeCallbacks(mUpdateDurationRunnable);
-        setVolumeControlStream(AudioManager.USE_DEFAULT_STREAM_TYPE);
+        mPendingCallMonitor.dispose();
+        if (mMonitoring) {
+            mMonitoring = false;
+            //Stop our monitors
+            mVideoEnabledMonitor.dispose();
+            mStateMonitor.dispose();
+            mControlsActionMonitor.dispose();
+            mQualityMonitor.dispose();
+            mVideoRenderersMonitor.dispose();
+
+            getCall().removeObserver(mCallStateObserver);
+
+            //Stop the call timer
+            mHandler.removeCallbacks(mUpdateDurationRunnable);
+            setVolumeControlStream(AudioManager.USE_DEFAULT_STREAM_TYPE);
+        }
 
         //Remove the video surfaces, we may be given back the same surface again and we don't want it to be parented already.
         if (mLocalVideoSurface != null) {
@@ -654,6 +715,7 @@ public class InCallActivity extends AppCompatActivity {
     public void onSaveInstanceState(Bundle outState) {
         //Save the call id
         outState.putInt(EXTRA_CALL_ID, mCallId);
+        outState.putBoolean(EXTRA_PENDING_CALL, mWaitingForCall);
         super.onSaveInstanceState(outState);
     }
 
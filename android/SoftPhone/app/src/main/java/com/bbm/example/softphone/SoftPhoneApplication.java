@@ -41,6 +41,15 @@ public class SoftPhoneApplication extends Application {
     }
 
     private IncomingCallObserver mCallObserver;
+    private CallHistoryIndexer mCallHistoryIndexer;
+    private CallTones mCallTones;
+
+    /**
+     * @return the tones played during calls, loaded when the app starts
+     */
+    public CallTones getCallTones() {
+        return mCallTones;
+    }
 
     @Override
     public void onCreate() {
@@ -48,6 +57,11 @@ public class SoftPhoneApplication extends Application {
 
         mApp = this;
 
+        //Load the call tones now so they play without a delay during calls
+        mCallTones = new CallTones(this);
+        //Start loading the user ids called before so calling them again doesn't wait for the identity mapping
+        IdentityCache.getInstance(this);
+
         //Init the auth provider (get authentication token, start protected manager, sync users)
         initializeConfiguration();
 
@@ -59,6 +73,10 @@ public class SoftPhoneApplication extends Application {
         mCallObserver = new IncomingCallObserver(SoftPhoneApplication.this);
         BBMEnterprise.getInstance().getMediaManager().addIncomingCallObserver(mCallObserver);
 
+        //Keep the call history index up to date with new call event messages
+        mCallHistoryIndexer = new CallHistoryIndexer(CallHistoryStore.getInstance(this));
+        mCallHistoryIndexer.start();
+
         // Add a listener for "EndpointDeregistered". When this is received, it generally means the user has switched to another device.
         SetupHelper.listenForAndHandleDeregistered(new SetupHelper.EndpointDeregisteredListener() {
             @Override
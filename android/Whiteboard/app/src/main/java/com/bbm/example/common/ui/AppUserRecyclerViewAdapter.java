@@ -135,7 +135,7 @@ public class AppUserRecyclerViewAdapter extends RecyclerView.Adapter<AppUserRecy
                     holder.mImageTask = null;
 
                     //set to default image immediately otherwise if user scrolls quick they would see previous users avatar for a bit
-                    holder.mAppUserAvatarView.setImageResource(R.drawable.default_avatar);
+                    ImageTask.setImageResource(holder.mAppUserAvatarView, R.drawable.default_avatar);
                 }
 
                 if (holder.mItem.get().getExists() == Existence.YES) {
@@ -152,14 +152,14 @@ public class AppUserRecyclerViewAdapter extends RecyclerView.Adapter<AppUserRecy
                         holder.mImageTask = ImageTask.load(user.getAvatarUrl(), holder.mAppUserAvatarView);
                     } else {
                         Logger.d("empty avatar URL for "+user);
-                        holder.mAppUserAvatarView.setImageResource(R.drawable.default_avatar);
+                        ImageTask.setImageResource(holder.mAppUserAvatarView, R.drawable.default_avatar);
                     }
                 } else {
                     Logger.d("User doesn't exist yet "+holder.mItem.get());
                     holder.mAppUserNameView.setText("");
                     holder.mAppUserInfoView.setText("");
 
-                    holder.mAppUserAvatarView.setImageResource(R.drawable.default_avatar);
+                    ImageTask.setImageResource(holder.mAppUserAvatarView, R.drawable.default_avatar);
                 }
 
                 holder.mView.setOnClickListener(new View.OnClickListener() {
@@ -17,23 +17,34 @@
 package com.bbm.example.common.ui;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.text.TextUtils;
 import android.widget.ImageView;
 
+import com.bbm.example.common.util.BitmapPool;
 import com.bbm.sdk.support.util.Logger;
 import com.bbm.sdk.common.IOHelper;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * This is just a simple image loader implementation that doesn't do any caching.
  * A real application would probably use an existing image loading framework.
+ * The images are decoded into bitmaps from the {@link BitmapPool}, and given back to it when replaced in the
+ * image view so scrolling a list reuses the same few bitmaps.
  */
 public class ImageTask extends AsyncTask<Void, Void, Bitmap> {
 
+    //bitmaps loaded by this that are shown in an image view, only these are safe to give back to the pool
+    private static final Set<Bitmap> sShown = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>()));
+
     private String mUrl;
     private ImageView mImageView;
 
@@ -58,7 +69,17 @@ public class ImageTask extends AsyncTask<Void, Void, Bitmap> {
         InputStream is = null;
         try {
             is = new URL(mUrl).openStream();
-            Bitmap bmp = BitmapFactory.decodeStream(is);
+            //read it all so the size can be checked first to pick a bitmap from the pool
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                if (isCancelled()) {
+                    return null;
+                }
+                out.write(buffer, 0, read);
+            }
+            Bitmap bmp = BitmapPool.getInstance().decodeByteArray(out.toByteArray(), 0, out.size());
             if (bmp != null) {
                 Logger.d("Loaded bmp=" + bmp + " W=" + bmp.getWidth() + " H=" + bmp.getHeight() + " for mUrl=" + mUrl);
             } else {
@@ -80,10 +101,39 @@ public class ImageTask extends AsyncTask<Void, Void, Bitmap> {
     protected void onPostExecute(Bitmap bitmap) {
         //if this was cancelled then this view is now used for a different user
         if (!isCancelled()) {
+            Drawable previous = mImageView.getDrawable();
             mImageView.setImageBitmap(bitmap);
+            if (bitmap != null) {
+                sShown.add(bitmap);
+            }
+            release(previous);
             Logger.d("Just set bitmap="+bitmap+" for mUrl="+mUrl);
         } else {
             Logger.d("Discarding cancelled bitmap="+bitmap+" for mUrl="+mUrl);
         }
     }
+
+    @Override
+    protected void onCancelled(Bitmap bitmap) {
+        Logger.d("Discarding cancelled bitmap="+bitmap+" for mUrl="+mUrl);
+        BitmapPool.getInstance().put(bitmap);
+    }
+
+    /**
+     * Set the image view to the resource, and give the bitmap it was showing back to the pool if it was loaded by this.
+     */
+    public static void setImageResource(ImageView imageView, int resId) {
+        Drawable previous = imageView.getDrawable();
+        imageView.setImageResource(resId);
+        release(previous);
+    }
+
+    private static void release(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null && sShown.remove(bitmap)) {
+                BitmapPool.getInstance().put(bitmap);
+            }
+        }
+    }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.common.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import com.bbm.sdk.support.util.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of mutable bitmaps that are no longer used so their memory can be reused for new bitmaps
+ * instead of allocating and garbage collecting a new one each time.
+ * <p>
+ * Bitmaps are grouped into buckets by allocation size rounded up to a power of 2, a request only takes a
+ * bitmap from its own bucket or the next larger one so a small image never holds on to a huge allocation.
+ * Any bitmap large enough can be reconfigured to the requested size, and can be used as
+ * {@link BitmapFactory.Options#inBitmap} when decoding.
+ * The pool is limited to a total byte count, when full the bitmaps that were put in the longest ago are recycled.
+ * <p>
+ * Only put a bitmap in the pool when nothing will draw it again, the next caller to get it will overwrite it.
+ */
+public class BitmapPool {
+    private static final BitmapPool sInstance = new BitmapPool((int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE));
+
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    private final int mMaxBytes;
+    private int mBytes;
+    //key is the bucket, the allocation size rounded up to a power of 2
+    private final SparseArray<ArrayDeque<Bitmap>> mBuckets = new SparseArray<>();
+    //all pooled bitmaps, oldest first
+    private final ArrayDeque<Bitmap> mOrder = new ArrayDeque<>();
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Get a bitmap of the size from the pool, or create a new one if there isn't one large enough.
+     *
+     * @return a mutable bitmap cleared to transparent
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bmp = take(width * height * getBytesPerPixel(config));
+        if (bmp != null) {
+            bmp.reconfigure(width, height, config);
+            //a previous user might have marked it opaque
+            bmp.setHasAlpha(true);
+            bmp.eraseColor(Color.TRANSPARENT);
+            return bmp;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Give back a bitmap that is no longer used. Immutable or recycled bitmaps are ignored.
+     */
+    public void put(Bitmap bmp) {
+        if (bmp == null || bmp.isRecycled()) {
+            return;
+        }
+        if (!bmp.isMutable() || getBytesPerPixel(bmp.getConfig()) == 0 || bmp.getAllocationByteCount() > mMaxBytes) {
+            //can't be reused
+            bmp.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            int bytes = bmp.getAllocationByteCount();
+            int bucket = getBucket(bytes);
+            ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+            if (bitmaps == null) {
+                bitmaps = new ArrayDeque<>();
+                mBuckets.put(bucket, bitmaps);
+            }
+            bitmaps.add(bmp);
+            mOrder.add(bmp);
+            mBytes += bytes;
+
+            while (mBytes > mMaxBytes) {
+                Bitmap oldest = mOrder.poll();
+                mBuckets.get(getBucket(oldest.getAllocationByteCount())).remove(oldest);
+                mBytes -= oldest.getAllocationByteCount();
+                oldest.recycle();
+                ++mEvictions;
+            }
+        }
+    }
+
+    /**
+     * Decode the image into a bitmap from the pool if there is one large enough.
+     *
+     * @return the mutable bitmap, or null if it could not be decoded
+     */
+    public Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = take(options.outWidth * options.outHeight * getBytesPerPixel(options.inPreferredConfig));
+        if (options.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeByteArray(data, offset, length, options);
+            } catch (IllegalArgumentException e) {
+                //decoder couldn't reuse it, for example an indexed image, decode into a new one
+                Logger.d("decodeByteArray: can't reuse bitmap W=" + options.outWidth + " H=" + options.outHeight + " " + e);
+                put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
+    /**
+     * Decode the image file into a bitmap from the pool if there is one large enough.
+     * The file is streamed by the decoder, so it doesn't need to be read into memory first.
+     *
+     * @return the mutable bitmap, or null if it could not be decoded
+     */
+    public Bitmap decodeFile(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = take(options.outWidth * options.outHeight * getBytesPerPixel(options.inPreferredConfig));
+        if (options.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeFile(path, options);
+            } catch (IllegalArgumentException e) {
+                Logger.d("decodeFile: can't reuse bitmap W=" + options.outWidth + " H=" + options.outHeight + " " + e);
+                put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * Draw the source scaled to the size into a bitmap from the pool.
+     * The source is not changed, the caller can put it back in the pool if it isn't needed.
+     */
+    public Bitmap createScaledBitmap(Bitmap source, int width, int height) {
+        Bitmap.Config config = getBytesPerPixel(source.getConfig()) > 0 ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap bmp = get(width, height, config);
+        new Canvas(bmp).drawBitmap(source, null, new Rect(0, 0, width, height), mScalePaint);
+        return bmp;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{bytes=" + mBytes + "/" + mMaxBytes + " count=" + mOrder.size()
+                + " hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions + "}";
+    }
+
+    /**
+     * @return a pooled bitmap with at least this many bytes allocated, or null if there isn't one
+     */
+    private synchronized Bitmap take(int bytes) {
+        if (bytes > 0) {
+            int bucket = getBucket(bytes);
+            //this bucket might have some smaller than needed, any in the next one are large enough
+            for (int i = 0; i < 2 && bucket > 0; ++i, bucket <<= 1) {
+                ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+                if (bitmaps == null) {
+                    continue;
+                }
+                for (Iterator<Bitmap> iterator = bitmaps.iterator(); iterator.hasNext(); ) {
+                    Bitmap bmp = iterator.next();
+                    if (bmp.getAllocationByteCount() >= bytes) {
+                        iterator.remove();
+                        mOrder.remove(bmp);
+                        mBytes -= bmp.getAllocationByteCount();
+                        ++mHits;
+                        return bmp;
+                    }
+                }
+            }
+        }
+        ++mMisses;
+        return null;
+    }
+
+    private static int getBucket(int bytes) {
+        int bucket = Integer.highestOneBit(bytes);
+        return bucket == bytes ? bucket : bucket << 1;
+    }
+
+    /**
+     * @return the bytes per pixel, or 0 for configs that can't be pooled
+     */
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == null) {
+            return 0;
+        }
+        switch (config) {
+            case ARGB_8888:
+                return 4;
+            case RGB_565:
+                return 2;
+            case ALPHA_8:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.bbm.example.common.util.BitmapPool;
+import com.bbm.sdk.common.IOHelper;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves and loads a checkpoint of the composited whiteboard tiles for a chat so opening a whiteboard only
+ * needs to load the snapshot and draw the messages sent after it instead of replaying its whole history.
+ * <p>
+ * The file is a header followed by the raw pixels of each tile that has something drawn on it:
+ * [version][width][height][background color][last message ID][columns][rows][1 byte per tile, 1 if present][tile pixels...]
+ * Snapshots are only used by a view of the same size.
+ */
+class BoardSnapshot {
+    private static final int VERSION = 1;
+    private static final String DIR = "snapshots";
+    private static final String FILE_SUFFIX = ".snap";
+
+    //version, width, height, background color, last message ID, columns, rows
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 4 + 4;
+
+    final int backgroundColor;
+    final long lastMessageId;
+
+    private final File mFile;
+
+    private BoardSnapshot(File file, int backgroundColor, long lastMessageId) {
+        mFile = file;
+        this.backgroundColor = backgroundColor;
+        this.lastMessageId = lastMessageId;
+    }
+
+    static File getFile(Context context, String chatId) {
+        //chat IDs are safe to use in file names
+        return new File(new File(context.getFilesDir(), DIR), chatId + FILE_SUFFIX);
+    }
+
+    /**
+     * Read just the header of the snapshot file
+     *
+     * @return the snapshot or null if there isn't one for this size
+     */
+    static BoardSnapshot find(File file, int width, int height) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.readInt() != VERSION || raf.readInt() != width || raf.readInt() != height) {
+                Logger.d("snapshot " + file + " is for a different version or size");
+                return null;
+            }
+            int backgroundColor = raf.readInt();
+            long lastMessageId = raf.readLong();
+            return new BoardSnapshot(file, backgroundColor, lastMessageId);
+        } catch (IOException e) {
+            Logger.w(e, "Failed to read " + file);
+        } finally {
+            IOHelper.safeClose(raf);
+        }
+        return null;
+    }
+
+    /**
+     * Copy the pixels into the tiles, creating them as needed
+     *
+     * @return true if it was loaded
+     */
+    boolean load(Bitmap[] tiles, int tileSize) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.position(HEADER_SIZE - 8);
+            int count = buffer.getInt() * buffer.getInt();
+            if (count != tiles.length) {
+                Logger.w("snapshot " + mFile + " has " + count + " tiles, expected " + tiles.length);
+                return false;
+            }
+
+            byte[] present = new byte[count];
+            buffer.get(present);
+            for (int i = 0; i < count; ++i) {
+                if (present[i] != 0) {
+                    if (tiles[i] == null) {
+                        tiles[i] = BitmapPool.getInstance().get(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+                    }
+                    //only copy this tile, the buffer position is moved past it after
+                    ByteBuffer tile = buffer.slice();
+                    tile.limit(tiles[i].getByteCount());
+                    tiles[i].copyPixelsFromBuffer(tile);
+                    buffer.position(buffer.position() + tiles[i].getByteCount());
+                }
+            }
+            Logger.d("loaded snapshot " + mFile + " lastMessageId=" + lastMessageId);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Logger.w(e, "Failed to load " + mFile);
+            mFile.delete();
+        } finally {
+            IOHelper.safeClose(raf);
+        }
+        return false;
+    }
+
+    /**
+     * Write the tiles to the file, replacing any previous snapshot
+     */
+    static void write(File file, int width, int height, int columns, int rows, int backgroundColor, long lastMessageId, Bitmap[] tiles) {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.w("Failed to create " + dir);
+            return;
+        }
+
+        long size = HEADER_SIZE + tiles.length;
+        for (Bitmap tile : tiles) {
+            if (tile != null) {
+                size += tile.getByteCount();
+            }
+        }
+
+        //write to temp file and rename so a partial file is never read
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(VERSION).putInt(width).putInt(height).putInt(backgroundColor).putLong(lastMessageId)
+                    .putInt(columns).putInt(rows);
+            for (Bitmap tile : tiles) {
+                buffer.put((byte) (tile != null ? 1 : 0));
+            }
+            for (Bitmap tile : tiles) {
+                if (tile != null) {
+                    ByteBuffer slice = buffer.slice();
+                    tile.copyPixelsToBuffer(slice);
+                    buffer.position(buffer.position() + tile.getByteCount());
+                }
+            }
+            buffer.force();
+            raf.close();
+            raf = null;
+
+            if (!tmp.renameTo(file)) {
+                Logger.w("Failed to rename " + tmp + " to " + file);
+                tmp.delete();
+            } else {
+                Logger.d("wrote snapshot " + file + " lastMessageId=" + lastMessageId + " size=" + size);
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.w(e, "Failed to write " + file);
+            tmp.delete();
+        } finally {
+            IOHelper.safeClose(raf);
+        }
+    }
+}
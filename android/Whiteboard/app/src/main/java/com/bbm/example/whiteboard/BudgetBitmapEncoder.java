@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+
+import com.bbm.example.common.util.BitmapPool;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Compresses a bitmap so the base 64 encoded result fits within a size budget using as few encodes as possible.
+ * <p>
+ * The bitmap is first tried as a PNG since that is lossless and small for most doodles.
+ * If that is too big the PNG size is used to estimate how large a JPEG will be and the bitmap is scaled
+ * down once to the size predicted to fit. If the JPEG still doesn't fit its measured size is used to scale it
+ * again, and if it fits with plenty of room a single higher quality pass is tried. That is 2 or 3 encodes
+ * for most images. The size of the encoded string is calculated from the compressed size so base 64 is only
+ * done once for the final result.
+ * <p>
+ * The compressed bytes are written into buffers that are kept for the next image, so keep one encoder and
+ * reuse it rather than creating one for each image.
+ */
+public class BudgetBitmapEncoder {
+    /**
+     * Stop trying after this many compress passes
+     */
+    private static final int MAX_ENCODES = 4;
+
+    private static final int JPEG_QUALITY = 70;
+    /**
+     * Quality to try when the first JPEG that fits leaves enough room
+     */
+    private static final int JPEG_HIGH_QUALITY = 85;
+    /**
+     * Roughly how much larger a JPEG is at the high quality than the normal quality
+     */
+    private static final float HIGH_QUALITY_GROWTH = 1.6f;
+
+    /**
+     * Rough ratio of JPEG to PNG size. Only used for the first scale prediction,
+     * after that the measured JPEG sizes are used.
+     */
+    private static final float PNG_TO_JPEG_RATIO = 0.15f;
+    /**
+     * Aim a bit under the budget when predicting the scale since compressed size doesn't scale exactly with pixel count
+     */
+    private static final float SIZE_MARGIN = 0.9f;
+    private static final int MIN_DIMENSION = 16;
+
+    private static final int BASE64_FLAGS = Base64.DEFAULT;
+    private static final int BASE64_LINE_LENGTH = 76;
+
+    public static class Result {
+        public final String encoded;
+        public final int width;
+        public final int height;
+
+        Result(String encoded, int width, int height) {
+            this.encoded = encoded;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Just exposes the internal buffer so the bytes don't need to be copied to base 64 encode them
+     */
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+        ReusableOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private final int mMaxEncodedSize;
+    private ReusableOutputStream mCurrent;
+    private ReusableOutputStream mBest;
+    private Bitmap mBestBitmap;
+    private int mEncodes;
+
+    /**
+     * @param maxEncodedSize the maximum length of the base 64 encoded string
+     */
+    public BudgetBitmapEncoder(int maxEncodedSize) {
+        mMaxEncodedSize = maxEncodedSize;
+        mCurrent = new ReusableOutputStream(getMaxBytes());
+        mBest = new ReusableOutputStream(getMaxBytes());
+    }
+
+    /**
+     * @return the encoded bitmap, or null if it could not be compressed enough
+     */
+    public synchronized Result encode(final Bitmap source) {
+        mEncodes = 0;
+        mBestBitmap = null;
+
+        if (compress(source, Bitmap.CompressFormat.PNG, 100)) {
+            return toResult();
+        }
+
+        Logger.user("Image too large, shrinking to send...");
+
+        //the PNG size gives an estimate of how much detail there is to compress, use it to pick a size that should fit
+        Bitmap bmp = scale(source, source, predictScale(mCurrent.size() * PNG_TO_JPEG_RATIO));
+
+        while (bmp != null && mEncodes < MAX_ENCODES) {
+            if (compress(bmp, Bitmap.CompressFormat.JPEG, JPEG_QUALITY)) {
+                //only spend another encode on a better quality if it is likely to fit
+                if (mEncodes < MAX_ENCODES && mBest.size() * HIGH_QUALITY_GROWTH < getMaxBytes()) {
+                    compress(bmp, Bitmap.CompressFormat.JPEG, JPEG_HIGH_QUALITY);
+                }
+                break;
+            }
+
+            //use the measured size to shrink it to what should fit
+            Bitmap scaled = scale(source, bmp, predictScale(mCurrent.size()));
+            if (bmp != source) {
+                BitmapPool.getInstance().put(bmp);
+            }
+            bmp = scaled;
+        }
+
+        Result result = toResult();
+        if (bmp != null && bmp != source) {
+            BitmapPool.getInstance().put(bmp);
+        }
+        return result;
+    }
+
+    /**
+     * Compress into the current buffer, if it fits then swap it to be the best buffer.
+     *
+     * @return true if it fits in the budget
+     */
+    private boolean compress(Bitmap bmp, Bitmap.CompressFormat format, int quality) {
+        ++mEncodes;
+        mCurrent.reset();
+        bmp.compress(format, quality, mCurrent);
+        boolean fits = getEncodedLength(mCurrent.size()) <= mMaxEncodedSize;
+
+        Logger.d("fits=" + fits + " encodes=" + mEncodes + " bmp: W=" + bmp.getWidth() + " H=" + bmp.getHeight() + " BC=" + bmp.getByteCount()
+                + " len=" + mCurrent.size() + " encoded len=" + getEncodedLength(mCurrent.size()) + " Q=" + quality + " format=" + format);
+
+        if (fits) {
+            ReusableOutputStream tmp = mBest;
+            mBest = mCurrent;
+            mCurrent = tmp;
+            mBestBitmap = bmp;
+        }
+        return fits;
+    }
+
+    /**
+     * @return the scale needed so an image that compresses to the specified size will fit
+     */
+    private float predictScale(float size) {
+        //compressed size is roughly proportional to pixel count so scale each side by the square root
+        float maxBytes = getMaxBytes() * SIZE_MARGIN;
+        return size > maxBytes ? (float) Math.sqrt(maxBytes / size) : 1;
+    }
+
+    /**
+     * @param source the original bitmap, used to get the size to scale from
+     * @param current the current bitmap, will be returned if scale is 1
+     * @return the scaled bitmap, or null if it would be too small to be useful
+     */
+    private Bitmap scale(Bitmap source, Bitmap current, float scale) {
+        if (scale >= 1) {
+            return current;
+        }
+
+        int w = (int) (current.getWidth() * scale);
+        int h = (int) (current.getHeight() * scale);
+        if (w < MIN_DIMENSION || h < MIN_DIMENSION) {
+            Logger.d("can't scale W=" + source.getWidth() + " H=" + source.getHeight() + " to W=" + w + " H=" + h);
+            return null;
+        }
+        return BitmapPool.getInstance().createScaledBitmap(source, w, h);
+    }
+
+    private int getMaxBytes() {
+        return mMaxEncodedSize * 3 / 4;
+    }
+
+    private Result toResult() {
+        if (mBestBitmap == null) {
+            return null;
+        }
+
+        String encoded = Base64.encodeToString(mBest.buffer(), 0, mBest.size(), BASE64_FLAGS);
+        Logger.d("Done encodes=" + mEncodes + " len=" + mBest.size() + " encoded len=" + encoded.length()
+                + " W=" + mBestBitmap.getWidth() + " H=" + mBestBitmap.getHeight());
+        return new Result(encoded, mBestBitmap.getWidth(), mBestBitmap.getHeight());
+    }
+
+    /**
+     * @return the length of the string {@link Base64#encodeToString} will create for this many bytes
+     */
+    private static int getEncodedLength(int byteCount) {
+        int length = (byteCount + 2) / 3 * 4;
+        //the default flags add a new line after every full line and at the end
+        return length + (length + BASE64_LINE_LENGTH - 1) / BASE64_LINE_LENGTH;
+    }
+}
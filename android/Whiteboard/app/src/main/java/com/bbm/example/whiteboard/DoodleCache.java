@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.bbm.example.common.util.BitmapPool;
+import com.bbm.sdk.bbmds.ChatMessage;
+import com.bbm.sdk.common.IOHelper;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cache of the decoded images from whiteboard chat messages so reopening a whiteboard doesn't need to
+ * base 64 decode and PNG/JPEG decode the same messages again.
+ * <p>
+ * There are 2 levels. Recently used bitmaps are kept in memory, limited by their byte count.
+ * Every decoded bitmap is also written to a file in the app cache dir as raw pixels with a small header,
+ * those are memory mapped to load them back which is just a copy instead of a decode.
+ * Chat messages can't be changed once sent so entries never need to be invalidated, the disk tier
+ * just removes the oldest files when it gets too large.
+ */
+public class DoodleCache {
+    private static final String CACHE_DIR = "doodles";
+    private static final String FILE_SUFFIX = ".px";
+
+    //width, height, config ordinal
+    private static final int HEADER_SIZE = 3 * 4;
+
+    private static final long MAX_DISK_SIZE = 64 * 1024 * 1024;
+
+    private static DoodleCache sInstance;
+
+    private final LruCache<ChatMessage.ChatMessageKey, Bitmap> mMemoryCache;
+    private final File mDir;
+    //single thread to write files so it doesn't slow down decoding and files are trimmed in order
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Must be called before {@link #getInstance()}, the application onCreate is a good place
+     */
+    public static synchronized void init(Context context) {
+        if (sInstance == null) {
+            sInstance = new DoodleCache(context.getApplicationContext());
+        }
+    }
+
+    public static DoodleCache getInstance() {
+        return sInstance;
+    }
+
+    private DoodleCache(Context context) {
+        //use 1/8 of the available memory for the memory cache
+        int maxMemory = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<ChatMessage.ChatMessageKey, Bitmap>(maxMemory) {
+            @Override
+            protected int sizeOf(ChatMessage.ChatMessageKey key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        mDir = new File(context.getCacheDir(), CACHE_DIR);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Logger.w("Failed to create " + mDir);
+        }
+    }
+
+    /**
+     * Get the decoded image for the chat message, first from memory, then disk, and decode it only if needed.
+     * This should only be called on a background thread.
+     * The bitmap returned is shared so it must not be modified or recycled.
+     *
+     * @return the image, not scaled to the ScaleToWidth/ScaleToHeight, or null if it could not be decoded
+     */
+    public Bitmap getBitmap(ChatMessage chatMessage) {
+        final ChatMessage.ChatMessageKey key = new ChatMessage.ChatMessageKey(chatMessage.chatId, chatMessage.messageId);
+        Bitmap bmp = mMemoryCache.get(key);
+        if (bmp != null) {
+            return bmp;
+        }
+
+        final File file = getFile(chatMessage);
+        bmp = readFile(file);
+        if (bmp == null) {
+            bmp = WhiteboardUtils.decodeBitmap(chatMessage);
+            if (bmp == null) {
+                return null;
+            }
+
+            final Bitmap toWrite = bmp;
+            mDiskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeFile(file, toWrite);
+                    trimDisk();
+                }
+            });
+        }
+
+        mMemoryCache.put(key, bmp);
+        return bmp;
+    }
+
+    private File getFile(ChatMessage chatMessage) {
+        //chat IDs are safe to use in file names
+        return new File(mDir, chatMessage.chatId + "_" + chatMessage.messageId + FILE_SUFFIX);
+    }
+
+    private static Bitmap readFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int configOrdinal = buffer.getInt();
+            Bitmap.Config[] configs = Bitmap.Config.values();
+            if (width <= 0 || height <= 0 || configOrdinal < 0 || configOrdinal >= configs.length) {
+                Logger.w("invalid header in " + file + " W=" + width + " H=" + height + " C=" + configOrdinal);
+                file.delete();
+                return null;
+            }
+
+            Bitmap bmp = BitmapPool.getInstance().get(width, height, configs[configOrdinal]);
+            if (buffer.remaining() < bmp.getByteCount()) {
+                Logger.w("truncated " + file + " len=" + channel.size() + " need=" + bmp.getByteCount());
+                BitmapPool.getInstance().put(bmp);
+                file.delete();
+                return null;
+            }
+            bmp.copyPixelsFromBuffer(buffer);
+            //update the time so this is kept when trimming
+            file.setLastModified(System.currentTimeMillis());
+            return bmp;
+        } catch (IOException | RuntimeException e) {
+            Logger.w(e, "Failed to read " + file);
+            file.delete();
+        } finally {
+            IOHelper.safeClose(raf);
+        }
+        return null;
+    }
+
+    private static void writeFile(File file, Bitmap bmp) {
+        if (bmp.getConfig() == null) {
+            //not a config that can be created again
+            return;
+        }
+
+        //write to temp file and rename so a partial file is never read
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(tmp, "rw");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(bmp.getWidth()).putInt(bmp.getHeight()).putInt(bmp.getConfig().ordinal());
+            header.flip();
+            channel.write(header);
+
+            MappedByteBuffer pixels = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, bmp.getByteCount());
+            bmp.copyPixelsToBuffer(pixels);
+            pixels.force();
+            raf.close();
+            raf = null;
+
+            if (!tmp.renameTo(file)) {
+                Logger.w("Failed to rename " + tmp + " to " + file);
+                tmp.delete();
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.w(e, "Failed to write " + file);
+            tmp.delete();
+        } finally {
+            IOHelper.safeClose(raf);
+        }
+    }
+
+    /**
+     * Remove the least recently used files until under the max disk size
+     */
+    private void trimDisk() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_DISK_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_DISK_SIZE; ++i) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+        Logger.d("trimDisk: total=" + total);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.bbm.sdk.common.IOHelper;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Writes whiteboard images to files so they can be sent as the chat message thumbnail instead of
+ * base 64 encoded in the chat message data.
+ * <p>
+ * The compressed bytes are written once to an app private file and the SDK sends the file, so the image
+ * isn't inflated by base 64 or limited by the max data size, and the receiver can decode it straight from
+ * the thumbnail file. This is off by default since older versions of this app only read images from the data.
+ */
+public class ImageAttachments {
+    private static final String DIR = "attachments";
+    private static final int JPEG_QUALITY = 90;
+    /**
+     * Sent files are kept this long so the SDK has time to upload them, then removed on the next write
+     */
+    private static final long MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    private static ImageAttachments sInstance;
+
+    private final File mDir;
+    private volatile boolean mEnabled;
+
+    /**
+     * Must be called before {@link #getInstance()}, the application onCreate is a good place
+     */
+    public static synchronized void init(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageAttachments(context.getApplicationContext());
+        }
+    }
+
+    public static ImageAttachments getInstance() {
+        return sInstance;
+    }
+
+    private ImageAttachments(Context context) {
+        mDir = new File(context.getFilesDir(), DIR);
+    }
+
+    /**
+     * @param enabled true to send images as files, false to send them in the chat message data
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Compress the image into a new file. Images with transparency are saved as PNG, others as JPEG.
+     * This should only be called on a background thread.
+     *
+     * @return the path to the file, or null if it could not be written
+     */
+    public String write(Bitmap bmp) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Logger.w("Failed to create " + mDir);
+            return null;
+        }
+        removeOldFiles();
+
+        boolean png = bmp.hasAlpha();
+        File file = new File(mDir, UUID.randomUUID().toString() + (png ? ".png" : ".jpg"));
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            if (!bmp.compress(png ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                Logger.w("Failed to compress W=" + bmp.getWidth() + " H=" + bmp.getHeight() + " to " + file);
+                file.delete();
+                return null;
+            }
+            out.close();
+            out = null;
+            Logger.d("wrote " + file + " len=" + file.length() + " W=" + bmp.getWidth() + " H=" + bmp.getHeight());
+            return file.getAbsolutePath();
+        } catch (IOException e) {
+            Logger.w(e, "Failed to write " + file);
+            file.delete();
+        } finally {
+            IOHelper.safeClose(out);
+        }
+        return null;
+    }
+
+    private void removeOldFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+        for (File file : files) {
+            if (file.lastModified() < oldest) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import android.graphics.Path;
+import android.util.Base64;
+
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the points of the strokes the user draws and encodes them into a compact string that can
+ * be sent in the chat message data instead of a rendered image.
+ * <p>
+ * Points are quantized to whole pixels and each point is stored as the difference from the previous point
+ * (the first point of a stroke is relative to the last point of the previous stroke).
+ * The differences are written as zigzag varints, so most points only need 1 byte for each of x and y.
+ * The format for each stroke is: [point count][dx][dy][dx][dy]... and the bytes are base 64 encoded.
+ */
+public class StrokeCodec {
+
+    /**
+     * Holds the quantized points for one or more strokes as they are drawn.
+     * This just grows as needed and can be reset and reused for the next doodle.
+     */
+    public static class Recorder {
+        //x,y pairs of all points for all strokes
+        private int[] mPoints = new int[256];
+        private int mPointCount;
+        //the index (in points, not ints) of the first point of each stroke
+        private int[] mStrokeStarts = new int[8];
+        private int mStrokeCount;
+
+        public void startStroke(float x, float y) {
+            if (mStrokeCount == mStrokeStarts.length) {
+                mStrokeStarts = Arrays.copyOf(mStrokeStarts, mStrokeStarts.length * 2);
+            }
+            mStrokeStarts[mStrokeCount++] = mPointCount;
+            add(Math.round(x), Math.round(y));
+        }
+
+        public void addPoint(float x, float y) {
+            if (mStrokeCount == 0) {
+                startStroke(x, y);
+                return;
+            }
+
+            int qx = Math.round(x);
+            int qy = Math.round(y);
+            int last = (mPointCount - 1) * 2;
+            if (mPointCount > mStrokeStarts[mStrokeCount - 1] && mPoints[last] == qx && mPoints[last + 1] == qy) {
+                //same pixel as the previous point, nothing to add
+                return;
+            }
+            add(qx, qy);
+        }
+
+        private void add(int x, int y) {
+            if (mPointCount * 2 == mPoints.length) {
+                mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+            }
+            mPoints[mPointCount * 2] = x;
+            mPoints[mPointCount * 2 + 1] = y;
+            ++mPointCount;
+        }
+
+        public boolean isEmpty() {
+            return mPointCount == 0;
+        }
+
+        public int getPointCount() {
+            return mPointCount;
+        }
+
+        /**
+         * @return a new recorder with a copy of the strokes in this one
+         */
+        public Recorder copy() {
+            Recorder copy = new Recorder();
+            copy.append(this);
+            return copy;
+        }
+
+        /**
+         * Add all the strokes from the other recorder after the strokes in this one
+         */
+        public void append(Recorder other) {
+            int neededPoints = (mPointCount + other.mPointCount) * 2;
+            if (neededPoints > mPoints.length) {
+                mPoints = Arrays.copyOf(mPoints, Math.max(neededPoints, mPoints.length * 2));
+            }
+            int neededStrokes = mStrokeCount + other.mStrokeCount;
+            if (neededStrokes > mStrokeStarts.length) {
+                mStrokeStarts = Arrays.copyOf(mStrokeStarts, Math.max(neededStrokes, mStrokeStarts.length * 2));
+            }
+
+            System.arraycopy(other.mPoints, 0, mPoints, mPointCount * 2, other.mPointCount * 2);
+            for (int i = 0; i < other.mStrokeCount; ++i) {
+                mStrokeStarts[mStrokeCount + i] = other.mStrokeStarts[i] + mPointCount;
+            }
+            mPointCount += other.mPointCount;
+            mStrokeCount += other.mStrokeCount;
+        }
+
+        public void reset() {
+            mPointCount = 0;
+            mStrokeCount = 0;
+        }
+
+        /**
+         * @return the base 64 encoded strokes, or null if there are none
+         */
+        public String encode() {
+            byte[] bytes = encodeBytes();
+            if (bytes == null) {
+                return null;
+            }
+
+            String encoded = Base64.encodeToString(bytes, Base64.NO_WRAP);
+            Logger.d("encoded strokes=" + mStrokeCount + " points=" + mPointCount + " bytes=" + bytes.length + " encoded len=" + encoded.length());
+            return encoded;
+        }
+
+        /**
+         * @return the strokes before they are base 64 encoded, or null if there are none
+         */
+        byte[] encodeBytes() {
+            if (isEmpty()) {
+                return null;
+            }
+
+            //most deltas fit in 1 byte each for x and y, plus count for each stroke
+            ByteArrayOutputStream out = new ByteArrayOutputStream(mPointCount * 2 + mStrokeCount * 2);
+            int prevX = 0;
+            int prevY = 0;
+            for (int s = 0; s < mStrokeCount; ++s) {
+                int start = mStrokeStarts[s];
+                int end = s + 1 < mStrokeCount ? mStrokeStarts[s + 1] : mPointCount;
+                writeVarInt(out, end - start);
+                for (int p = start; p < end; ++p) {
+                    int x = mPoints[p * 2];
+                    int y = mPoints[p * 2 + 1];
+                    writeVarInt(out, zigzag(x - prevX));
+                    writeVarInt(out, zigzag(y - prevY));
+                    prevX = x;
+                    prevY = y;
+                }
+            }
+
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Decode the strokes from the string created by {@link Recorder#encode()}.
+     *
+     * @return list of strokes, each is an array of x,y pairs. Will be empty if the data was not valid.
+     */
+    public static List<int[]> decode(String encoded) {
+        ArrayList<int[]> strokes = new ArrayList<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return strokes;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(encoded, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            Logger.w(e, "invalid stroke data len=" + encoded.length());
+            return strokes;
+        }
+        return decode(bytes);
+    }
+
+    /**
+     * Decode the strokes from the bytes created by {@link Recorder#encodeBytes()}.
+     */
+    static List<int[]> decode(byte[] bytes) {
+        ArrayList<int[]> strokes = new ArrayList<>();
+        int[] pos = new int[1];
+        int prevX = 0;
+        int prevY = 0;
+        while (pos[0] < bytes.length) {
+            int count = readVarInt(bytes, pos);
+            //each point needs at least 2 bytes, so a count the remaining bytes can't hold is corrupt
+            if (count <= 0 || count > (bytes.length - pos[0]) / 2) {
+                Logger.w("invalid stroke point count=" + count + " at " + pos[0] + " of " + bytes.length);
+                break;
+            }
+
+            int[] stroke = new int[count * 2];
+            for (int i = 0; i < count; ++i) {
+                prevX += unzigzag(readVarInt(bytes, pos));
+                prevY += unzigzag(readVarInt(bytes, pos));
+                stroke[i * 2] = prevX;
+                stroke[i * 2 + 1] = prevY;
+            }
+            strokes.add(stroke);
+        }
+        return strokes;
+    }
+
+    /**
+     * Build a path from the decoded strokes.
+     *
+     * @param path the path to reuse, it will be reset first
+     * @param scaleX amount to scale x values by if the sender had a different size view
+     * @param scaleY amount to scale y values by if the sender had a different size view
+     */
+    public static Path toPath(List<int[]> strokes, Path path, float scaleX, float scaleY) {
+        path.reset();
+        for (int[] stroke : strokes) {
+            path.moveTo(stroke[0] * scaleX, stroke[1] * scaleY);
+            if (stroke.length == 2) {
+                //single tap, make sure there is something to draw
+                path.lineTo(stroke[0] * scaleX, stroke[1] * scaleY);
+            }
+            for (int i = 2; i < stroke.length; i += 2) {
+                path.lineTo(stroke[i] * scaleX, stroke[i + 1] * scaleY);
+            }
+        }
+        return path;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] bytes, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        while (pos[0] < bytes.length && shift < 32) {
+            byte b = bytes[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -59,6 +59,26 @@ import java.util.Collections;
 public class WhiteboardActivity extends AppCompatActivity {
     public static final int REQUEST_CODE_ATTACH_PICTURE = 5;
 
+    private static final boolean SEND_SNAPSHOTS = false;
+
+    /**
+     * Set to a time like 300 ms to send doodles automatically when the user stops drawing, strokes drawn
+     * within this time of each other are combined into 1 message. When 0 doodles are only sent by the send button.
+     */
+    private static final long BATCH_WINDOW_MS = 0;
+
+    /**
+     * Set to true to send images as thumbnail file attachments at full quality instead of shrinking them to fit
+     * base 64 encoded in the chat message data. Only turn this on if all users have a version that can read them.
+     */
+    private static final boolean SEND_IMAGES_AS_FILES = false;
+
+    /**
+     * Set to true to send doodles as lists of stroke points instead of images, which are much smaller and quicker to
+     * send. Older versions ignore these messages, so only turn this on if all users have a version that can draw them.
+     */
+    private static final boolean SEND_DOODLES_AS_VECTORS = false;
+
     private static final int PENCIL_STROKE_THIN = 6;
     private static final int PENCIL_STROKE_MEDIUM = 10;
     private static final int PENCIL_STROKE_THICK = 20;
@@ -118,7 +138,11 @@ public class WhiteboardActivity extends AppCompatActivity {
 
         mWhiteboardView = (WhiteboardView)findViewById(R.id.doodleView);
 
+        //sharing snapshots helps other users open large boards faster, but sends extra full size images
+        mWhiteboardView.setSendSnapshots(SEND_SNAPSHOTS);
         mWhiteboardView.setChat(chat, chatMessageList);
+        mWhiteboardView.setBatchWindow(BATCH_WINDOW_MS);
+        ImageAttachments.getInstance().setEnabled(SEND_IMAGES_AS_FILES);
 
         mWhiteboardView.setDoodleListener(new WhiteboardView.DoodleListener() {
             @Override
@@ -126,12 +150,25 @@ public class WhiteboardActivity extends AppCompatActivity {
 
                 Logger.d("onNewDoodle: "+event);
                 if (event.type == WhiteboardView.DoodleType.DOODLE) {
-                    WhiteboardUtils.sendDoodle(event, mWhiteboardView, mChatId, true);
-                    mWhiteboardView.reset();
+                    //if the send queue is full leave the strokes in the view, they will be sent with the next doodle
+                    boolean queued = SEND_DOODLES_AS_VECTORS
+                            ? WhiteboardUtils.sendVectorDoodle(event, mWhiteboardView, mChatId)
+                            : WhiteboardUtils.sendDoodle(event, mWhiteboardView, mChatId, true);
+                    if (queued) {
+                        mWhiteboardView.reset();
+                    }
                 }
             }
         });
 
+        //let the user know when messages are being drawn faster than they can be sent
+        WhiteboardSender.getInstance().setListener(new WhiteboardSender.Listener() {
+            @Override
+            public void onQueueChanged(int queued, boolean full) {
+                mWhiteboardView.setSendBacklogged(full);
+            }
+        });
+
         ImageButton sendButton = (ImageButton)findViewById(R.id.send_button);
         sendButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -265,6 +302,12 @@ public class WhiteboardActivity extends AppCompatActivity {
         WhiteboardUtils.sendPicture(mChatId, mWhiteboardView, bmp);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        WhiteboardSender.getInstance().setListener(null);
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
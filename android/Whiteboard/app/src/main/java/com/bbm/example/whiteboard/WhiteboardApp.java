@@ -58,6 +58,11 @@ public class WhiteboardApp extends Application {
         Logger.user("Starting app...");
         super.onCreate();
 
+        //cache for the images decoded from whiteboard messages
+        DoodleCache.init(this);
+        //writes images to files when they are sent as attachments
+        ImageAttachments.init(this);
+
         //Initialize the "no authentication" configuration
         initializeConfiguration();
 
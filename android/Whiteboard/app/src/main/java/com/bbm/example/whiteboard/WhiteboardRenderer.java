@@ -0,0 +1,588 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.view.View;
+
+import com.bbm.example.common.util.BitmapPool;
+import com.bbm.sdk.bbmds.ChatMessage;
+import com.bbm.sdk.support.util.Logger;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Draws the whiteboard chat messages off the UI thread.
+ * <p>
+ * The messages are decoded in parallel on a pool of background threads, then drawn in order on a single
+ * composite thread. Instead of one bitmap the size of the view the board is split into a grid of tiles
+ * which are only created when something is drawn on them. When a message is drawn only the tiles it touches
+ * are changed, and only that area of the view is invalidated, so the view only needs to redraw
+ * (and the GPU only needs to upload) the tiles that changed.
+ * <p>
+ * After every {@link #SNAPSHOT_INTERVAL} messages the tiles are saved as a {@link BoardSnapshot} so the next time
+ * the board is opened it can start from there instead of drawing all the messages again.
+ */
+public class WhiteboardRenderer {
+    static final int TILE_SIZE = 256;
+
+    /**
+     * Save a snapshot after drawing this many messages since the last one
+     */
+    static final int SNAPSHOT_INTERVAL = 25;
+
+    public interface SnapshotListener {
+        /**
+         * Called on a background thread each time a snapshot is saved.
+         *
+         * @param board a new bitmap of the whole board, the listener owns it
+         * @param lastMessageId the ID of the newest message drawn in the board
+         */
+        void onSnapshot(Bitmap board, long lastMessageId);
+    }
+
+    private static final int DECODE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    /**
+     * Limit how many messages are decoded ahead of the one being drawn so a large board doesn't
+     * fill memory with decoded bitmaps waiting to be drawn
+     */
+    private static final int DECODE_AHEAD = DECODE_THREADS * 2;
+
+    private static final ExecutorService sDecodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new RenderThreadFactory("WhiteboardDecode"));
+    //single thread so messages are always drawn in the order they were sent
+    private static final ExecutorService sCompositeExecutor = Executors.newSingleThreadExecutor(new RenderThreadFactory("WhiteboardComposite"));
+
+    private final View mView;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mColumns;
+    private final int mRows;
+
+    //the tiles and dirty flags must only be accessed while holding this lock
+    private final Object mLock = new Object();
+    private final Bitmap[] mTiles;
+    private final Canvas[] mTileCanvases;
+    private final boolean[] mDirtyTiles;
+    private int mBackgroundColor = Color.TRANSPARENT;
+
+    private final File mSnapshotFile;
+    private final long mSnapshotMessageId;
+    private SnapshotListener mSnapshotListener;
+    //these are only used on the composite thread
+    private long mLastMessageId = -1;
+    private int mMessagesSinceSnapshot;
+
+    /**
+     * Incremented when this is released so any work still queued for it can stop
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * @param chatId the chat to save snapshots for, or null to not use them
+     */
+    public WhiteboardRenderer(View view, String chatId, int width, int height) {
+        mView = view;
+        mWidth = width;
+        mHeight = height;
+        mColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mTiles = new Bitmap[mColumns * mRows];
+        mTileCanvases = new Canvas[mTiles.length];
+        mDirtyTiles = new boolean[mTiles.length];
+
+        mSnapshotFile = chatId != null ? BoardSnapshot.getFile(view.getContext(), chatId) : null;
+        //just reads the header, the tiles are loaded in the background
+        final BoardSnapshot snapshot = mSnapshotFile != null ? BoardSnapshot.find(mSnapshotFile, width, height) : null;
+        mSnapshotMessageId = snapshot != null ? snapshot.lastMessageId : -1;
+        if (snapshot != null) {
+            final int generation = mGeneration.get();
+            sCompositeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadSnapshot(snapshot, generation);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the ID of the newest message in the snapshot that was loaded, or -1 if there wasn't one
+     */
+    public long getSnapshotMessageId() {
+        return mSnapshotMessageId;
+    }
+
+    public void setSnapshotListener(SnapshotListener listener) {
+        mSnapshotListener = listener;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Queue the messages to be decoded and drawn. This returns right away.
+     *
+     * @param chatMessages the messages to draw, oldest first
+     * @param complete false if there could be older messages not drawn yet, a snapshot won't be saved until they are
+     */
+    public void render(final List<ChatMessage> chatMessages, final boolean complete) {
+        final int generation = mGeneration.get();
+        sCompositeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                composite(chatMessages, generation);
+                if (complete && mMessagesSinceSnapshot >= SNAPSHOT_INTERVAL) {
+                    saveSnapshot(generation);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop any queued work and free the tiles. This can't be used after.
+     */
+    public void release() {
+        mGeneration.incrementAndGet();
+        synchronized (mLock) {
+            for (int i = 0; i < mTiles.length; ++i) {
+                if (mTiles[i] != null) {
+                    BitmapPool.getInstance().put(mTiles[i]);
+                    mTiles[i] = null;
+                    mTileCanvases[i] = null;
+                }
+            }
+        }
+        Logger.d("release: " + BitmapPool.getInstance());
+    }
+
+    /**
+     * Draw the tiles that are within the clip of the canvas.
+     */
+    public void draw(Canvas canvas) {
+        synchronized (mLock) {
+            drawTiles(canvas, mBackgroundColor, mTiles);
+        }
+    }
+
+    private void drawTiles(Canvas canvas, int backgroundColor, Bitmap[] tiles) {
+        if (backgroundColor != Color.TRANSPARENT) {
+            canvas.drawColor(backgroundColor);
+        }
+
+        for (int row = 0; row < mRows; ++row) {
+            for (int column = 0; column < mColumns; ++column) {
+                Bitmap tile = tiles[row * mColumns + column];
+                if (tile == null) {
+                    continue;
+                }
+
+                int left = column * TILE_SIZE;
+                int top = row * TILE_SIZE;
+                if (!canvas.quickReject(left, top, left + TILE_SIZE, top + TILE_SIZE, Canvas.EdgeType.BW)) {
+                    canvas.drawBitmap(tile, left, top, null);
+                }
+            }
+        }
+    }
+
+    private boolean isReleased(int generation) {
+        return generation != mGeneration.get();
+    }
+
+    /**
+     * Called on the composite thread to draw the messages in order as they are decoded
+     */
+    private void composite(List<ChatMessage> chatMessages, final int generation) {
+        ArrayDeque<Future<DrawOp>> pending = new ArrayDeque<>();
+        int next = 0;
+        while (next < chatMessages.size() || !pending.isEmpty()) {
+            //keep the decode threads busy, but not too far ahead
+            while (next < chatMessages.size() && pending.size() < DECODE_AHEAD) {
+                final ChatMessage chatMessage = chatMessages.get(next++);
+                pending.add(sDecodeExecutor.submit(new Callable<DrawOp>() {
+                    @Override
+                    public DrawOp call() {
+                        return isReleased(generation) ? null : decode(chatMessage);
+                    }
+                }));
+            }
+
+            DrawOp op = null;
+            try {
+                op = pending.poll().get();
+            } catch (InterruptedException e) {
+                Logger.w(e, "interrupted waiting for decode");
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Logger.e(e.getCause(), "failed to decode");
+            }
+
+            if (isReleased(generation)) {
+                Logger.d("composite: released, dropping " + (chatMessages.size() - next + pending.size()) + " messages");
+                for (Future<DrawOp> future : pending) {
+                    future.cancel(false);
+                }
+                return;
+            }
+
+            if (op != null) {
+                drawOp(op, generation);
+                postInvalidate();
+            }
+            ++mMessagesSinceSnapshot;
+        }
+
+        if (!chatMessages.isEmpty()) {
+            mLastMessageId = Math.max(mLastMessageId, chatMessages.get(chatMessages.size() - 1).messageId);
+        }
+    }
+
+    /**
+     * Called on the composite thread to copy the snapshot into the tiles
+     */
+    private void loadSnapshot(BoardSnapshot snapshot, int generation) {
+        synchronized (mLock) {
+            if (isReleased(generation) || !snapshot.load(mTiles, TILE_SIZE)) {
+                return;
+            }
+
+            mBackgroundColor = snapshot.backgroundColor;
+            for (int i = 0; i < mTiles.length; ++i) {
+                if (mTiles[i] != null) {
+                    mTileCanvases[i] = new Canvas(mTiles[i]);
+                }
+                mDirtyTiles[i] = true;
+            }
+        }
+        mLastMessageId = snapshot.lastMessageId;
+        postInvalidate();
+    }
+
+    /**
+     * Called on the composite thread to save the current tiles.
+     * The tiles are copied while holding the lock and written after, so drawing the view doesn't wait for the file.
+     */
+    private void saveSnapshot(int generation) {
+        if (mSnapshotFile == null || mLastMessageId < 0) {
+            return;
+        }
+
+        Bitmap[] tiles = new Bitmap[mTiles.length];
+        int backgroundColor;
+        synchronized (mLock) {
+            if (isReleased(generation)) {
+                return;
+            }
+
+            backgroundColor = mBackgroundColor;
+            for (int i = 0; i < mTiles.length; ++i) {
+                if (mTiles[i] != null) {
+                    tiles[i] = BitmapPool.getInstance().get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+                    tiles[i].eraseColor(Color.TRANSPARENT);
+                    new Canvas(tiles[i]).drawBitmap(mTiles[i], 0, 0, null);
+                }
+            }
+        }
+        mMessagesSinceSnapshot = 0;
+
+        BoardSnapshot.write(mSnapshotFile, mWidth, mHeight, mColumns, mRows, backgroundColor, mLastMessageId, tiles);
+        Bitmap board = null;
+        if (mSnapshotListener != null) {
+            board = BitmapPool.getInstance().get(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(board);
+            //the snapshot replaces everything so it can't be transparent
+            int color = backgroundColor != Color.TRANSPARENT ? backgroundColor : Color.WHITE;
+            canvas.drawColor(color);
+            drawTiles(canvas, backgroundColor, tiles);
+            //lets it be compressed without an alpha channel
+            board.setHasAlpha(Color.alpha(color) != 255);
+        }
+
+        for (Bitmap tile : tiles) {
+            if (tile != null) {
+                BitmapPool.getInstance().put(tile);
+            }
+        }
+
+        if (board != null) {
+            mSnapshotListener.onSnapshot(board, mLastMessageId);
+        }
+    }
+
+    /**
+     * Called on the decode threads to do all the expensive work needed to draw a message
+     *
+     * @return the op to draw, or null if the message can't be drawn
+     */
+    private DrawOp decode(ChatMessage chatMessage) {
+        String tag = chatMessage.tag;
+        if (WhiteboardUtils.CHAT_MESSAGE_TAG_CLEAR.equals(tag)) {
+            int color = Color.WHITE;
+            if (chatMessage.data != null) {
+                color = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_BACKGROUND_COLOR, color);
+            }
+            return new ClearOp(color);
+        }
+
+        if (chatMessage.data == null) {
+            Logger.w("missing data for ID=" + chatMessage.messageId + " tag=" + tag + " ");
+            return null;
+        }
+
+        //figure out if need to scale it
+        int remoteWidth = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_WIDTH, -1);
+        int remoteHeight = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_HEIGHT, -1);
+        float scaleX = 1;
+        float scaleY = 1;
+        if (remoteWidth > 0 && remoteWidth != mWidth) {
+            //remote is different size
+            scaleX = (float) mWidth / (float) remoteWidth;
+        }
+        if (remoteHeight > 0 && remoteHeight != mHeight) {
+            //remote is different size
+            scaleY = (float) mHeight / (float) remoteHeight;
+        }
+
+        if (WhiteboardUtils.CHAT_MESSAGE_TAG_VECTOR.equals(tag)) {
+            List<int[]> strokes = StrokeCodec.decode(chatMessage.data.optString(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_STROKE_POINTS));
+            if (strokes.isEmpty()) {
+                Logger.e("Failed to decode strokes from " + WhiteboardUtils.toString(chatMessage));
+                return null;
+            }
+
+            Paint paint = new Paint();
+            paint.setStyle(Paint.Style.STROKE);
+            int strokeWidth = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_STROKE_WIDTH, 1);
+            paint.setStrokeWidth(strokeWidth * (scaleX + scaleY) / 2);
+            paint.setColor(chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_STROKE_COLOR, Color.BLACK));
+            return new PathOp(StrokeCodec.toPath(strokes, new Path(), scaleX, scaleY), paint);
+        }
+
+        //the cache only decodes the image if it isn't already in memory or on disk
+        Bitmap bmp = DoodleCache.getInstance().getBitmap(chatMessage);
+        if (bmp == null) {
+            Logger.e("Failed to create bitmap from " + WhiteboardUtils.toString(chatMessage));
+            return null;
+        }
+
+        //if the sender had to shrink the image draw it at the size it was meant to be
+        int displayWidth = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_SCALE_TO_WIDTH, bmp.getWidth());
+        int displayHeight = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_SCALE_TO_HEIGHT, bmp.getHeight());
+
+        int left = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_LEFT, 0);
+        int top = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_TOP, 0);
+
+        int rectX = (int) (scaleX * left);
+        int rectY = (int) (scaleY * top);
+        Rect toRect = new Rect(rectX, rectY, rectX + (int) (scaleX * displayWidth), rectY + (int) (scaleY * displayHeight));
+
+        Logger.d("scaleX=" + scaleX + " B.W=" + bmp.getWidth() + " RW=" + remoteWidth
+                + " scaleY=" + scaleY + " B.H=" + bmp.getHeight() + " RH=" + remoteHeight
+                + " W=" + mWidth + " H=" + mHeight
+                + " left=" + left + " top=" + top
+                + " toRect=" + toRect
+                + " ByteCount=" + bmp.getByteCount());
+
+        return new BitmapOp(bmp, toRect);
+    }
+
+    /**
+     * Draw the op into each tile it touches and mark them dirty
+     */
+    private void drawOp(DrawOp op, int generation) {
+        synchronized (mLock) {
+            if (isReleased(generation)) {
+                //tiles were freed while this was being decoded
+                return;
+            }
+
+            if (op instanceof ClearOp) {
+                //no need to keep tiles that are just going to be the background color
+                mBackgroundColor = ((ClearOp) op).mColor;
+                for (int i = 0; i < mTiles.length; ++i) {
+                    if (mTiles[i] != null) {
+                        mTiles[i].eraseColor(Color.TRANSPARENT);
+                    }
+                    mDirtyTiles[i] = true;
+                }
+                return;
+            }
+
+            Rect bounds = op.getBounds();
+            int firstColumn = Math.max(0, bounds.left / TILE_SIZE);
+            int lastColumn = Math.min(mColumns - 1, bounds.right / TILE_SIZE);
+            int firstRow = Math.max(0, bounds.top / TILE_SIZE);
+            int lastRow = Math.min(mRows - 1, bounds.bottom / TILE_SIZE);
+            for (int row = firstRow; row <= lastRow; ++row) {
+                for (int column = firstColumn; column <= lastColumn; ++column) {
+                    int index = row * mColumns + column;
+                    Canvas canvas = mTileCanvases[index];
+                    if (canvas == null) {
+                        mTiles[index] = BitmapPool.getInstance().get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+                        canvas = new Canvas(mTiles[index]);
+                        mTileCanvases[index] = canvas;
+                    }
+
+                    canvas.save();
+                    canvas.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+                    op.draw(canvas);
+                    canvas.restore();
+                    mDirtyTiles[index] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidate the area of the view covered by the dirty tiles and clear the dirty flags
+     */
+    private void postInvalidate() {
+        Rect dirty = new Rect();
+        synchronized (mLock) {
+            for (int row = 0; row < mRows; ++row) {
+                for (int column = 0; column < mColumns; ++column) {
+                    int index = row * mColumns + column;
+                    if (mDirtyTiles[index]) {
+                        mDirtyTiles[index] = false;
+                        dirty.union(column * TILE_SIZE, row * TILE_SIZE, (column + 1) * TILE_SIZE, (row + 1) * TILE_SIZE);
+                    }
+                }
+            }
+        }
+
+        if (!dirty.isEmpty()) {
+            mView.postInvalidate(dirty.left, dirty.top, Math.min(dirty.right, mWidth), Math.min(dirty.bottom, mHeight));
+        }
+    }
+
+    private static abstract class DrawOp {
+        abstract Rect getBounds();
+
+        abstract void draw(Canvas canvas);
+    }
+
+    private static class ClearOp extends DrawOp {
+        final int mColor;
+
+        ClearOp(int color) {
+            mColor = color;
+        }
+
+        @Override
+        Rect getBounds() {
+            return null;
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            canvas.drawColor(mColor);
+        }
+    }
+
+    private static class BitmapOp extends DrawOp {
+        final Bitmap mBitmap;
+        final Rect mToRect;
+
+        BitmapOp(Bitmap bitmap, Rect toRect) {
+            mBitmap = bitmap;
+            mToRect = toRect;
+        }
+
+        @Override
+        Rect getBounds() {
+            return mToRect;
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            //the bitmap is owned by the DoodleCache, so it isn't recycled after
+            canvas.drawBitmap(mBitmap, null, mToRect, null);
+        }
+    }
+
+    private static class PathOp extends DrawOp {
+        final Path mPath;
+        final Paint mPaint;
+        final Rect mBounds = new Rect();
+
+        PathOp(Path path, Paint paint) {
+            mPath = path;
+            mPaint = paint;
+
+            RectF bounds = new RectF();
+            path.computeBounds(bounds, true);
+            //the stroke goes half its width outside the points
+            float halfStroke = paint.getStrokeWidth() / 2 + 1;
+            bounds.inset(-halfStroke, -halfStroke);
+            bounds.roundOut(mBounds);
+        }
+
+        @Override
+        Rect getBounds() {
+            return mBounds;
+        }
+
+        @Override
+        void draw(Canvas canvas) {
+            canvas.drawPath(mPath, mPaint);
+        }
+    }
+
+    private static class RenderThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        RenderThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bbm.sdk.support.util.Logger;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Queue for preparing and sending whiteboard messages in the background.
+ * <p>
+ * Jobs are sent one at a time in priority order, and in the order they were added for the same priority,
+ * so small strokes go ahead of large pictures that take a long time to compress. A job never goes ahead of
+ * one already queued for the same chat though, since it would be drawn under it on every receiver.
+ * A new job can be merged into the newest job that hasn't started yet, this is used to combine strokes
+ * drawn quickly into 1 message. The queue is bounded, when it is full new jobs are rejected so the caller can
+ * hold on to them (for example leave the strokes in the view to be sent with the next one) and the listener
+ * is told so it can show the user that sending is backed up.
+ */
+public class WhiteboardSender {
+    //lower values are sent first
+    public static final int PRIORITY_CLEAR = 0;
+    public static final int PRIORITY_STROKE = 1;
+    public static final int PRIORITY_DOODLE = 2;
+    public static final int PRIORITY_PICTURE = 3;
+    public static final int PRIORITY_SNAPSHOT = 4;
+
+    static final int MAX_QUEUED = 16;
+
+    public interface Listener {
+        /**
+         * Called on the UI thread when the number of queued jobs changes
+         *
+         * @param queued the number of jobs waiting to send
+         * @param full true if new jobs will be rejected
+         */
+        void onQueueChanged(int queued, boolean full);
+    }
+
+    public static abstract class Job {
+        final String mChatId;
+        final int mPriority;
+        //the priority it is queued with, lowered so it doesn't go ahead of earlier jobs for the same chat
+        int mQueuePriority;
+        long mSequence;
+
+        protected Job(String chatId, int priority) {
+            mChatId = chatId;
+            mPriority = priority;
+        }
+
+        /**
+         * Called on the send thread to build and send the message
+         */
+        protected abstract void send();
+
+        /**
+         * Called if the job was added and is still waiting when a newer job is added.
+         *
+         * @return true if the newer job was combined into this one, so it doesn't need to be queued
+         */
+        protected boolean merge(Job newer) {
+            return false;
+        }
+
+        /**
+         * @return true if this replaces all jobs for the same chat that are still waiting, like a clear
+         */
+        protected boolean replacesQueued() {
+            return false;
+        }
+
+        /**
+         * Called if the job is removed without being sent, to free anything it holds
+         */
+        protected void discard() {
+        }
+    }
+
+    private static final WhiteboardSender sInstance = new WhiteboardSender();
+
+    public static WhiteboardSender getInstance() {
+        return sInstance;
+    }
+
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<>(MAX_QUEUED, new Comparator<Job>() {
+        @Override
+        public int compare(Job j1, Job j2) {
+            if (j1.mQueuePriority != j2.mQueuePriority) {
+                return j1.mQueuePriority < j2.mQueuePriority ? -1 : 1;
+            }
+            return Long.compare(j1.mSequence, j2.mSequence);
+        }
+    });
+    private long mNextSequence;
+    /**
+     * The most recently added job if it is still waiting, only this one can be merged into
+     * so jobs are never combined across other messages
+     */
+    private Job mNewest;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+    private final Runnable mSendNext = new Runnable() {
+        @Override
+        public void run() {
+            Job job;
+            synchronized (WhiteboardSender.this) {
+                job = mQueue.poll();
+                if (job == mNewest) {
+                    mNewest = null;
+                }
+            }
+            notifyListener();
+
+            if (job != null) {
+                try {
+                    job.send();
+                } catch (RuntimeException e) {
+                    Logger.e(e, "Failed to send job for chat " + job.mChatId);
+                }
+            }
+        }
+    };
+
+    private WhiteboardSender() {
+    }
+
+    /**
+     * Set the listener to be told when the queue changes, pass null to remove it
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+        notifyListener();
+    }
+
+    /**
+     * Add the job to be sent
+     *
+     * @return false if the queue was full and the job was not added
+     */
+    public boolean offer(Job job) {
+        synchronized (this) {
+            if (mNewest != null && mNewest.mChatId.equals(job.mChatId) && mNewest.merge(job)) {
+                Logger.d("offer: merged job into " + mNewest.mSequence);
+                return true;
+            }
+
+            if (job.replacesQueued()) {
+                Iterator<Job> iterator = mQueue.iterator();
+                while (iterator.hasNext()) {
+                    Job queued = iterator.next();
+                    if (queued.mChatId.equals(job.mChatId)) {
+                        iterator.remove();
+                        queued.discard();
+                    }
+                }
+            } else if (mQueue.size() >= MAX_QUEUED && !evictSnapshot(job)) {
+                Logger.d("offer: queue full, rejecting job priority=" + job.mPriority);
+                notifyListener();
+                return false;
+            }
+
+            job.mQueuePriority = job.mPriority;
+            if (job.mPriority < PRIORITY_SNAPSHOT) {
+                //a stroke drawn after a picture must not be sent before it, or it would end up under the picture.
+                //Snapshots are placed by the message ID they cover, so they don't need to keep their order.
+                for (Job queued : mQueue) {
+                    if (queued.mChatId.equals(job.mChatId) && queued.mPriority < PRIORITY_SNAPSHOT) {
+                        job.mQueuePriority = Math.max(job.mQueuePriority, queued.mQueuePriority);
+                    }
+                }
+            }
+            job.mSequence = mNextSequence++;
+            mQueue.add(job);
+            mNewest = job;
+        }
+
+        notifyListener();
+        mExecutor.execute(mSendNext);
+        return true;
+    }
+
+    /**
+     * Snapshots are optional so if the queue is full drop one to make room for a more important job
+     *
+     * @return true if one was removed
+     */
+    private boolean evictSnapshot(Job job) {
+        if (job.mPriority >= PRIORITY_SNAPSHOT) {
+            return false;
+        }
+
+        Iterator<Job> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            Job queued = iterator.next();
+            if (queued.mPriority == PRIORITY_SNAPSHOT) {
+                Logger.d("offer: queue full, dropping snapshot for chat " + queued.mChatId);
+                iterator.remove();
+                queued.discard();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void notifyListener() {
+        final int queued;
+        synchronized (this) {
+            queued = mQueue.size();
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onQueueChanged(queued, queued >= MAX_QUEUED);
+                }
+            }
+        });
+    }
+}
@@ -19,13 +19,14 @@ package com.bbm.example.whiteboard;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Base64;
 import android.widget.Toast;
 
+import com.bbm.example.common.util.BitmapPool;
 import com.bbm.sdk.BBMEConfig;
 import com.bbm.sdk.BBMEnterprise;
 import com.bbm.sdk.bbmds.Chat;
@@ -40,8 +41,6 @@ import com.bbm.sdk.support.util.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
-
 public class WhiteboardUtils {
     /**
      * Used to pass the chat ID from where this activity was invoked.
@@ -50,6 +49,14 @@ public class WhiteboardUtils {
 
     public static final String CHAT_MESSAGE_TAG_WHITEBOARD = "Whiteboard";
     public static final String CHAT_MESSAGE_TAG_PICTURE = "Picture";
+    /**
+     * Doodle sent as the points of the strokes instead of an image, see {@link StrokeCodec}
+     */
+    public static final String CHAT_MESSAGE_TAG_VECTOR = "Vector";
+    /**
+     * Image of the whole board including all messages up to the message ID in the data
+     */
+    public static final String CHAT_MESSAGE_TAG_SNAPSHOT = "Snapshot";
 
     /**
      * "Clear" is a reserved tag, don't use it!
@@ -72,6 +79,20 @@ public class WhiteboardUtils {
 
     public static final String CHAT_MESSAGE_DATA_KEY_BACKGROUND_COLOR = "BackgroundColor";
 
+    public static final String CHAT_MESSAGE_DATA_KEY_STROKE_POINTS = "StrokePoints";
+    public static final String CHAT_MESSAGE_DATA_KEY_STROKE_WIDTH = "StrokeWidth";
+    public static final String CHAT_MESSAGE_DATA_KEY_STROKE_COLOR = "StrokeColor";
+
+    public static final String CHAT_MESSAGE_DATA_KEY_SNAPSHOT_MESSAGE_ID = "SnapshotMessageId";
+
+    //set when the image was sent as the thumbnail file instead of in the data
+    public static final String CHAT_MESSAGE_DATA_KEY_IMAGE_ATTACHED = "ImageAttached";
+
+    /**
+     * The chat message data must be under 70KB, otherwise it will fail, leave some space for other attributes in it
+     */
+    public static final int MAX_DATA_SIZE = 68 * 1024;
+
     /**
      * Prefix whiteboard chat subjects with this to know what type of chat.
      * This would not normally be necessary, but is helpful if this app is used in an environment
@@ -81,6 +102,7 @@ public class WhiteboardUtils {
     public static final String WHITEBOARD_CHAT_SUBJECT_PREFIX = "WB:";
 
     private static final ObserveConnector sObserveConnector = new ObserveConnector();
+    private static BudgetBitmapEncoder sBitmapEncoder;
 
     public static void openChat(final Context context, final String chatId) {
         //get the chat, use observer in case it doesn't exist yet, and
@@ -102,86 +124,157 @@ public class WhiteboardUtils {
         }, true);
     }
 
-    public static void sendDoodle(final WhiteboardView.DoodleEvent event, final WhiteboardView WhiteboardView, final String chatId, final boolean trimAllSides) {
+    /**
+     * Send the strokes currently drawn in the view as a list of points.
+     * This is much smaller and cheaper to create than {@link #sendDoodle} but if the doodle has so many
+     * points that it won't fit in a message this will fall back to sending it as an image.
+     * This must be called before the view is reset.
+     *
+     * @return false if the send queue is full, the view should not be reset so the strokes can be sent later
+     */
+    public static boolean sendVectorDoodle(final WhiteboardView.DoodleEvent event, final WhiteboardView whiteboardView, final String chatId) {
+        StrokeCodec.Recorder strokes = whiteboardView.getStrokes();
+        if (strokes == null) {
+            Logger.d("sendVectorDoodle: no strokes to send");
+            return true;
+        }
+
+        if (strokes.getPointCount() > VectorJob.MAX_POINTS) {
+            Logger.d("sendVectorDoodle: too many points count=" + strokes.getPointCount() + ", sending as image");
+            return sendDoodle(event, whiteboardView, chatId, true);
+        }
+
+        return WhiteboardSender.getInstance().offer(new VectorJob(chatId, strokes, whiteboardView));
+    }
+
+    /**
+     * Sends strokes as points, strokes drawn quickly with the same pen are merged into 1 message
+     */
+    private static class VectorJob extends WhiteboardSender.Job {
+        /**
+         * Even if every point needs the max 5 bytes for x and y this many will still fit in a message
+         */
+        static final int MAX_POINTS = 4096;
+
+        final StrokeCodec.Recorder mStrokes;
+        final int mStrokeWidth;
+        final int mStrokeColor;
+        final int mViewWidth;
+        final int mViewHeight;
+
+        VectorJob(String chatId, StrokeCodec.Recorder strokes, WhiteboardView whiteboardView) {
+            super(chatId, WhiteboardSender.PRIORITY_STROKE);
+            mStrokes = strokes;
+            mStrokeWidth = whiteboardView.getStrokeWidth();
+            mStrokeColor = whiteboardView.getStrokeColor();
+            mViewWidth = whiteboardView.getWidth();
+            mViewHeight = whiteboardView.getHeight();
+        }
+
+        @Override
+        protected boolean merge(WhiteboardSender.Job newer) {
+            if (!(newer instanceof VectorJob)) {
+                return false;
+            }
+
+            VectorJob job = (VectorJob) newer;
+            if (job.mStrokeWidth != mStrokeWidth || job.mStrokeColor != mStrokeColor
+                    || job.mViewWidth != mViewWidth || job.mViewHeight != mViewHeight
+                    || mStrokes.getPointCount() + job.mStrokes.getPointCount() > MAX_POINTS) {
+                return false;
+            }
+
+            mStrokes.append(job.mStrokes);
+            return true;
+        }
+
+        @Override
+        protected void send() {
+            JSONObject jsonObject = new JSONObject();
+            try {
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_STROKE_POINTS, mStrokes.encode());
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_STROKE_WIDTH, mStrokeWidth);
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_STROKE_COLOR, mStrokeColor);
+
+                //the points are relative to the senders view, so receiver can scale them to fit
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_WIDTH, mViewWidth);
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_HEIGHT, mViewHeight);
+
+                ChatMessageSend messageSend = new ChatMessageSend(mChatId, WhiteboardUtils.CHAT_MESSAGE_TAG_VECTOR);
+                messageSend.data(jsonObject);
+                BBMEnterprise.getInstance().getBbmdsProtocol().send(messageSend);
+            } catch (JSONException e) {
+                Logger.e(e);
+            }
+        }
+    }
+
+    /**
+     * @return false if the send queue is full, the view should not be reset so the doodle can be sent later
+     */
+    public static boolean sendDoodle(final WhiteboardView.DoodleEvent event, final WhiteboardView WhiteboardView, final String chatId, final boolean trimAllSides) {
         final int viewWidth = WhiteboardView.getWidth();
         final int viewHeight = WhiteboardView.getHeight();
-        final int halfStrokeWidth = WhiteboardView.getStrokeWidth() / 2;
-        final Bitmap origBmp = WhiteboardView.getDoodle();
-        new AsyncTask<Void, Void, Void>() {
+        //where the doodle goes in the view, only this area is drawn into the bitmap
+        final Rect bounds = new Rect();
+        final Bitmap bmp = WhiteboardView.getDoodle(trimAllSides, bounds);
+        if (bmp == null) {
+            return true;
+        }
+        final int doodleLeft = bounds.left;
+        final int doodleTop = bounds.top;
+
+        Logger.d("doodle bmp: W=" + bmp.getWidth() + " H=" + bmp.getHeight() + " at " + bounds + " view W=" + viewWidth + " H=" + viewHeight);
+
+        boolean queued = WhiteboardSender.getInstance().offer(new WhiteboardSender.Job(chatId, WhiteboardSender.PRIORITY_DOODLE) {
             @Override
-            protected Void doInBackground(Void[] params) {
-
-                if (origBmp != null) {
-                    Logger.d("Trimming origBmp W="+origBmp.getWidth()+" H="+origBmp.getHeight());
-
-                    Bitmap bmp;
-                    if (trimAllSides) {
-                        //The stroke thickness is more than 1 pixel, so we should grab a bit more than the edges that the users finger touched
-                        //otherwise 1/2 the thickness will be cut on the square edges
-                        int left = (int)event.leftMostX - halfStrokeWidth;
-                        int right =  (int)event.rightMostX + halfStrokeWidth;
-                        int top = (int)event.highestY - halfStrokeWidth;
-                        int bottom =  (int)event.lowestY + halfStrokeWidth;
-                        //can't go outside
-                        if (left < 0) {
-                            left = 0;
-                        }
-                        if (right >= origBmp.getWidth()) {
-                            right = origBmp.getWidth() - 1;
-                        }
-                        if (top < 0) {
-                            top = 0;
-                        }
-                        if (bottom >= origBmp.getHeight()) {
-                            bottom = origBmp.getHeight() - 1;
-                        }
-                        bmp = Bitmap.createBitmap(origBmp, left, top, right - left, bottom - top);
-                    } else {
-                        //cut off the right whitespace part of the doodle (5 pix padding only), leave whitespace on left so user can add padding if they want. Use full height
-                        int width = Math.min((int) event.rightMostX + 5, origBmp.getWidth());
-                        bmp = Bitmap.createBitmap(origBmp, 0, 0, width, origBmp.getHeight());
-                    }
+            protected void send() {
+                JSONObject jsonObject = new JSONObject();
+                ChatMessageSend messageSend = new ChatMessageSend(mChatId, WhiteboardUtils.CHAT_MESSAGE_TAG_WHITEBOARD);
+                try {
+                    //by default the image data is base 64 encoded into a string and put into the JSON for the chat message data object
+                    //since most should be very small. If ImageAttachments is enabled it is written to a file and sent
+                    //as the Chat Message thumb instead, see addImage
 
-                    Logger.d("doodle origBmp: W=" + origBmp.getWidth() + " H=" + origBmp.getHeight() + " BC=" + origBmp.getByteCount()
-                            +" modBmp:  W=" + bmp.getWidth() + " H=" + bmp.getHeight() + " BC=" + bmp.getByteCount()
-                    );
-
-                    JSONObject jsonObject = new JSONObject();
-                    try {
-                        //the image data is base 64 encoded into a string and put into the JSON for the chat message data object
-                        //Another option would be to use the Chat Message thumb but that would require writing the data to
-                        //file and passing the url to the file as the thumb value.
-                        //since that would have the overhead of writing to the file system and since most should be very small
-                        //we just send it in the data object
-
-                        if (addEncodedBitmap(bmp, jsonObject)) {
-                            //for whiteboard let it know where to position
-                            jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_LEFT, (int) event.leftMostX);
-                            jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_TOP, (int) event.highestY);
-
-                            jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_WIDTH, viewWidth);
-                            jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_HEIGHT, viewHeight);
-
-                            ChatMessageSend messageSend = new ChatMessageSend(chatId, WhiteboardUtils.CHAT_MESSAGE_TAG_WHITEBOARD);
-                            //Attach our custom data to the chat message
-                            messageSend.data(jsonObject);
-                            BBMEnterprise.getInstance().getBbmdsProtocol().send(messageSend);
-                        }
-                    } catch (JSONException e) {
-                        Logger.e(e);
+                    if (addImage(bmp, jsonObject, messageSend)) {
+                        //for whiteboard let it know where to position
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_LEFT, doodleLeft);
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_TOP, doodleTop);
+
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_WIDTH, viewWidth);
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_HEIGHT, viewHeight);
+
+                        //Attach our custom data to the chat message
+                        messageSend.data(jsonObject);
+                        BBMEnterprise.getInstance().getBbmdsProtocol().send(messageSend);
                     }
+                } catch (JSONException e) {
+                    Logger.e(e);
+                } finally {
+                    BitmapPool.getInstance().put(bmp);
                 }
-                return null;
             }
-        }.execute();
+
+            @Override
+            protected void discard() {
+                BitmapPool.getInstance().put(bmp);
+            }
+        });
+        if (!queued) {
+            BitmapPool.getInstance().put(bmp);
+        }
+        return queued;
     }
 
-    public static void sendPicture(final String chatId, final WhiteboardView whiteboardView, final Bitmap originalBmp) {
+    /**
+     * @return false if the send queue is full and the picture was not sent
+     */
+    public static boolean sendPicture(final String chatId, final WhiteboardView whiteboardView, final Bitmap originalBmp) {
         final int viewWidth = whiteboardView.getWidth();
         final int viewHeight = whiteboardView.getHeight();
-        new AsyncTask<Void, Void, Void>() {
+        boolean queued = WhiteboardSender.getInstance().offer(new WhiteboardSender.Job(chatId, WhiteboardSender.PRIORITY_PICTURE) {
             @Override
-            protected Void doInBackground(Void... params) {
+            protected void send() {
                 Bitmap bmp = originalBmp;
                 //scale image up or down to fill either width or height without cutting the other dimension
                 if (bmp.getWidth() != viewWidth || bmp.getHeight() != viewHeight) {
@@ -199,12 +292,13 @@ public class WhiteboardUtils {
                     }
 
                     Logger.d("scaling from w=" + bmp.getWidth() + " h=" + bmp.getHeight() + " to w=" + w + " h=" + h + " BC=" + bmp.getByteCount());
-                    bmp = Bitmap.createScaledBitmap(bmp, w, h, false);
+                    bmp = BitmapPool.getInstance().createScaledBitmap(bmp, w, h);
                 }
 
                 JSONObject jsonObject = new JSONObject();
+                ChatMessageSend messageSend = new ChatMessageSend(mChatId, WhiteboardUtils.CHAT_MESSAGE_TAG_PICTURE);
                 try {
-                    if (addEncodedBitmap(bmp, jsonObject)) {
+                    if (addImage(bmp, jsonObject, messageSend)) {
 
                         //for whiteboard let it know where to position
                         jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_LEFT, 0);
@@ -213,132 +307,206 @@ public class WhiteboardUtils {
                         jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_WIDTH, viewWidth);
                         jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_HEIGHT, viewHeight);
 
-                        ChatMessageSend messageSend = new ChatMessageSend(chatId, WhiteboardUtils.CHAT_MESSAGE_TAG_PICTURE);
                         messageSend.data(jsonObject);
                         BBMEnterprise.getInstance().getBbmdsProtocol().send(messageSend);
                     }
                 } catch (JSONException e) {
                     Logger.e(e);
+                } finally {
+                    if (bmp != originalBmp) {
+                        BitmapPool.getInstance().put(bmp);
+                    }
                 }
-                return null;
             }
-        }.execute();
+        });
+
+        if (!queued) {
+            Logger.user("Too many messages waiting to send, try again later");
+        }
+        return queued;
     }
 
-    private static boolean addEncodedBitmap(Bitmap bmp, JSONObject jsonObject) throws JSONException {
-        //remember the size before any shrinking
-        int startWidth = bmp.getWidth();
-        int startHeight = bmp.getHeight();
+    /**
+     * Send an image of the whole board so other users can draw it instead of all the messages before it.
+     *
+     * @param board the composited board, the same size as the view. This will be put in the {@link BitmapPool} after it is sent.
+     * @param lastMessageId the ID of the newest message drawn in the board
+     */
+    public static void sendSnapshot(final String chatId, final Bitmap board, final long lastMessageId) {
+        boolean queued = WhiteboardSender.getInstance().offer(new WhiteboardSender.Job(chatId, WhiteboardSender.PRIORITY_SNAPSHOT) {
+            @Override
+            protected void send() {
+                JSONObject jsonObject = new JSONObject();
+                ChatMessageSend messageSend = new ChatMessageSend(mChatId, WhiteboardUtils.CHAT_MESSAGE_TAG_SNAPSHOT);
+                try {
+                    if (addImage(board, jsonObject, messageSend)) {
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_LEFT, 0);
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_TOP, 0);
+
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_WIDTH, board.getWidth());
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_HEIGHT, board.getHeight());
+                        jsonObject.put(CHAT_MESSAGE_DATA_KEY_SNAPSHOT_MESSAGE_ID, lastMessageId);
 
-        //base 64 encode the compressed image bytes to put in json
-        int imgQuality = 100;
-
-        ByteArrayOutputStream baos;
-        byte[] dataBytes = null;
-        String dataEnc = null;
-
-        final int maxTries = 20;
-        //the data must be under 70KB, otherwise it will fail, leave some space for other attributes in it
-        final int maxSize = 68 * 1024;
-        int shrinkCount = 0;
-        boolean tooBig = true;
-        do {
-            if (shrinkCount == 1) {
-                Logger.user("Image too large, shrinking to send...");
+                        messageSend.data(jsonObject);
+                        BBMEnterprise.getInstance().getBbmdsProtocol().send(messageSend);
+                    }
+                } catch (JSONException e) {
+                    Logger.e(e);
+                } finally {
+                    BitmapPool.getInstance().put(board);
+                }
             }
 
-            baos = new ByteArrayOutputStream();
-            Bitmap.CompressFormat format;
-            if (shrinkCount == 0) {
-                format = Bitmap.CompressFormat.PNG;
-            } else {
-                format = Bitmap.CompressFormat.JPEG;
+            @Override
+            protected void discard() {
+                BitmapPool.getInstance().put(board);
             }
-            bmp.compress(format, imgQuality, baos);
+        });
 
-            //before doing the base 64 first check the compressed bytes to avoid wasted effort creating larger base 64 copy
-            if (baos.size() < maxSize) {
-                dataBytes = baos.toByteArray();
-                dataEnc = Base64.encodeToString(dataBytes, Base64.DEFAULT);
-                tooBig = dataEnc.length() > (68 * 1024);
+        if (!queued) {
+            BitmapPool.getInstance().put(board);
+        }
+    }
 
-                Logger.d("tooBig="+tooBig+" shrinkCount=" + shrinkCount + " bmp: W=" + bmp.getWidth() + " H=" + bmp.getHeight() + " BC=" + bmp.getByteCount()
-                        + " len=" + dataBytes.length
-                        + " encoded len=" + dataEnc.length() + " Q=" + imgQuality + " format=" + format);
-            } else {
-                Logger.d("too big, skipped base 64. shrinkCount=" + shrinkCount + " bmp: W=" + bmp.getWidth() + " H=" + bmp.getHeight() + " BC=" + bmp.getByteCount()
-                        + " len=" + baos.size() + " Q=" + imgQuality + " format=" + format);
+    /**
+     * Add the image to the message, as a thumbnail file if {@link ImageAttachments} is enabled otherwise in the data.
+     *
+     * @return false if the image could not be added
+     */
+    private static boolean addImage(Bitmap bmp, JSONObject jsonObject, ChatMessageSend messageSend) throws JSONException {
+        ImageAttachments attachments = ImageAttachments.getInstance();
+        if (attachments != null && attachments.isEnabled()) {
+            String path = attachments.write(bmp);
+            if (path != null) {
+                //sent at full size, so the receiver doesn't need to scale it
+                messageSend.thumb(path);
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_IMAGE_ATTACHED, true);
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_WIDTH, bmp.getWidth());
+                jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_HEIGHT, bmp.getHeight());
+                return true;
             }
+            Logger.d("addImage: failed to write file, sending in data");
+        }
+        return addEncodedBitmap(bmp, jsonObject);
+    }
 
-            ++shrinkCount;
-            if (tooBig) {
-                //if (shrinkQuality) {
-                if (shrinkCount % 4 == 0) {
-                    //tried decreasing quality enough, shrink resolution
-                    int newWidth = (int) (bmp.getWidth() * 0.75);
-                    int newHeight = (int) (bmp.getHeight() * 0.75);
-                    //reset quality higher for this size
-                    imgQuality = 80;
-                    bmp = Bitmap.createScaledBitmap(bmp, newWidth, newHeight, false);
-                } else {
-                    imgQuality -= 20;
-                }
-            }
-        } while (tooBig && shrinkCount < maxTries);
+    /**
+     * @return the encoder shared by all images so its buffers are only allocated once
+     */
+    private static synchronized BudgetBitmapEncoder getBitmapEncoder() {
+        if (sBitmapEncoder == null) {
+            sBitmapEncoder = new BudgetBitmapEncoder(MAX_DATA_SIZE);
+        }
+        return sBitmapEncoder;
+    }
+
+    private static boolean addEncodedBitmap(Bitmap bmp, JSONObject jsonObject) throws JSONException {
+        //remember the size before any shrinking
+        int startWidth = bmp.getWidth();
+        int startHeight = bmp.getHeight();
 
-        if (tooBig) {
+        //base 64 encode the compressed image bytes to put in json, shrinking it if needed to fit
+        BudgetBitmapEncoder.Result result = getBitmapEncoder().encode(bmp);
+        if (result == null) {
             Logger.user("Image could not be compressed enough to send!");
             return false;
         }
 
-        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_PNG_BYTES, dataEnc);
+        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_PNG_BYTES, result.encoded);
         //send the width to allow UI to determine size quicker than loading image
-        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_WIDTH, bmp.getWidth());
-        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_HEIGHT, bmp.getHeight());
-        if (bmp.getWidth() != startWidth || bmp.getHeight() != startHeight) {
+        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_WIDTH, result.width);
+        jsonObject.put(CHAT_MESSAGE_DATA_KEY_DOODLE_HEIGHT, result.height);
+        if (result.width != startWidth || result.height != startHeight) {
             jsonObject.put(CHAT_MESSAGE_DATA_KEY_SCALE_TO_WIDTH, startWidth);
             jsonObject.put(CHAT_MESSAGE_DATA_KEY_SCALE_TO_HEIGHT, startHeight);
         }
-
-        Logger.d("Done png.len="+dataBytes.length+" dataEnc.len="+dataEnc.length());
         return true;
     }
 
-    public static void sendClearBackground(final String chatId, int color) {
-        JSONObject jsonObject = new JSONObject();
-        try {
-            jsonObject.put(CHAT_MESSAGE_DATA_KEY_BACKGROUND_COLOR, color);
-
-            ChatMessageSend messageSend = new ChatMessageSend(chatId, WhiteboardUtils.CHAT_MESSAGE_TAG_CLEAR);
-            messageSend.data(jsonObject);
-            Logger.d("sendMessage: sending " + messageSend);
-            BBMEnterprise.getInstance().getBbmdsProtocol().send(messageSend);
-        } catch (JSONException e) {
-            Logger.e(e);
-        }
+    public static void sendClearBackground(final String chatId, final int color) {
+        //goes through the queue so it is sent after strokes already waiting, and replaces them since they would be cleared anyway
+        WhiteboardSender.getInstance().offer(new WhiteboardSender.Job(chatId, WhiteboardSender.PRIORITY_CLEAR) {
+            @Override
+            protected void send() {
+                JSONObject jsonObject = new JSONObject();
+                try {
+                    jsonObject.put(CHAT_MESSAGE_DATA_KEY_BACKGROUND_COLOR, color);
+
+                    ChatMessageSend messageSend = new ChatMessageSend(mChatId, WhiteboardUtils.CHAT_MESSAGE_TAG_CLEAR);
+                    messageSend.data(jsonObject);
+                    Logger.d("sendMessage: sending " + messageSend);
+                    BBMEnterprise.getInstance().getBbmdsProtocol().send(messageSend);
+                } catch (JSONException e) {
+                    Logger.e(e);
+                }
+            }
+
+            @Override
+            protected boolean replacesQueued() {
+                return true;
+            }
+        });
     }
 
-    public static Bitmap createBitmap(ChatMessage chatMessage) {
+    /**
+     * @return true if the tag is for a message that draws something on the whiteboard
+     */
+    public static boolean isDrawingTag(String tag) {
+        return CHAT_MESSAGE_TAG_WHITEBOARD.equals(tag)
+                || CHAT_MESSAGE_TAG_PICTURE.equals(tag)
+                || CHAT_MESSAGE_TAG_VECTOR.equals(tag)
+                || CHAT_MESSAGE_TAG_SNAPSHOT.equals(tag);
+    }
+
+    /**
+     * @return true if the image was sent as the thumbnail file and it hasn't been downloaded yet
+     */
+    public static boolean isAttachmentPending(ChatMessage chatMessage) {
+        return chatMessage.data != null
+                && chatMessage.data.optBoolean(CHAT_MESSAGE_DATA_KEY_IMAGE_ATTACHED, false)
+                && TextUtils.isEmpty(chatMessage.thumb);
+    }
+
+    /**
+     * Decode the image from the chat message data, or from the thumbnail file if it was sent as one.
+     * This does not scale it to the ScaleToWidth/ScaleToHeight size, see {@link #createBitmap(ChatMessage)}
+     */
+    public static Bitmap decodeBitmap(ChatMessage chatMessage) {
         Bitmap bmp = null;
         String dataEnc = chatMessage.data.optString(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_PNG_BYTES);
-        if (dataEnc != null) {
+        if (!TextUtils.isEmpty(dataEnc)) {
             byte[] dataBytes = Base64.decode(dataEnc, Base64.DEFAULT);
-            bmp = BitmapFactory.decodeByteArray(dataBytes, 0, dataBytes.length);
+            bmp = BitmapPool.getInstance().decodeByteArray(dataBytes, 0, dataBytes.length);
             if (bmp == null) {
                 Logger.d("failed to decode bytes len=" + dataBytes.length);
             } else {
-                int displayWidth = chatMessage.data.optInt(CHAT_MESSAGE_DATA_KEY_SCALE_TO_WIDTH, -1);
-                int displayHeight = chatMessage.data.optInt(CHAT_MESSAGE_DATA_KEY_SCALE_TO_HEIGHT, -1);
-                Logger.d("dataEnc.len="+dataEnc.length()+" ByteCount="+bmp.getByteCount()+" W="+bmp.getWidth()+" H="+bmp.getHeight()+" DH="+displayHeight+" DW="+displayWidth);
-                if (displayWidth > 0 && displayHeight > 0
-                        && displayWidth != bmp.getWidth() && displayHeight != bmp.getHeight()) {
-                    //scale the bitmap to this size. This is used when image needed to be shrunk,
-                    //or would support a feature to allow user to pinch to scale image before sending
-                    bmp = Bitmap.createScaledBitmap(bmp, displayWidth, displayHeight, false);
-                }
+                Logger.d("dataEnc.len="+dataEnc.length()+" ByteCount="+bmp.getByteCount()+" W="+bmp.getWidth()+" H="+bmp.getHeight());
+            }
+        } else if (!TextUtils.isEmpty(chatMessage.thumb)) {
+            //decoded by stream from the file the SDK downloaded, it won't be set until the download is done
+            bmp = BitmapPool.getInstance().decodeFile(chatMessage.thumb);
+            if (bmp == null) {
+                Logger.d("failed to decode thumb=" + chatMessage.thumb);
             }
         } else {
-            Logger.d("missing " + WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_PNG_BYTES + " in chatMessage data " + chatMessage.data);
+            Logger.d("missing " + WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_PNG_BYTES + " and thumb in chatMessage data " + chatMessage.data);
+        }
+        return bmp;
+    }
+
+    public static Bitmap createBitmap(ChatMessage chatMessage) {
+        Bitmap bmp = decodeBitmap(chatMessage);
+        if (bmp != null) {
+            int displayWidth = chatMessage.data.optInt(CHAT_MESSAGE_DATA_KEY_SCALE_TO_WIDTH, -1);
+            int displayHeight = chatMessage.data.optInt(CHAT_MESSAGE_DATA_KEY_SCALE_TO_HEIGHT, -1);
+            if (displayWidth > 0 && displayHeight > 0
+                    && displayWidth != bmp.getWidth() && displayHeight != bmp.getHeight()) {
+                //scale the bitmap to this size. This is used when image needed to be shrunk,
+                //or would support a feature to allow user to pinch to scale image before sending
+                Bitmap scaled = BitmapPool.getInstance().createScaledBitmap(bmp, displayWidth, displayHeight);
+                BitmapPool.getInstance().put(bmp);
+                bmp = scaled;
+            }
         }
         return bmp;
     }
@@ -28,6 +28,7 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.bbm.example.common.util.BitmapPool;
 import com.bbm.sdk.bbmds.Chat;
 import com.bbm.sdk.bbmds.ChatMessage;
 import com.bbm.sdk.bbmds.internal.Existence;
@@ -38,16 +39,18 @@ import com.bbm.sdk.reactive.Observer;
 import com.bbm.sdk.support.util.Logger;
 
 import java.util.ArrayList;
+import java.util.Collections;
 
 public class WhiteboardView extends View implements Observer {
 
     private DoodleListener mDoodleListener;
     private Path mPath = new Path();
     private Paint mPaint = new Paint();
+    //the points of the strokes in mPath, used to send the doodle as vector data
+    private final StrokeCodec.Recorder mStrokeRecorder = new StrokeCodec.Recorder();
 
-    //These are just used when the getDoodle is called
-    private Canvas mDrawingCanvas;
-    private Bitmap mDrawingBitmap;
+    //This is just used when the getDoodle is called
+    private final Canvas mDrawingCanvas = new Canvas();
 
     private float mLeftMostX;
     private float mRightMostX;
@@ -55,10 +58,22 @@ public class WhiteboardView extends View implements Observer {
     private float mLowestY;
     private long mDoodleStart;
 
+    private long mBatchWindowMs;
+    private final Runnable mBatchSend = new Runnable() {
+        @Override
+        public void run() {
+            sendDoodleEvent();
+        }
+    };
+
     private int mStrokeWidth = 8;
 
     private int mStrokeColor = Color.BLACK;
 
+    private static final int BACKLOGGED_ALPHA = 128;
+    private boolean mSendBacklogged;
+    private final Paint mBackloggedPaint = new Paint();
+
     private ObservableValue<Chat> mChat;
 
     /**
@@ -68,13 +83,20 @@ public class WhiteboardView extends View implements Observer {
     private ObservableList<ObservableValue<ChatMessage>> mChatMessageList;
 
     private ChatMessage mChatMessageListLastDisplayed;
-    private Canvas mChatMessagesCanvas;
-    private Bitmap mChatMessagesBitmap;
     /**
-     * Just needed to know if the mChatMessagesBitmap needs to be created.
+     * The ID of the newest snapshot message received from another user that was drawn
+     */
+    private long mAppliedSnapshotMessageId = -1;
+    /**
+     * Decodes and draws the chat messages in the background
+     */
+    private WhiteboardRenderer mRenderer;
+    /**
+     * Just needed to know if the mRenderer needs to be created.
      * This is set when we don't get have a size, so it can be created when size is known.
      */
     private boolean mNeedToCreateCanvas;
+    private boolean mSendSnapshots;
 
     public WhiteboardView(Context context, @Nullable AttributeSet attrs) {
         super(context, attrs);
@@ -90,6 +112,17 @@ public class WhiteboardView extends View implements Observer {
         mPaint.setStyle(Paint.Style.STROKE);
         mPaint.setStrokeWidth(mStrokeWidth);
         mPaint.setColor(mStrokeColor);
+        resetBounds();
+    }
+
+    /**
+     * Reset the bounds so the first point of the next doodle sets them
+     */
+    private void resetBounds() {
+        mLeftMostX = Float.MAX_VALUE;
+        mRightMostX = 0;
+        mHighestY = Float.MAX_VALUE;
+        mLowestY = 0;
     }
 
     private void moveData(final float x, final float y) {
@@ -110,6 +143,14 @@ public class WhiteboardView extends View implements Observer {
     }
 
     private void validate() {
+        if (mLeftMostX < 0) {
+            mLeftMostX = 0;
+        }
+
+        if (mHighestY < 0) {
+            mHighestY = 0;
+        }
+
         if (mLowestY > getHeight()) {
             mLowestY = getHeight();
         }
@@ -127,18 +168,28 @@ public class WhiteboardView extends View implements Observer {
         switch (event.getAction()) {
             case MotionEvent.ACTION_MOVE:
                 mPath.lineTo(x, y);
+                mStrokeRecorder.addPoint(x, y);
                 moveData(x, y);
                 invalidate();
                 break;
             case MotionEvent.ACTION_DOWN:
+                //another stroke started in time to be batched with the previous ones
+                removeCallbacks(mBatchSend);
                 mPath.moveTo(x, y);
+                mStrokeRecorder.startStroke(x, y);
+                moveData(x, y);
                 invalidate();
                 break;
             case MotionEvent.ACTION_UP:
                 mPath.lineTo(x, y);
+                mStrokeRecorder.addPoint(x, y);
                 moveData(x, y);
                 invalidate();
 
+                if (mBatchWindowMs > 0) {
+                    //wait to see if another stroke is started before sending
+                    postDelayed(mBatchSend, mBatchWindowMs);
+                }
                 break;
         }
 
@@ -150,12 +201,19 @@ public class WhiteboardView extends View implements Observer {
     public void draw(Canvas canvas) {
         super.draw(canvas);
 
-        Bitmap chatMessagesBitmap = mChatMessagesBitmap;
-        if (chatMessagesBitmap != null) {
-            canvas.drawBitmap(chatMessagesBitmap, 0, 0, null);
+        WhiteboardRenderer renderer = mRenderer;
+        if (renderer != null) {
+            renderer.draw(canvas);
         }
 
-        canvas.drawPath(mPath, mPaint);
+        if (mSendBacklogged) {
+            //fade the strokes that are waiting to be sent
+            mBackloggedPaint.set(mPaint);
+            mBackloggedPaint.setAlpha(BACKLOGGED_ALPHA);
+            canvas.drawPath(mPath, mBackloggedPaint);
+        } else {
+            canvas.drawPath(mPath, mPaint);
+        }
     }
 
     @Override
@@ -186,6 +244,7 @@ public class WhiteboardView extends View implements Observer {
                 public void changed() {
                     //reset last displayed
                     mChatMessageListLastDisplayed = null;
+                    mAppliedSnapshotMessageId = -1;
                 }
             });
         }
@@ -196,15 +255,16 @@ public class WhiteboardView extends View implements Observer {
         }
         mChatMessageList = chatMessageList;
         mChatMessageListLastDisplayed = null;
-        mChatMessagesCanvas = null;
-        mChatMessagesBitmap = null;
+        mAppliedSnapshotMessageId = -1;
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
+        }
         if (mChatMessageList != null) {
             mChatMessageList.addObserver(this);
             int w = getWidth();
             int h = getHeight();
             if (w > 0 && h > 0) {
-                mChatMessagesBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-                mChatMessagesCanvas = new Canvas(mChatMessagesBitmap);
                 //call changed to display right away
                 changed();
             } else {
@@ -220,11 +280,17 @@ public class WhiteboardView extends View implements Observer {
     public void changed() {
         ObservableList<ObservableValue<ChatMessage>> chatMessageList = mChatMessageList;
         if (chatMessageList != null) {
+            createRenderer();
+
             //build list to display
             ArrayList<ChatMessage> toDisplay = new ArrayList<>();
             int size = chatMessageList.size();
             boolean rememberLastDisplayed = true;
             int pendingChatMessages = 0;
+            //messages up to this ID are already drawn in the saved snapshot
+            long coveredMessageId = mRenderer != null ? mRenderer.getSnapshotMessageId() : -1;
+            //a snapshot message received from another user, it needs to be drawn before older messages it didn't cover
+            ChatMessage snapshotMessage = null;
             //start at last, go until find last displayed or control message
             for (int i=size - 1; i >= 0; --i) {
                 ObservableValue<ChatMessage> observableChatMessage = chatMessageList.get(i);
@@ -243,12 +309,28 @@ public class WhiteboardView extends View implements Observer {
                         break;
                     }
                 } else {
-                    if (Equal.isEqual(chatMessage, mChatMessageListLastDisplayed)) {
-                        //we already displayed this one, stop
+                    if (snapshotMessage == null && Equal.isEqual(chatMessage, mChatMessageListLastDisplayed)) {
+                        //we already displayed this one, stop.
+                        //A snapshot draws over the whole board, so after one the messages it doesn't cover are needed again.
+                        break;
+                    } else if (chatMessage.messageId <= coveredMessageId) {
+                        //this and everything before it is in the snapshot, stop
                         break;
                     } else {
                         String tag = chatMessage.tag;
-                        if (WhiteboardUtils.CHAT_MESSAGE_TAG_WHITEBOARD.equals(tag) || WhiteboardUtils.CHAT_MESSAGE_TAG_PICTURE.equals(tag)) {
+                        if (WhiteboardUtils.CHAT_MESSAGE_TAG_SNAPSHOT.equals(tag)) {
+                            if (WhiteboardUtils.isAttachmentPending(chatMessage)) {
+                                //snapshots are optional, draw the messages instead of waiting for it
+                                continue;
+                            }
+                            long snapshotMessageId = chatMessage.data != null
+                                    ? chatMessage.data.optLong(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_SNAPSHOT_MESSAGE_ID, -1) : -1;
+                            if (snapshotMessageId > coveredMessageId && chatMessage.messageId > mAppliedSnapshotMessageId) {
+                                //only need older messages that were sent while the snapshot was being sent
+                                coveredMessageId = snapshotMessageId;
+                                snapshotMessage = chatMessage;
+                            }
+                        } else if (WhiteboardUtils.isDrawingTag(tag)) {
                             toDisplay.add(chatMessage);
                         } else if (WhiteboardUtils.CHAT_MESSAGE_TAG_CLEAR.equals(tag)) {
                             toDisplay.add(chatMessage);
@@ -260,121 +342,161 @@ public class WhiteboardView extends View implements Observer {
                 }
             }
 
+            if (snapshotMessage != null) {
+                //draw it before any older messages that weren't in it
+                toDisplay.add(snapshotMessage);
+            }
+
             Logger.d("size="+size+" toDisplay.size()="+toDisplay.size()
-                    +" mChatMessagesCanvas="+mChatMessagesCanvas+" mChatMessagesBitmap="+mChatMessagesBitmap
+                    +" mRenderer="+mRenderer
                     +" mChatMessageListLastDisplayed="
                     //just log useful stuff
                     +WhiteboardUtils.toString(mChatMessageListLastDisplayed));
 
             if (toDisplay.size() > 0) {
-                int w = getWidth();
-                int h = getHeight();
-                if (mChatMessagesCanvas == null) {
-                    if (w > 0 && h > 0) {
-                        mChatMessagesBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-                        mChatMessagesCanvas = new Canvas(mChatMessagesBitmap);
-                    } else {
-                        Logger.d("not ready to create canvas yet w="+w+" h="+h);
+                if (mRenderer != null) {
+                    //the renderer draws oldest first
+                    Collections.reverse(toDisplay);
+                    //an image that is still downloading can't be drawn yet, it and the messages after it are drawn
+                    //again once it is so they stay on top of it
+                    int firstPending = -1;
+                    for (int i = 0; i < toDisplay.size(); ++i) {
+                        if (WhiteboardUtils.isAttachmentPending(toDisplay.get(i))) {
+                            firstPending = i;
+                            break;
+                        }
                     }
-                }
-                Canvas canvas = mChatMessagesCanvas;
-
-                if (canvas != null) {
-                    for (int i = toDisplay.size() - 1; i >= 0; --i) {
-                        ChatMessage chatMessage = toDisplay.get(i);
-                        String tag = chatMessage.tag;
-                        Logger.d("draw ["+i+"]: ID="+chatMessage.messageId+" tag="+tag+" ");
-                        if (WhiteboardUtils.CHAT_MESSAGE_TAG_WHITEBOARD.equals(tag) || WhiteboardUtils.CHAT_MESSAGE_TAG_PICTURE.equals(tag)) {
-                            if (chatMessage.data == null) {
-                                Logger.w("missing data for ID="+chatMessage.messageId+" tag="+tag+" ");
-                                continue;
-                            }
-
-                            Bitmap bmp = WhiteboardUtils.createBitmap(chatMessage);
-
-                            if (bmp == null) {
-                                Logger.e("Failed to create bitmap from "+chatMessage);
-                                continue;
-                            }
-
-                            //figure out if need to scale it
-                            int remoteWidth = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_WIDTH, -1);
-                            int remoteHeight = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_AVAILABLE_HEIGHT, -1);
-
-                            Rect toRect;
-                            float scaleX = 1;
-                            float scaleY = 1;
-                            if (remoteWidth > 0 && remoteWidth != w) {
-                                //remote is different size
-                                scaleX = (float)w / (float)remoteWidth;
-                            }
-                            if (remoteHeight > 0 && remoteHeight != h) {
-                                //remote is different size
-                                scaleY = (float)h / (float)remoteHeight;
-                            }
-
-                            int left = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_LEFT, 0);
-                            int top = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_DOODLE_TOP, 0);
-
-                            int rectX = (int)(scaleX * left);
-                            int rectY = (int)(scaleY * top);
-                            toRect = new Rect(rectX, rectY, rectX + (int)(scaleX * bmp.getWidth()), rectY + (int)(scaleY * bmp.getHeight()));
-
-                            Logger.d("scaleX="+scaleX+" B.W="+bmp.getWidth()+" RW="+remoteWidth
-                                    +" scaleY="+scaleY+" B.H="+bmp.getHeight()+" RH="+remoteHeight
-                                    +" W="+w+" H="+h
-                                    +" left="+left+" top="+top
-                                    +" toRect="+toRect
-                                    +" ByteCount="+bmp.getByteCount());
-
-                            canvas.drawBitmap(bmp, null, toRect, null);
-
-                        } else if (WhiteboardUtils.CHAT_MESSAGE_TAG_CLEAR.equals(tag)) {
-                            //clear canvas or bmp?
-                            int color = Color.WHITE;
-                            if (chatMessage.data != null) {
-                                color = chatMessage.data.optInt(WhiteboardUtils.CHAT_MESSAGE_DATA_KEY_BACKGROUND_COLOR, color);
-                            }
-
-                            canvas.drawColor(color);
+                    //only let it save a snapshot if no messages were skipped since they wouldn't be in it
+                    mRenderer.render(toDisplay, rememberLastDisplayed && firstPending < 0);
+
+                    if (rememberLastDisplayed) {
+                        if (firstPending < 0) {
+                            mChatMessageListLastDisplayed = toDisplay.get(toDisplay.size() - 1);
+                        } else if (firstPending > 0) {
+                            mChatMessageListLastDisplayed = toDisplay.get(firstPending - 1);
                         }
-
-                        if (rememberLastDisplayed) {
-                            mChatMessageListLastDisplayed = chatMessage;
+                        if (snapshotMessage != null) {
+                            mAppliedSnapshotMessageId = snapshotMessage.messageId;
                         }
                     }
-                    invalidate();
                 }
             }
         }
     }
 
-    public Bitmap getDoodle() {
-        if (mDrawingBitmap == null || mDrawingCanvas == null) {
+    /**
+     * Create the renderer if it doesn't exist yet and the size is known
+     */
+    private void createRenderer() {
+        if (mRenderer == null) {
             int w = getWidth();
             int h = getHeight();
             if (w > 0 && h > 0) {
-                mDrawingBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-                mDrawingCanvas = new Canvas(mDrawingBitmap);
+                mRenderer = new WhiteboardRenderer(this, mChat != null ? mChat.get().chatId : null, w, h);
+                if (mSendSnapshots) {
+                    mRenderer.setSnapshotListener(new WhiteboardRenderer.SnapshotListener() {
+                        @Override
+                        public void onSnapshot(Bitmap board, long lastMessageId) {
+                            WhiteboardUtils.sendSnapshot(mChat.get().chatId, board, lastMessageId);
+                        }
+                    });
+                }
             } else {
-                Logger.d("not ready to create mDrawingCanvas yet w="+w+" h="+h);
-                return null;
+                Logger.d("not ready to create canvas yet w="+w+" h="+h);
             }
         }
+    }
 
-        //clear anything from before
-        mDrawingBitmap.eraseColor(Color.TRANSPARENT);
-        mDrawingCanvas.drawPath(mPath, mPaint);
+    /**
+     * If set each time a snapshot of the board is saved it will also be sent to the chat so other users
+     * opening the whiteboard can start from it. Must be called before {@link #setChat}.
+     */
+    public void setSendSnapshots(boolean sendSnapshots) {
+        mSendSnapshots = sendSnapshots;
+    }
+
+    /**
+     * @return a copy of the strokes drawn since the last reset, or null if nothing was drawn
+     */
+    public StrokeCodec.Recorder getStrokes() {
+        return mStrokeRecorder.isEmpty() ? null : mStrokeRecorder.copy();
+    }
 
-        return mDrawingBitmap;
+    /**
+     * Set when messages can't be sent as fast as they are drawn. While set the strokes not sent yet are faded.
+     */
+    public void setSendBacklogged(boolean backlogged) {
+        if (mSendBacklogged != backlogged) {
+            mSendBacklogged = backlogged;
+            invalidate();
+        }
     }
 
+    /**
+     * Draw the doodle into a bitmap just large enough to hold it.
+     * The bitmap is from the {@link BitmapPool} and should be put back in it when no longer needed.
+     *
+     * @param trimAllSides if false the bitmap starts at the top left of the view and is the full height,
+     *                     otherwise it is cropped to the strokes on all sides
+     * @param outBounds set to the area of the view the bitmap covers
+     * @return the bitmap, or null if there is nothing to draw
+     */
+    public Bitmap getDoodle(boolean trimAllSides, Rect outBounds) {
+        int w = getWidth();
+        int h = getHeight();
+        if (w <= 0 || h <= 0 || mStrokeRecorder.isEmpty()) {
+            Logger.d("nothing to draw yet w="+w+" h="+h);
+            return null;
+        }
+
+        if (trimAllSides) {
+            //The stroke thickness is more than 1 pixel, so we should grab a bit more than the edges that the users finger touched
+            //otherwise 1/2 the thickness will be cut on the square edges
+            int halfStrokeWidth = (mStrokeWidth + 1) / 2;
+            outBounds.set((int) mLeftMostX - halfStrokeWidth, (int) mHighestY - halfStrokeWidth,
+                    (int) Math.ceil(mRightMostX) + halfStrokeWidth, (int) Math.ceil(mLowestY) + halfStrokeWidth);
+        } else {
+            //cut off the right whitespace part of the doodle (5 pix padding only), leave whitespace on left so user can add padding if they want. Use full height
+            outBounds.set(0, 0, (int) mRightMostX + 5, h);
+        }
+
+        //can't go outside
+        if (!outBounds.intersect(0, 0, w, h)) {
+            return null;
+        }
+
+        Bitmap bmp = BitmapPool.getInstance().get(outBounds.width(), outBounds.height(), Bitmap.Config.ARGB_8888);
+        mDrawingCanvas.setBitmap(bmp);
+        mDrawingCanvas.save();
+        mDrawingCanvas.translate(-outBounds.left, -outBounds.top);
+        mDrawingCanvas.drawPath(mPath, mPaint);
+        mDrawingCanvas.restore();
+        mDrawingCanvas.setBitmap(null);
+
+        return bmp;
+    }
 
     public void reset() {
         mPath.reset();
+        mStrokeRecorder.reset();
+        resetBounds();
         invalidate();
     }
 
+    /**
+     * Automatically send the doodle when the user lifts their finger and doesn't start another stroke within the window.
+     * All the strokes drawn within the window of each other are sent together as 1 doodle covering the union of their bounds,
+     * for example handwriting with many small strokes per word is sent as a few messages instead of one per stroke.
+     *
+     * @param windowMs the time to wait for another stroke, or 0 to only send when {@link #sendDoodleEvent()} is called
+     */
+    public void setBatchWindow(long windowMs) {
+        mBatchWindowMs = windowMs;
+        if (windowMs <= 0) {
+            removeCallbacks(mBatchSend);
+        }
+    }
+
     public void setDoodleListener(DoodleListener listener) {
         mDoodleListener = listener;
     }
@@ -384,6 +506,7 @@ public class WhiteboardView extends View implements Observer {
      * Used if there is a send button when in draw mode...
      */
     public void sendDoodleEvent() {
+        removeCallbacks(mBatchSend);
         if (mDoodleListener != null) {
             invalidate();
             long duration = System.currentTimeMillis() - mDoodleStart;
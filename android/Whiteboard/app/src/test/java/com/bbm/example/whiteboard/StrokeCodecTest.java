@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 BlackBerry Limited. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.example.whiteboard;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StrokeCodecTest {
+
+    @Test
+    public void roundTripsStrokes() {
+        StrokeCodec.Recorder recorder = new StrokeCodec.Recorder();
+        recorder.startStroke(10.4f, 20.6f);
+        recorder.addPoint(11f, 19f);
+        recorder.addPoint(500f, 3f);
+        recorder.startStroke(0f, 0f);
+        recorder.startStroke(-40f, 70000f);
+        recorder.addPoint(-41f, 70001f);
+
+        List<int[]> strokes = StrokeCodec.decode(recorder.encodeBytes());
+
+        assertEquals(3, strokes.size());
+        assertArrayEquals(new int[] {10, 21, 11, 19, 500, 3}, strokes.get(0));
+        assertArrayEquals(new int[] {0, 0}, strokes.get(1));
+        assertArrayEquals(new int[] {-40, 70000, -41, 70001}, strokes.get(2));
+    }
+
+    @Test
+    public void smallMovesTakeTwoBytesPerPoint() {
+        StrokeCodec.Recorder recorder = new StrokeCodec.Recorder();
+        recorder.startStroke(0f, 0f);
+        for (int i = 1; i < 100; ++i) {
+            recorder.addPoint(i, i * 2);
+        }
+
+        //1 byte for the count and 1 byte for each of dx, dy
+        assertEquals(1 + 100 * 2, recorder.encodeBytes().length);
+    }
+
+    @Test
+    public void dropsRepeatedPixels() {
+        StrokeCodec.Recorder recorder = new StrokeCodec.Recorder();
+        recorder.startStroke(5f, 5f);
+        recorder.addPoint(5.2f, 4.9f);
+        recorder.addPoint(6f, 5f);
+
+        assertEquals(2, recorder.getPointCount());
+        assertArrayEquals(new int[] {5, 5, 6, 5}, StrokeCodec.decode(recorder.encodeBytes()).get(0));
+    }
+
+    @Test
+    public void appendKeepsStrokesOfBoth() {
+        StrokeCodec.Recorder first = new StrokeCodec.Recorder();
+        first.startStroke(1f, 1f);
+        first.addPoint(2f, 2f);
+        StrokeCodec.Recorder second = new StrokeCodec.Recorder();
+        second.startStroke(30f, 30f);
+
+        StrokeCodec.Recorder combined = first.copy();
+        combined.append(second);
+
+        List<int[]> strokes = StrokeCodec.decode(combined.encodeBytes());
+        assertEquals(2, strokes.size());
+        assertArrayEquals(new int[] {1, 1, 2, 2}, strokes.get(0));
+        assertArrayEquals(new int[] {30, 30}, strokes.get(1));
+        //the copy doesn't change the original
+        assertEquals(2, first.getPointCount());
+    }
+
+    @Test
+    public void emptyRecorderEncodesToNull() {
+        StrokeCodec.Recorder recorder = new StrokeCodec.Recorder();
+        assertNull(recorder.encodeBytes());
+
+        recorder.startStroke(1f, 1f);
+        recorder.reset();
+        assertTrue(recorder.isEmpty());
+        assertNull(recorder.encodeBytes());
+    }
+
+    @Test
+    public void rejectsCountLargerThanTheRemainingBytes() {
+        //a count of 3 points followed by only 4 bytes
+        List<int[]> strokes = StrokeCodec.decode(new byte[] {3, 2, 2, 2, 2});
+        assertTrue(strokes.isEmpty());
+
+        //a huge count is rejected before anything is allocated for it
+        strokes = StrokeCodec.decode(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0, 0});
+        assertTrue(strokes.isEmpty());
+    }
+
+    @Test
+    public void keepsStrokesBeforeCorruptData() {
+        StrokeCodec.Recorder recorder = new StrokeCodec.Recorder();
+        recorder.startStroke(3f, 4f);
+        byte[] valid = recorder.encodeBytes();
+        byte[] bytes = new byte[valid.length + 2];
+        System.arraycopy(valid, 0, bytes, 0, valid.length);
+        //a zero point count
+        bytes[valid.length] = 0;
+
+        List<int[]> strokes = StrokeCodec.decode(bytes);
+        assertEquals(1, strokes.size());
+        assertArrayEquals(new int[] {3, 4}, strokes.get(0));
+    }
+}